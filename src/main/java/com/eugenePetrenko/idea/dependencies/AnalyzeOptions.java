@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.openapi.util.registry.Registry;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumSet;
+import java.util.MissingResourceException;
+import java.util.Set;
+
+/**
+ * Tuning options of the dependencies search.
+ * Defaults are taken from the {@code jonnyzzz.dependencies.*} registry keys
+ */
+public class AnalyzeOptions {
+  /**
+   * Defines when resolve caches are dropped during the analysis
+   */
+  public enum CacheRetention {
+    /** after every file */
+    PER_FILE,
+    /** after every batch of files processed under one read action */
+    PER_BATCH,
+    /** after every module */
+    PER_MODULE,
+    /** when heap used after the last garbage collection exceeds the heap budget */
+    ON_MEMORY_PRESSURE
+  }
+
+  /**
+   * Defines how usages of a module are collected
+   */
+  public enum Engine {
+    /** resolve references of every source file */
+    PSI,
+    /**
+     * read class files of the module compiler output, modules without up-to-date output are analyzed with PSI.
+     * Class files do not refer to inlined constants and annotations with {@code SOURCE} retention,
+     * nor to type arguments that are erased, like ones of casts, of constructor calls and of locals
+     * compiled without debug info, so a dependency used only that way is reported as unused.
+     * The removal of such a result has to be confirmed once more
+     */
+    BYTECODE,
+    /** prove usages of every dependency with index search, the rest is checked with PSI. Requires saturation */
+    REVERSE,
+    /** choose PSI or REVERSE per module by the number of files and dependencies */
+    AUTO
+  }
+
+  /**
+   * Pre-resolve filters of the PSI analysis, see {@link ResolveFilters}
+   */
+  public enum ResolveFilter {
+    /** references to classes of {@code java.*} packages */
+    SDK,
+    /** short names of classes of the module that are already counted */
+    MODULE_LOCAL,
+    /** imported and qualified names of classes that are already counted */
+    PROVEN
+  }
+
+  private Engine myEngine = Engine.PSI;
+  private boolean mySaturation = true;
+  private boolean myTwoPhase = false;
+  private boolean myStreaming = false;
+  private boolean myDumbModeAnalysis = true;
+  private boolean myResultsToolWindow = false;
+  private Set<ResolveFilter> myResolveFilters = EnumSet.allOf(ResolveFilter.class);
+  private boolean myIncremental = false;
+  private boolean myResultCache = true;
+  private CacheRetention myCacheRetention = CacheRetention.PER_FILE;
+  private int myHeapBudgetPercent = 60;
+  private int myThreads = 0;
+  private int myReverseClassBudget = 200;
+  private int myReverseFilesPerDependency = 20;
+
+  /**
+   * @return options with values from the registry
+   */
+  @NotNull
+  public static AnalyzeOptions defaults() {
+    final AnalyzeOptions options = new AnalyzeOptions();
+    options.setEngine(registryEnum("jonnyzzz.dependencies.engine", Engine.PSI));
+    options.setSaturation(Registry.is("jonnyzzz.dependencies.saturation", true));
+    options.setResolveFilters(registryEnumSet("jonnyzzz.dependencies.resolve.filters", ResolveFilter.class));
+    options.setTwoPhase(Registry.is("jonnyzzz.dependencies.two.phase", false));
+    options.setStreaming(Registry.is("jonnyzzz.dependencies.streaming", false));
+    options.setDumbModeAnalysis(Registry.is("jonnyzzz.dependencies.dumb.mode", true));
+    options.setResultsToolWindow(Registry.is("jonnyzzz.dependencies.tool.window", false));
+    options.setIncremental(Registry.is("jonnyzzz.dependencies.incremental", false));
+    options.setResultCache(Registry.is("jonnyzzz.dependencies.result.cache", true));
+    options.setCacheRetention(registryEnum("jonnyzzz.dependencies.cache.retention", CacheRetention.PER_FILE));
+    options.setHeapBudgetPercent(Registry.intValue("jonnyzzz.dependencies.cache.heap.budget", 60));
+    options.setThreads(Registry.intValue("jonnyzzz.dependencies.threads", 0));
+    options.setReverseClassBudget(Registry.intValue("jonnyzzz.dependencies.reverse.class.budget", 200));
+    options.setReverseFilesPerDependency(Registry.intValue("jonnyzzz.dependencies.reverse.files.per.dependency", 20));
+    return options;
+  }
+
+  @NotNull
+  private static <T extends Enum<T>> T registryEnum(@NotNull final String key, @NotNull final T defaultValue) {
+    try {
+      final String value = Registry.get(key).getSelectedOption();
+      if (value == null) return defaultValue;
+      return Enum.valueOf(defaultValue.getDeclaringClass(), value);
+    } catch (MissingResourceException | IllegalArgumentException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * @return values listed in a comma-separated registry value, unknown names are ignored
+   */
+  @NotNull
+  private static <T extends Enum<T>> Set<T> registryEnumSet(@NotNull final String key, @NotNull final Class<T> type) {
+    final Set<T> result = EnumSet.noneOf(type);
+    try {
+      for (String name : Registry.stringValue(key).split(",")) {
+        try {
+          result.add(Enum.valueOf(type, name.trim()));
+        } catch (IllegalArgumentException e) {
+          //not a filter name
+        }
+      }
+      return result;
+    } catch (MissingResourceException e) {
+      return EnumSet.allOf(type);
+    }
+  }
+
+  @NotNull
+  public Engine getEngine() {
+    return myEngine;
+  }
+
+  public void setEngine(@NotNull Engine engine) {
+    myEngine = engine;
+  }
+
+  /**
+   * In saturation mode a module is no longer scanned once every dependency
+   * it declares (or receives through exports) is proven to be used.
+   * The collected usages of the module are incomplete then,
+   * but the set of dependencies to remove is the same
+   * @return true if saturation mode is enabled
+   */
+  public boolean isSaturation() {
+    return mySaturation;
+  }
+
+  public void setSaturation(boolean saturation) {
+    mySaturation = saturation;
+  }
+
+  @NotNull
+  public Set<ResolveFilter> getResolveFilters() {
+    return myResolveFilters;
+  }
+
+  public void setResolveFilters(@NotNull Set<ResolveFilter> resolveFilters) {
+    myResolveFilters = resolveFilters.isEmpty() ? EnumSet.noneOf(ResolveFilter.class) : EnumSet.copyOf(resolveFilters);
+  }
+
+  /**
+   * In two-phase mode imports of module files are scanned first without resolving,
+   * dependencies that are proven by imports are not looked for by the PSI analysis.
+   * Works together with saturation, the set of dependencies to remove is the same
+   * @return true if two-phase mode is enabled
+   */
+  public boolean isTwoPhase() {
+    return myTwoPhase;
+  }
+
+  public void setTwoPhase(boolean twoPhase) {
+    myTwoPhase = twoPhase;
+  }
+
+  /**
+   * In streaming mode files are analyzed while modules are still enumerated,
+   * enumeration waits if the queue of files is full. Modules that need all their
+   * files first, that is for two-phase mode, the bytecode engine and the
+   * {@link Engine#AUTO} planner, are enumerated before their analysis as usual.
+   * Streamed files are analyzed in the order of enumeration, not largest first,
+   * so with saturation a streamed module may scan more files before it is saturated
+   * @return true if streaming mode is enabled
+   */
+  public boolean isStreaming() {
+    return myStreaming;
+  }
+
+  public void setStreaming(boolean streaming) {
+    myStreaming = streaming;
+  }
+
+  /**
+   * While the IDE is indexing, the analysis scans source texts instead of resolving
+   * references, see {@link ApproximateDependenciesSearcher}. The result is marked approximate
+   * @return true if the approximate analysis is used in dumb mode
+   */
+  public boolean isDumbModeAnalysis() {
+    return myDumbModeAnalysis;
+  }
+
+  public void setDumbModeAnalysis(boolean dumbModeAnalysis) {
+    myDumbModeAnalysis = dumbModeAnalysis;
+  }
+
+  /**
+   * Results of modules are shown in a tool window as soon as they are final,
+   * see {@link ModuleResultListener}, instead of the dialog at the end of the analysis
+   * @return true if results are shown in the tool window
+   */
+  public boolean isResultsToolWindow() {
+    return myResultsToolWindow;
+  }
+
+  public void setResultsToolWindow(boolean resultsToolWindow) {
+    myResultsToolWindow = resultsToolWindow;
+  }
+
+  /**
+   * In incremental mode usages of every analyzed file are stored on disk,
+   * and files that were not changed since the previous run are not analyzed again
+   * @return true if incremental mode is enabled
+   */
+  public boolean isIncremental() {
+    return myIncremental;
+  }
+
+  public void setIncremental(boolean incremental) {
+    myIncremental = incremental;
+  }
+
+  /**
+   * Usages of a module are kept in memory between analysis runs
+   * until the project roots or PSI of the module are changed
+   * @return true if usages of unchanged modules are reused
+   */
+  public boolean isResultCache() {
+    return myResultCache;
+  }
+
+  public void setResultCache(boolean resultCache) {
+    myResultCache = resultCache;
+  }
+
+  /**
+   * Usages of a module depend on the engine, saturation, two-phase mode,
+   * resolve filters and incremental mode, other options change only
+   * how fast the usages are collected
+   * @return key of the options that usages stored in {@link ModuleResultCache} were collected with
+   */
+  @NotNull
+  public String getResultKey() {
+    return myEngine + ":" + mySaturation + ":" + myTwoPhase + ":" + myIncremental + ":" + myResolveFilters;
+  }
+
+  @NotNull
+  public CacheRetention getCacheRetention() {
+    return myCacheRetention;
+  }
+
+  public void setCacheRetention(@NotNull CacheRetention cacheRetention) {
+    myCacheRetention = cacheRetention;
+  }
+
+  /**
+   * Used for {@link CacheRetention#ON_MEMORY_PRESSURE}
+   * @return percent of the maximum heap size that resolve caches may take
+   */
+  public int getHeapBudgetPercent() {
+    return myHeapBudgetPercent;
+  }
+
+  public void setHeapBudgetPercent(int heapBudgetPercent) {
+    myHeapBudgetPercent = heapBudgetPercent;
+  }
+
+  /**
+   * With one thread files are analyzed in the calling thread
+   * @return maximum number of threads that analyze files, 0 for the number of processors
+   */
+  public int getThreads() {
+    return myThreads;
+  }
+
+  public void setThreads(int threads) {
+    myThreads = Math.max(0, threads);
+  }
+
+  /**
+   * Used by {@link Engine#REVERSE} and {@link Engine#AUTO}. A dependency with more classes
+   * is searched for usages of some of them only, and is left to the forward scan if none is found.
+   * The default is not measured, it bounds a search of a large library to a few hundred index queries
+   * @return number of top-level classes of one dependency that are searched for usages
+   */
+  public int getReverseClassBudget() {
+    return myReverseClassBudget;
+  }
+
+  public void setReverseClassBudget(int reverseClassBudget) {
+    myReverseClassBudget = Math.max(1, reverseClassBudget);
+  }
+
+  /**
+   * Used by {@link Engine#AUTO}, which chooses the reverse search for a module
+   * with more files than this number times the number of its dependencies.
+   * The default is an estimate, not a measurement, tune it on the project
+   * @return number of files the forward scan processes in the time a reverse search of one dependency takes
+   */
+  public int getReverseFilesPerDependency() {
+    return myReverseFilesPerDependency;
+  }
+
+  public void setReverseFilesPerDependency(int reverseFilesPerDependency) {
+    myReverseFilesPerDependency = Math.max(1, reverseFilesPerDependency);
+  }
+}
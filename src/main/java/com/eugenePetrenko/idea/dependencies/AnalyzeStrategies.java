@@ -37,6 +37,10 @@ public enum AnalyzeStrategies implements AnalyzeStrategy {
       ModuleDependenciesHelper.updateExportedDependenciesUsages(project, modules, deps);
     }
 
+    public boolean isUpdatedDependencies(@NotNull Project project, @NotNull Module module) {
+      return ModuleDependenciesHelper.hasExportDependencies(project, module);
+    }
+
     public boolean isSupportedDependency(@NotNull OrderEntry entry) {
       //all supported deps are included
       return true;
@@ -53,6 +57,10 @@ public enum AnalyzeStrategies implements AnalyzeStrategy {
       //NOP
     }
 
+    public boolean isUpdatedDependencies(@NotNull Project project, @NotNull Module module) {
+      return false;
+    }
+
     public boolean isSupportedDependency(@NotNull OrderEntry entry) {
       return !ModuleDependenciesHelper.isExportDependency(entry);
     }
@@ -45,6 +45,15 @@ public interface AnalyzeStrategy {
    */
   void updateDetectedDependencies(@NotNull Project project, @NotNull Module[] modules, @NotNull ModulesDependencies deps);
 
+  /**
+   * called to check if actual dependencies of the module are final
+   * before {@link #updateDetectedDependencies} is called
+   * @param project project
+   * @param module analyzed module
+   * @return true if {@link #updateDetectedDependencies} may change dependencies of the module
+   */
+  boolean isUpdatedDependencies(@NotNull Project project, @NotNull Module module);
+
   /**
    * called for filter out unsupported dependencies
    * @param entry dependency entry
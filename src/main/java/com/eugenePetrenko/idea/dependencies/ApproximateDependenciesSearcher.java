@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.roots.OrderEntry;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Approximate usages search that works while the IDE is indexing.
+ * Neither resolve nor indexes are used: imports and qualified names are scanned
+ * from the source text and matched against classes of library jars and source roots
+ * of modules, which are read from disk. A class or a package is counted for all its owners.
+ * Usages through supertypes and other implicit references are not seen,
+ * so the result is marked approximate.
+ * Modules with sources of other JVM languages keep all their dependencies
+ */
+public class ApproximateDependenciesSearcher {
+  private final ProgressIndicator myIndicator;
+  private final ProjectSourceClasses mySources;
+  private final LibraryPackageIndex myLibraries;
+
+  private ApproximateDependenciesSearcher(@NotNull final ProgressIndicator indicator, @NotNull final Project project) {
+    myIndicator = indicator;
+    mySources = ProjectSourceClasses.collectFromSourceRoots(project);
+    myLibraries = LibraryPackageIndex.getInstance(project);
+  }
+
+  /**
+   * Performs approximate analysis for given modules
+   *
+   * @param indicator progress
+   * @param project   project
+   * @param modules   modules
+   * @param universe  universe of the analysis run
+   * @return approximate usages of modules
+   */
+  @NotNull
+  public static ModulesDependencies collectionActualModulesDependencies(@NotNull final ProgressIndicator indicator,
+                                                                        @NotNull final Project project,
+                                                                        @NotNull final Module[] modules,
+                                                                        @NotNull final DependencyUniverse universe) {
+    final ModulesDependencies result = new ModulesDependencies(universe);
+    result.setApproximate(true);
+
+    final ApproximateDependenciesSearcher searcher = new ApproximateDependenciesSearcher(indicator, project);
+    searcher.myLibraries.ensureUpToDate();
+    for (int i = 0; i < modules.length; i++) {
+      final Module module = modules[i];
+      indicator.checkCanceled();
+      indicator.setText("Scanning sources of " + module.getName());
+      indicator.setFraction((double) i / modules.length);
+
+      result.addAll(module, searcher.searchModule(module, new LibOrModuleSet(result.getUniverse())));
+    }
+    return result;
+  }
+
+  @NotNull
+  private LibOrModuleSet searchModule(@NotNull final Module module, @NotNull final LibOrModuleSet usages) {
+    if (mySources.isOpaque(module)) {
+      //classes of other languages are not seen by the scan
+      ApplicationManager.getApplication().runReadAction(() -> {
+        for (OrderEntry e : ModuleRootManager.getInstance(module).getOrderEntries()) {
+          usages.addDependency(e);
+        }
+      });
+      return usages;
+    }
+
+    final List<Pair<VirtualFile, String>> files = new ArrayList<>();
+    ApplicationManager.getApplication().runReadAction(() -> ProjectSourceClasses.processSourceRootFiles(module, (file, packageName) -> {
+      if ("java".equals(file.getExtension())) files.add(Pair.create(file, packageName));
+    }));
+
+    final Set<String> seen = new HashSet<>();
+    for (Pair<VirtualFile, String> file : files) {
+      myIndicator.checkCanceled();
+      final CharSequence text = ApplicationManager.getApplication().runReadAction((Computable<CharSequence>) () -> loadText(file.first));
+      if (text == null) continue;
+
+      ImportScanner.scan(text, name -> {
+        if (seen.add(name)) addClassUsage(name, usages);
+      }, packageName -> {
+        if (seen.add(packageName + ".*")) addPackageUsage(packageName, usages);
+      });
+      ImportScanner.scanQualifiedNames(text, name -> {
+        if (seen.add(name)) addClassUsage(name, usages);
+      });
+      //classes of the same package are used without imports
+      if (!file.second.isEmpty() && seen.add(file.second + ".*")) addPackageUsage(file.second, usages);
+    }
+    return usages;
+  }
+
+  /**
+   * @param name qualified name of a class, that may be followed by nested class or member names
+   */
+  private void addClassUsage(@NotNull final String name, @NotNull final LibOrModuleSet usages) {
+    int end = name.indexOf('.');
+    while (end >= 0) {
+      end = name.indexOf('.', end + 1);
+      //the shortest prefix that names a class is the top-level class
+      if (addClassOwners(end < 0 ? name : name.substring(0, end), usages)) return;
+    }
+  }
+
+  private boolean addClassOwners(@NotNull final String name, @NotNull final LibOrModuleSet usages) {
+    final List<Module> modules = mySources.getClassOwners(name);
+    for (Module module : modules) {
+      usages.addDependency(module);
+    }
+    final List<Library> libraries = myLibraries.getClassOwners(name);
+    for (Library library : libraries) {
+      usages.addDependency(library);
+    }
+    return !modules.isEmpty() || !libraries.isEmpty() || myLibraries.isSdkClass(name);
+  }
+
+  private void addPackageUsage(@NotNull final String packageName, @NotNull final LibOrModuleSet usages) {
+    for (Module module : mySources.getPackageOwners(packageName)) {
+      usages.addDependency(module);
+    }
+    for (Library library : myLibraries.getPackageOwners(packageName)) {
+      usages.addDependency(library);
+    }
+  }
+
+  @Nullable
+  private static CharSequence loadText(@NotNull final VirtualFile file) {
+    if (!file.isValid()) return null;
+    //unsaved changes are seen by the exact analysis too
+    final Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+    return document != null ? document.getImmutableCharSequence() : LoadTextUtil.loadText(file);
+  }
+}
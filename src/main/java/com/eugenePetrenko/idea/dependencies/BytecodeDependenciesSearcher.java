@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.CompilerModuleExtension;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.JavaPsiFacade;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.search.GlobalSearchScope;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Collects module usages from the compiler output of the module.
+ * Every class file lists the classes it refers to in its constant pool,
+ * these classes are mapped to owning libraries and modules with their supertypes
+ * through {@link DependencyFootprintCache}, which is much cheaper than resolving
+ * references of every source file.
+ * The output is used only if it is up to date with the module sources,
+ * otherwise the caller falls back to the PSI analysis
+ */
+public class BytecodeDependenciesSearcher {
+  private static final Logger LOG = Logger.getInstance(BytecodeDependenciesSearcher.class);
+  /** names resolved under one read action */
+  private static final int RESOLVE_BATCH = 256;
+
+  /**
+   * Performs bytecode analysis for given module
+   *
+   * @param indicator progress
+   * @param project   project
+   * @param module    module
+   * @return usages of the module or null if the module has no up-to-date compiler output
+   */
+  @Nullable
+  public static LibOrModuleSet collectionActualModuleDependencies(@NotNull final ProgressIndicator indicator,
+                                                                  @NotNull final Project project,
+                                                                  @NotNull final Module module) {
+    final List<VirtualFile> files = ApplicationManager.getApplication().runReadAction((Computable<List<VirtualFile>>) () -> ModuleDependenciesSearcher.collectModuleFiles(indicator, module));
+    final DependencyUniverse universe = new DependencyUniverse();
+    final DependencyFootprintCache footprints = new DependencyFootprintCache(new OrderEntryLookup(ProjectRootManager.getInstance(project).getFileIndex()), universe);
+    return searchModule(indicator, project, module, files, footprints, universe);
+  }
+
+  /**
+   * @param files source files of the module
+   * @return usages of the module or null if the module has no up-to-date compiler output
+   */
+  @Nullable
+  static LibOrModuleSet searchModule(@NotNull final ProgressIndicator indicator,
+                                     @NotNull final Project project,
+                                     @NotNull final Module module,
+                                     @NotNull final List<VirtualFile> files,
+                                     @NotNull final DependencyFootprintCache footprints,
+                                     @NotNull final DependencyUniverse universe) {
+    final List<Path> outputs = ApplicationManager.getApplication().runReadAction((Computable<List<Path>>) () -> collectOutputs(module));
+    if (outputs.isEmpty()) return null;
+
+    final List<Path> classFiles = new ArrayList<>();
+    for (Path output : outputs) {
+      try (Stream<Path> stream = Files.walk(output)) {
+        classFiles.addAll(stream.filter(p -> p.getFileName().toString().endsWith(".class")).collect(Collectors.toList()));
+      } catch (IOException e) {
+        LOG.info("Failed to list compiler output " + output + " of module " + module.getName() + ". " + e.getMessage());
+        return null;
+      }
+    }
+    if (classFiles.isEmpty()) return null;
+
+    final Boolean upToDate = ApplicationManager.getApplication().runReadAction((Computable<Boolean>) () -> isUpToDate(project, outputs, files, classFiles));
+    if (!upToDate) {
+      LOG.info("Compiler output of module " + module.getName() + " is not up to date");
+      return null;
+    }
+
+    indicator.setText2("Reading compiled classes of " + module.getName());
+    final Set<String> names = new HashSet<>();
+    final ClassFileReader reader = new ClassFileReader();
+    for (Path classFile : classFiles) {
+      indicator.checkCanceled();
+      try {
+        reader.read(classFile, name -> {
+          //JDK classes belong to the SDK, which is never removed
+          if (!name.startsWith("java/")) names.add(name);
+        });
+      } catch (IOException e) {
+        LOG.info("Failed to read class file " + classFile + ". " + e.getMessage());
+        return null;
+      }
+    }
+
+    final LibOrModuleSet result = new LibOrModuleSet(universe);
+    final List<String> pending = new ArrayList<>(names);
+    for (int from = 0; from < pending.size(); from += RESOLVE_BATCH) {
+      indicator.checkCanceled();
+      final List<String> batch = pending.subList(from, Math.min(pending.size(), from + RESOLVE_BATCH));
+      ApplicationManager.getApplication().runReadAction(() -> {
+        final GlobalSearchScope scope = GlobalSearchScope.moduleWithDependenciesAndLibrariesScope(module, true);
+        final JavaPsiFacade facade = JavaPsiFacade.getInstance(project);
+        for (String name : batch) {
+          final PsiClass clazz = findClass(facade, scope, name);
+          if (clazz != null) {
+            result.addDependencies(footprints.getFootprint(clazz).getTargets());
+          }
+        }
+      });
+    }
+    LOG.info("Module " + module.getName() + " usages are collected from " + classFiles.size() + " class files referencing " + names.size() + " classes");
+    return result;
+  }
+
+  @Nullable
+  private static PsiClass findClass(@NotNull final JavaPsiFacade facade,
+                                    @NotNull final GlobalSearchScope scope,
+                                    @NotNull final String internalName) {
+    final String name = internalName.replace('/', '.');
+    final PsiClass clazz = facade.findClass(name.replace('$', '.'), scope);
+    if (clazz != null) return clazz;
+
+    //local and anonymous classes, or a '$' in the class name
+    final PsiClass exact = facade.findClass(name, scope);
+    if (exact != null) return exact;
+
+    final int nested = name.indexOf('$', name.lastIndexOf('.') + 1);
+    return nested > 0 ? facade.findClass(name.substring(0, nested), scope) : null;
+  }
+
+  @NotNull
+  private static List<Path> collectOutputs(@NotNull final Module module) {
+    final CompilerModuleExtension extension = CompilerModuleExtension.getInstance(module);
+    if (extension == null) return Collections.emptyList();
+
+    final List<Path> result = new ArrayList<>(2);
+    for (String url : new String[]{extension.getCompilerOutputUrl(), extension.getCompilerOutputUrlForTests()}) {
+      if (url == null) continue;
+      final Path path = Paths.get(VfsUtilCore.urlToPath(url));
+      if (Files.isDirectory(path) && !result.contains(path)) result.add(path);
+    }
+    return result;
+  }
+
+  /**
+   * Output is up to date if every Java source has a class file that is not older than the source,
+   * and other sources are not newer than the newest class file.
+   * Unsaved sources make the output outdated
+   */
+  private static boolean isUpToDate(@NotNull final Project project,
+                                    @NotNull final List<Path> outputs,
+                                    @NotNull final List<VirtualFile> files,
+                                    @NotNull final List<Path> classFiles) {
+    final ProjectFileIndex index = ProjectRootManager.getInstance(project).getFileIndex();
+    final FileDocumentManager documents = FileDocumentManager.getInstance();
+
+    long newestClass = 0;
+    for (Path classFile : classFiles) {
+      newestClass = Math.max(newestClass, lastModified(classFile));
+    }
+
+    for (VirtualFile file : files) {
+      if (documents.isFileModified(file)) return false;
+
+      final String name = file.getName();
+      if (!name.endsWith(".java")) {
+        if (file.getTimeStamp() > newestClass) return false;
+        continue;
+      }
+      if (name.equals("package-info.java") || name.equals("module-info.java")) continue;
+
+      final VirtualFile dir = file.getParent();
+      final String packageName = dir == null ? null : index.getPackageNameByDirectory(dir);
+      if (packageName == null) return false;
+
+      final String relative = (packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/") + file.getNameWithoutExtension() + ".class";
+      long compiled = -1;
+      for (Path output : outputs) {
+        compiled = Math.max(compiled, lastModified(output.resolve(relative)));
+      }
+      if (compiled < file.getTimeStamp()) return false;
+    }
+    return true;
+  }
+
+  private static long lastModified(@NotNull final Path path) {
+    try {
+      return Files.getLastModifiedTime(path).toMillis();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reads names of classes referenced from a class file.
+ * Only the constant pool is parsed: class entries give referenced classes,
+ * and UTF8 entries that look like descriptors or generic signatures give
+ * types of fields, methods and annotations. UTF8 entries of string constants are skipped.
+ * The reader reuses its buffers and is not thread-safe
+ */
+class ClassFileReader {
+  private static final int MAGIC = 0xCAFEBABE;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_FLOAT = 4;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+  private static final int CONSTANT_METHOD_HANDLE = 15;
+  private static final int CONSTANT_METHOD_TYPE = 16;
+  private static final int CONSTANT_DYNAMIC = 17;
+  private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+  private static final int CONSTANT_MODULE = 19;
+  private static final int CONSTANT_PACKAGE = 20;
+
+  /** offsets of UTF8 entries, -1 for other entries */
+  private int[] myUtf8 = new int[256];
+  /** UTF8 indices of class entries */
+  private int[] myClasses = new int[256];
+  /** marks UTF8 entries that are not type names: strings, modules and packages */
+  private boolean[] myNotTypes = new boolean[256];
+  private char[] myChars = new char[256];
+
+  /**
+   * Reports internal names of all classes the class file refers to,
+   * a name may be reported several times
+   * @throws IOException if the file cannot be read or is not a class file
+   */
+  public void read(@NotNull final Path classFile, @NotNull final Consumer<String> names) throws IOException {
+    try (FileChannel channel = FileChannel.open(classFile, StandardOpenOption.READ)) {
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      read(buffer, names);
+    }
+  }
+
+  public void read(@NotNull final ByteBuffer buffer, @NotNull final Consumer<String> names) throws IOException {
+    try {
+      if (buffer.getInt(0) != MAGIC) throw new IOException("Not a class file");
+      final int count = buffer.getShort(8) & 0xFFFF;
+      ensureCapacity(count);
+      Arrays.fill(myUtf8, 0, count, -1);
+      Arrays.fill(myNotTypes, 0, count, false);
+
+      int classes = 0;
+      int pos = 10;
+      for (int i = 1; i < count; i++) {
+        final int tag = buffer.get(pos) & 0xFF;
+        switch (tag) {
+          case CONSTANT_UTF8:
+            myUtf8[i] = pos + 1;
+            pos += 3 + (buffer.getShort(pos + 1) & 0xFFFF);
+            break;
+          case CONSTANT_CLASS:
+            myClasses[classes++] = buffer.getShort(pos + 1) & 0xFFFF;
+            pos += 3;
+            break;
+          case CONSTANT_STRING:
+          case CONSTANT_MODULE:
+          case CONSTANT_PACKAGE:
+            myNotTypes[buffer.getShort(pos + 1) & 0xFFFF] = true;
+            pos += 3;
+            break;
+          case CONSTANT_METHOD_TYPE:
+            pos += 3;
+            break;
+          case CONSTANT_METHOD_HANDLE:
+            pos += 4;
+            break;
+          case CONSTANT_INTEGER:
+          case CONSTANT_FLOAT:
+          case CONSTANT_FIELDREF:
+          case CONSTANT_METHODREF:
+          case CONSTANT_INTERFACE_METHODREF:
+          case CONSTANT_NAME_AND_TYPE:
+          case CONSTANT_DYNAMIC:
+          case CONSTANT_INVOKE_DYNAMIC:
+            pos += 5;
+            break;
+          case CONSTANT_LONG:
+          case CONSTANT_DOUBLE:
+            pos += 9;
+            //8-byte constants take two entries
+            i++;
+            break;
+          default:
+            throw new IOException("Unknown constant pool tag " + tag);
+        }
+      }
+
+      for (int i = 0; i < classes; i++) {
+        final int utf8 = myClasses[i];
+        if (utf8 <= 0 || utf8 >= count || myUtf8[utf8] < 0) continue;
+        //class entries of arrays are descriptors
+        myNotTypes[utf8] = true;
+        final int length = decode(buffer, myUtf8[utf8]);
+        if (length > 0 && myChars[0] == '[') {
+          parseSignature(length, names);
+        } else {
+          names.accept(new String(myChars, 0, length));
+        }
+      }
+
+      for (int i = 1; i < count; i++) {
+        if (myUtf8[i] < 0 || myNotTypes[i]) continue;
+        if (!mayBeSignature(buffer, myUtf8[i])) continue;
+        parseSignature(decode(buffer, myUtf8[i]), names);
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Truncated class file", e);
+    }
+  }
+
+  /**
+   * A cheap check of raw bytes before decoding: descriptors and signatures
+   * start with one of {@code L ( [ <} and contain {@code ;}
+   */
+  private static boolean mayBeSignature(@NotNull final ByteBuffer buffer, final int offset) {
+    final int length = buffer.getShort(offset) & 0xFFFF;
+    if (length < 3) return false;
+    final byte first = buffer.get(offset + 2);
+    if (first != 'L' && first != '(' && first != '[' && first != '<') return false;
+    return buffer.get(offset + 1 + length) == ';' || first == '(' || first == '<';
+  }
+
+  /**
+   * Extracts class names from a descriptor or a generic signature in {@link #myChars}.
+   * The scan is linear: type arguments and bounds are types as well
+   */
+  private void parseSignature(final int length, @NotNull final Consumer<String> names) {
+    final char[] chars = myChars;
+    boolean typeStart = true;
+    int i = 0;
+    while (i < length) {
+      final char c = chars[i];
+      if (!typeStart) {
+        typeStart = c == '(' || c == ')' || c == '[' || c == ';' || c == '<' || c == '>' || c == ':' || c == '+' || c == '-' || c == '^' || c == '*';
+        i++;
+        continue;
+      }
+
+      //a type parameter declaration like T:Ljava/lang/Object;
+      int name = i;
+      while (name < length && Character.isJavaIdentifierPart(chars[name])) name++;
+      if (name > i && name < length && chars[name] == ':') {
+        i = name;
+        typeStart = false;
+        continue;
+      }
+
+      if (c == 'L') {
+        final int start = i + 1;
+        int end = start;
+        while (end < length && chars[end] != ';' && chars[end] != '<') end++;
+        if (end > start) {
+          names.accept(new String(chars, start, end - start));
+        }
+        i = end;
+        typeStart = false;
+      } else if (c == 'T') {
+        //a type variable
+        while (i < length && chars[i] != ';') i++;
+        typeStart = false;
+      } else if (c == 'B' || c == 'C' || c == 'D' || c == 'F' || c == 'I' || c == 'J' || c == 'S' || c == 'Z' || c == 'V') {
+        i++;
+      } else {
+        typeStart = false;
+      }
+    }
+  }
+
+  /**
+   * Decodes a modified UTF8 entry into {@link #myChars}
+   * @return number of chars
+   */
+  private int decode(@NotNull final ByteBuffer buffer, final int offset) {
+    final int length = buffer.getShort(offset) & 0xFFFF;
+    if (myChars.length < length) myChars = new char[Math.max(length, myChars.length * 2)];
+
+    int chars = 0;
+    int pos = offset + 2;
+    final int end = pos + length;
+    while (pos < end) {
+      final int b = buffer.get(pos++) & 0xFF;
+      if (b < 0x80) {
+        myChars[chars++] = (char) b;
+      } else if ((b & 0xE0) == 0xC0) {
+        myChars[chars++] = (char) (((b & 0x1F) << 6) | (buffer.get(pos++) & 0x3F));
+      } else {
+        myChars[chars++] = (char) (((b & 0x0F) << 12) | ((buffer.get(pos++) & 0x3F) << 6) | (buffer.get(pos++) & 0x3F));
+      }
+    }
+    return chars;
+  }
+
+  private void ensureCapacity(final int count) {
+    if (myUtf8.length >= count) return;
+    final int size = Math.max(count, myUtf8.length * 2);
+    myUtf8 = new int[size];
+    myClasses = new int[size];
+    myNotTypes = new boolean[size];
+  }
+}
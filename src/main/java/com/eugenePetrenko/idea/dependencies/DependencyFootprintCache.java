@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.roots.OrderEntry;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.InheritanceUtil;
+import com.intellij.util.containers.ConcurrentIntObjectMap;
+import com.intellij.util.containers.ContainerUtil;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers order entries of a class and of all its supertypes.
+ * The cache is shared by all modules of one analysis run,
+ * and must be called under Read lock.
+ * Classes are identified by qualified name and the root that contains them.
+ * Owners are also kept as bit sets of the run universe, so that usages
+ * are merged without iterating order entries
+ */
+public class DependencyFootprintCache {
+  /**
+   * Order entries of a class and its supertypes,
+   * and IDs of project source files where these classes are declared
+   */
+  public static class Footprint {
+    private final List<OrderEntry> myOwners;
+    private final LibOrModuleSet myTargets;
+    private final int[] mySourceFiles;
+
+    private Footprint(@NotNull final List<OrderEntry> owners,
+                      @NotNull final LibOrModuleSet targets,
+                      @NotNull final int[] sourceFiles) {
+      myOwners = owners;
+      myTargets = targets;
+      mySourceFiles = sourceFiles;
+    }
+
+    @NotNull
+    public List<OrderEntry> getOwners() {
+      return myOwners;
+    }
+
+    /**
+     * @return shared set of the owners, must not be modified
+     */
+    @NotNull
+    public LibOrModuleSet getTargets() {
+      return myTargets;
+    }
+
+    @NotNull
+    public int[] getSourceFiles() {
+      return mySourceFiles;
+    }
+  }
+
+  private final OrderEntryLookup myLookup;
+  private final DependencyUniverse myUniverse;
+  private final ConcurrentMap<Pair<String, Pair<VirtualFile, VirtualFile>>, Footprint> myFootprints = new ConcurrentHashMap<>();
+  private final ConcurrentIntObjectMap<LibOrModuleSet> myFileTargets = ContainerUtil.createConcurrentIntObjectMap();
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+
+  public DependencyFootprintCache(@NotNull final OrderEntryLookup lookup, @NotNull final DependencyUniverse universe) {
+    myLookup = lookup;
+    myUniverse = universe;
+  }
+
+  /**
+   * @param clazz resolved class
+   * @return order entries of the class and all its supertypes
+   */
+  @NotNull
+  public Footprint getFootprint(@NotNull final PsiClass clazz) {
+    final Pair<String, Pair<VirtualFile, VirtualFile>> key = createKey(clazz);
+    if (key == null) return computeFootprint(clazz);
+
+    final Footprint cached = myFootprints.get(key);
+    if (cached != null) {
+      myHits.incrementAndGet();
+      return cached;
+    }
+
+    myMisses.incrementAndGet();
+    final Footprint computed = computeFootprint(clazz);
+    final Footprint existing = myFootprints.putIfAbsent(key, computed);
+    return existing != null ? existing : computed;
+  }
+
+  /**
+   * @param virtual resolved file
+   * @return order entries of the file
+   */
+  @NotNull
+  public Collection<OrderEntry> getOrderEntries(@NotNull final VirtualFile virtual) {
+    return myLookup.getOwners(virtual);
+  }
+
+  /**
+   * @param virtual resolved file
+   * @return shared set of order entries of the file, must not be modified
+   */
+  @NotNull
+  public LibOrModuleSet getTargets(@NotNull final VirtualFile virtual) {
+    if (!(virtual instanceof VirtualFileWithId)) return toTargets(getOrderEntries(virtual));
+
+    final int id = ((VirtualFileWithId) virtual).getId();
+    final LibOrModuleSet cached = myFileTargets.get(id);
+    if (cached != null) return cached;
+
+    final LibOrModuleSet targets = toTargets(getOrderEntries(virtual));
+    final LibOrModuleSet existing = myFileTargets.putIfAbsent(id, targets);
+    return existing != null ? existing : targets;
+  }
+
+  /**
+   * @return true if the file is a source file of the project rather than a library file
+   */
+  public boolean isProjectSource(@NotNull final VirtualFile virtual) {
+    return myLookup.getIndex().isInSourceContent(virtual);
+  }
+
+  public long getHits() {
+    return myHits.get();
+  }
+
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  @Nullable
+  private Pair<String, Pair<VirtualFile, VirtualFile>> createKey(@NotNull final PsiClass clazz) {
+    final String name = clazz.getQualifiedName();
+    if (name == null) return null;
+
+    final VirtualFile file = getVirtualFile(clazz);
+    if (file == null) return null;
+
+    final Pair<VirtualFile, VirtualFile> roots = myLookup.getRoots(file);
+    if (roots == null) return null;
+
+    return Pair.create(name, roots);
+  }
+
+  @NotNull
+  private Footprint computeFootprint(@NotNull final PsiClass clazz) {
+    final Set<OrderEntry> result = new LinkedHashSet<>();
+    final IntOpenHashSet sources = new IntOpenHashSet();
+    InheritanceUtil.processSupers(clazz, true, psiClass -> {
+      final VirtualFile file = getVirtualFile(psiClass);
+      if (file != null) {
+        result.addAll(getOrderEntries(file));
+        if (file instanceof VirtualFileWithId && isProjectSource(file)) {
+          sources.add(((VirtualFileWithId) file).getId());
+        }
+      }
+      return true;
+    });
+    return new Footprint(List.copyOf(result), toTargets(result), sources.toIntArray());
+  }
+
+  @NotNull
+  private LibOrModuleSet toTargets(@NotNull final Collection<OrderEntry> owners) {
+    final LibOrModuleSet targets = new LibOrModuleSet(myUniverse);
+    targets.addDependencies(owners);
+    return targets;
+  }
+
+  @Nullable
+  private static VirtualFile getVirtualFile(@NotNull final PsiClass clazz) {
+    final PsiFile file = clazz.getContainingFile();
+    if (file == null) return null;
+    if (!file.isValid()) return null;
+
+    final VirtualFile virtual = file.getVirtualFile();
+    if (virtual == null) return null;
+    if (!virtual.isValid()) return null;
+    return virtual;
+  }
+
+  @Override
+  public String toString() {
+    return "DependencyFootprintCache{" +
+            "size=" + myFootprints.size() +
+            ", files=" + myFileTargets.size() +
+            ", hits=" + myHits +
+            ", misses=" + myMisses +
+            '}';
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.openapi.extensions.ExtensionPointName;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiReference;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Language-specific source of references for the dependencies search.
+ * An extractor reports only references that may resolve to classes and other
+ * declarations of dependencies, so the search does not ask every PSI element for references.
+ * Files of languages without an extractor are processed with {@link GenericReferenceExtractor}
+ */
+public interface DependencyReferenceExtractor {
+  ExtensionPointName<DependencyReferenceExtractor> EP_NAME = ExtensionPointName.create("com.eugenePetrenko.idea.dependencies.referenceExtractor");
+
+  /**
+   * Receives references of a file, called under Read lock
+   */
+  interface ReferenceSink {
+    /**
+     * Extractors call it for every visited element, it checks for cancellation
+     * @return true if the rest of the file does not need to be processed
+     */
+    boolean isDone();
+
+    void reference(@NotNull PsiReference reference);
+  }
+
+  boolean isApplicable(@NotNull PsiFile file);
+
+  void processReferences(@NotNull PsiFile file, @NotNull ReferenceSink sink);
+
+  /**
+   * @return extractor for the file
+   */
+  @NotNull
+  static DependencyReferenceExtractor forFile(@NotNull final PsiFile file) {
+    for (DependencyReferenceExtractor extractor : EP_NAME.getExtensionList()) {
+      if (extractor.isApplicable(file)) return extractor;
+    }
+    return GenericReferenceExtractor.INSTANCE;
+  }
+}
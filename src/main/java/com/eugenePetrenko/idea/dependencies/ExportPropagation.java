@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Propagates usages along exported module dependencies to a fixpoint.
+ * <p>
+ * A demand of a module is everything used by modules that see it,
+ * either directly or through a chain of exported dependencies:
+ * D(M) = &cup;<sub>Y&rarr;M</sub> U(Y) &cup; &cup;<sub>Y&rarr;M exported</sub> D(Y).
+ * <p>
+ * Modules of each strongly connected component of exported edges share the same demand,
+ * components are processed in topological order, so that every edge costs one bitset union
+ */
+public class ExportPropagation {
+  /**
+   * @param exports exported edges, {@code exports[y]} are modules that module {@code y} exports
+   * @param demand  initial demand of modules, that is updated to the fixpoint.
+   *                Modules of the same cycle end up with the same set instance
+   */
+  public static void propagate(@NotNull final int[][] exports,
+                               @NotNull final LibOrModuleSet[] demand) {
+    final int[] components = new int[exports.length];
+    final int[] order = topologicalComponents(exports, components);
+
+    //the first module of the component collects the component demand
+    final int[] leaders = new int[exports.length];
+    Arrays.fill(leaders, -1);
+    for (int node : order) {
+      final int component = components[node];
+      if (leaders[component] < 0) {
+        leaders[component] = node;
+      } else {
+        demand[leaders[component]].addDependencies(demand[node]);
+      }
+    }
+
+    for (int node : order) {
+      final LibOrModuleSet set = demand[leaders[components[node]]];
+      demand[node] = set;
+
+      for (int target : exports[node]) {
+        if (components[target] == components[node]) continue;
+        demand[leaders[components[target]]].addDependencies(set);
+      }
+    }
+  }
+
+  /**
+   * Iterative Tarjan algorithm
+   *
+   * @param components filled with component IDs of nodes
+   * @return nodes ordered so that components go in topological order
+   */
+  @NotNull
+  private static int[] topologicalComponents(@NotNull final int[][] edges,
+                                             @NotNull final int[] components) {
+    final int n = edges.length;
+    final int[] index = new int[n];
+    final int[] lowLink = new int[n];
+    final int[] nextEdge = new int[n];
+    final boolean[] onStack = new boolean[n];
+    final int[] stack = new int[n];
+    final int[] callStack = new int[n];
+    final int[] result = new int[n];
+    Arrays.fill(index, -1);
+
+    int nextIndex = 0;
+    int stackSize = 0;
+    int resultSize = n;
+    int componentsCount = 0;
+
+    for (int root = 0; root < n; root++) {
+      if (index[root] >= 0) continue;
+
+      int callSize = 0;
+      callStack[callSize++] = root;
+      index[root] = lowLink[root] = nextIndex++;
+      stack[stackSize++] = root;
+      onStack[root] = true;
+
+      while (callSize > 0) {
+        final int node = callStack[callSize - 1];
+        if (nextEdge[node] < edges[node].length) {
+          final int target = edges[node][nextEdge[node]++];
+          if (index[target] < 0) {
+            index[target] = lowLink[target] = nextIndex++;
+            stack[stackSize++] = target;
+            onStack[target] = true;
+            callStack[callSize++] = target;
+          } else if (onStack[target]) {
+            lowLink[node] = Math.min(lowLink[node], index[target]);
+          }
+          continue;
+        }
+
+        callSize--;
+        if (callSize > 0) {
+          final int parent = callStack[callSize - 1];
+          lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+        }
+        if (lowLink[node] != index[node]) continue;
+
+        //components are completed in reverse topological order
+        final int component = componentsCount++;
+        int member;
+        do {
+          member = stack[--stackSize];
+          onStack[member] = false;
+          components[member] = component;
+          result[--resultSize] = member;
+        } while (member != node);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes files from the shared queue in batches.
+ * Tasks are either all known in advance or streamed while workers run.
+ * A batch is processed under one read action that gives way to pending write actions.
+ * The interrupted file is restarted once the write action is done, while files
+ * completed before the interruption are kept. The batch size adapts to keep
+ * every read action short
+ */
+class FileBatchWorker {
+  private static final long TARGET_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int MAX_BATCH_SIZE = 64;
+
+  /**
+   * Called under Read lock for every file task
+   */
+  interface FileProcessor {
+    void process(@NotNull FileTask task);
+
+    /**
+     * Called under Read lock once a batch of files is processed
+     */
+    default void batchProcessed() {
+    }
+  }
+
+  /**
+   * Source of file tasks, shared by all workers
+   */
+  interface TaskQueue {
+    /**
+     * Moves next tasks to the buffer, waits while no task is ready
+     * @return number of moved tasks, 0 if there are no more tasks
+     */
+    int poll(@NotNull FileTask[] buffer, int max);
+
+    /**
+     * @return number of all tasks or -1 if it is not known yet
+     */
+    int getTotal();
+  }
+
+  private final ProgressIndicator myIndicator;
+  private final TaskQueue myQueue;
+  private final FileProcessor myProcessor;
+  private final AtomicInteger myProcessed = new AtomicInteger();
+  private final AtomicInteger myInterruptions = new AtomicInteger();
+
+  private FileBatchWorker(@NotNull final ProgressIndicator indicator,
+                          @NotNull final TaskQueue queue,
+                          @NotNull final FileProcessor processor) {
+    myIndicator = indicator;
+    myQueue = queue;
+    myProcessor = processor;
+  }
+
+  /**
+   * Processes all tasks concurrently
+   * @param maxThreads maximum number of workers, 0 for the number of processors
+   * @return number of read actions that were interrupted by write actions
+   */
+  public static int processAll(@NotNull final ProgressIndicator indicator,
+                               @NotNull final List<FileTask> tasks,
+                               final int maxThreads,
+                               @NotNull final FileProcessor processor) {
+    return processAll(indicator, new ListQueue(tasks), maxThreads, processor);
+  }
+
+  /**
+   * Processes tasks concurrently until the queue has no more tasks
+   * @param maxThreads maximum number of workers, 0 for the number of processors
+   * @return number of read actions that were interrupted by write actions
+   */
+  public static int processAll(@NotNull final ProgressIndicator indicator,
+                               @NotNull final TaskQueue queue,
+                               final int maxThreads,
+                               @NotNull final FileProcessor processor) {
+    final FileBatchWorker worker = new FileBatchWorker(indicator, queue, processor);
+    final int cpus = maxThreads > 0 ? maxThreads : Runtime.getRuntime().availableProcessors();
+    final int threads = Math.max(1, queue.getTotal() < 0 ? cpus : Math.min(cpus, queue.getTotal()));
+    if (threads == 1) {
+      //the only worker runs in the calling thread
+      worker.run();
+      return worker.myInterruptions.get();
+    }
+
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+            Collections.nCopies(threads, worker),
+            indicator,
+            w -> {
+              w.run();
+              return true;
+            }
+    );
+    return worker.myInterruptions.get();
+  }
+
+  private void run() {
+    final FileTask[] batch = new FileTask[MAX_BATCH_SIZE];
+    int batchSize = 1;
+
+    while (true) {
+      myIndicator.checkCanceled();
+
+      final int to = myQueue.poll(batch, batchSize);
+      if (to == 0) return;
+
+      final long start = System.nanoTime();
+      int done = 0;
+      while (done < to) {
+        final int batchFrom = done;
+        final int[] next = {done};
+
+        final boolean completed = ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(() -> {
+          for (int i = batchFrom; i < to; i++) {
+            myProcessor.process(batch[i]);
+            next[0] = i + 1;
+            fileProcessed();
+          }
+          myProcessor.batchProcessed();
+        }, new SensitiveProgressWrapper(myIndicator));
+
+        done = next[0];
+        if (!completed) {
+          //either the user has cancelled or a write action is pending
+          myIndicator.checkCanceled();
+          myInterruptions.incrementAndGet();
+          ProgressIndicatorUtils.yieldToPendingWriteActions();
+        }
+      }
+
+      final long elapsed = System.nanoTime() - start;
+      if (elapsed < TARGET_BATCH_NANOS / 2) {
+        batchSize = Math.min(MAX_BATCH_SIZE, batchSize * 2);
+      } else if (elapsed > TARGET_BATCH_NANOS * 2) {
+        batchSize = Math.max(1, batchSize / 2);
+      }
+    }
+  }
+
+  private void fileProcessed() {
+    final int processed = myProcessed.incrementAndGet();
+    final int total = myQueue.getTotal();
+    //the progress of streamed tasks is shown once all of them are known
+    if (total > 0) myIndicator.setFraction((double) processed / total);
+  }
+
+  /**
+   * Tasks that are all known in advance
+   */
+  private static class ListQueue implements TaskQueue {
+    private final FileTask[] myTasks;
+    private final AtomicInteger myNext = new AtomicInteger();
+
+    private ListQueue(@NotNull final List<FileTask> tasks) {
+      myTasks = tasks.toArray(new FileTask[0]);
+    }
+
+    @Override
+    public int poll(@NotNull final FileTask[] buffer, final int max) {
+      final int from = myNext.getAndAdd(max);
+      if (from >= myTasks.length) return 0;
+      final int to = Math.min(from + max, myTasks.length);
+      System.arraycopy(myTasks, from, buffer, 0, to - from);
+      return to - from;
+    }
+
+    @Override
+    public int getTotal() {
+      return myTasks.length;
+    }
+  }
+}
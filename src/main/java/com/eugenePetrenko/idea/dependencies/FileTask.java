@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A file of a module to be analyzed
+ */
+class FileTask {
+  private final ModuleSearch mySearch;
+  private final VirtualFile myFile;
+
+  FileTask(@NotNull final ModuleSearch search, @NotNull final VirtualFile file) {
+    mySearch = search;
+    myFile = file;
+  }
+
+  @NotNull
+  public ModuleSearch getSearch() {
+    return mySearch;
+  }
+
+  @NotNull
+  public VirtualFile getFile() {
+    return myFile;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue of file tasks that are added while workers process them.
+ * The producer waits while the queue is full, so enumeration does not run
+ * ahead of the analysis. A task added under Read lock never waits, as the workers
+ * may be waiting for a write action that waits for the Read lock, such tasks
+ * go over the bound instead
+ */
+class FileTaskStream implements FileBatchWorker.TaskQueue {
+  static final int DEFAULT_CAPACITY = 1024;
+  private static final long WAIT_MILLIS = 50;
+
+  private final ProgressIndicator myProducerIndicator;
+  private final ProgressIndicator myConsumerIndicator;
+  private final BlockingQueue<FileTask> myQueue;
+  private final Queue<FileTask> myOverflow = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger myAdded = new AtomicInteger();
+  private final AtomicInteger myOverflows = new AtomicInteger();
+  private volatile boolean myClosed;
+
+  /**
+   * @param producerIndicator progress of the thread that adds tasks
+   * @param consumerIndicator progress of the workers
+   */
+  FileTaskStream(@NotNull final ProgressIndicator producerIndicator,
+                 @NotNull final ProgressIndicator consumerIndicator,
+                 final int capacity) {
+    myProducerIndicator = producerIndicator;
+    myConsumerIndicator = consumerIndicator;
+    myQueue = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * Adds the task, waits while the queue is full
+   */
+  public void put(@NotNull final FileTask task) {
+    myAdded.incrementAndGet();
+    if (ApplicationManager.getApplication().isReadAccessAllowed()) {
+      if (!myQueue.offer(task)) {
+        myOverflows.incrementAndGet();
+        myOverflow.add(task);
+      }
+      return;
+    }
+
+    try {
+      while (!myQueue.offer(task, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+        myProducerIndicator.checkCanceled();
+      }
+    } catch (InterruptedException e) {
+      throw new ProcessCanceledException(e);
+    }
+  }
+
+  /**
+   * Called once all tasks are added, or the producer has failed
+   */
+  public void close() {
+    myClosed = true;
+  }
+
+  @Override
+  public int poll(@NotNull final FileTask[] buffer, final int max) {
+    FileTask first = poll();
+    try {
+      while (first == null) {
+        //all tasks were added before the stream was closed
+        if (myClosed && myQueue.isEmpty() && myOverflow.isEmpty()) return 0;
+        myConsumerIndicator.checkCanceled();
+        first = myQueue.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      throw new ProcessCanceledException(e);
+    }
+
+    buffer[0] = first;
+    int count = 1;
+    while (count < max) {
+      final FileTask next = poll();
+      if (next == null) break;
+      buffer[count++] = next;
+    }
+    return count;
+  }
+
+  @Override
+  public int getTotal() {
+    return myClosed ? myAdded.get() : -1;
+  }
+
+  @Nullable
+  private FileTask poll() {
+    final FileTask overflow = myOverflow.poll();
+    return overflow != null ? overflow : myQueue.poll();
+  }
+
+  @Override
+  public String toString() {
+    return "FileTaskStream{" +
+            "added=" + myAdded +
+            ", overflows=" + myOverflows +
+            '}';
+  }
+}
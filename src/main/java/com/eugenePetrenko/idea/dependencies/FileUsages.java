@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Usages collected from one or more files. Optionally tracks
+ * project source files that the usages were resolved to,
+ * which is needed to tell if a stored footprint is still valid.
+ * An instance is reused by one thread for all its files, see {@link #reset}
+ */
+class FileUsages {
+  private final IntOpenHashSet mySourceFiles = new IntOpenHashSet();
+  private LibOrModuleSet myUsages;
+  private boolean myTrackSourceFiles;
+
+  FileUsages() {
+  }
+
+  FileUsages(@NotNull final LibOrModuleSet usages, final boolean trackSourceFiles) {
+    reset(usages, trackSourceFiles);
+  }
+
+  /**
+   * Starts collecting into the given set, tracked source files are forgotten
+   */
+  public void reset(@NotNull final LibOrModuleSet usages, final boolean trackSourceFiles) {
+    myUsages = usages;
+    myTrackSourceFiles = trackSourceFiles;
+    mySourceFiles.clear();
+  }
+
+  @NotNull
+  public LibOrModuleSet getUsages() {
+    return myUsages;
+  }
+
+  @NotNull
+  public int[] getSourceFiles() {
+    return mySourceFiles.toIntArray();
+  }
+
+  public void addFootprint(@NotNull final DependencyFootprintCache.Footprint footprint) {
+    myUsages.addDependencies(footprint.getTargets());
+    if (!myTrackSourceFiles) return;
+    for (int id : footprint.getSourceFiles()) {
+      mySourceFiles.add(id);
+    }
+  }
+
+  public void addUsage(@NotNull final LibOrModuleSet targets, @NotNull final VirtualFile file, final boolean isProjectSource) {
+    myUsages.addDependencies(targets);
+    if (!myTrackSourceFiles) return;
+    if (isProjectSource && file instanceof VirtualFileWithId) {
+      mySourceFiles.add(((VirtualFileWithId) file).getId());
+    }
+  }
+
+  public boolean isTrackingSourceFiles() {
+    return myTrackSourceFiles;
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.eugenePetrenko.idea.dependencies.ui.Comparators;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.impl.libraries.LibraryEx;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.roots.libraries.LibraryTable;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.openapi.vfs.newvfs.ManagingFS;
+import com.intellij.util.io.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Disk-backed store of per-file usages for incremental analysis.
+ * A stored footprint is keyed by file ID and is valid while the file
+ * and all project source files its references were resolved to have
+ * the same time stamps. The whole store is dropped once module or
+ * library roots or module order entries change, footprints of deleted
+ * files are pruned once the store is opened.
+ * Footprints refer to modules and libraries by name, since IDs of
+ * {@link DependencyUniverse} are not stable between runs.
+ * Files with unsaved changes are neither loaded nor saved, and the store
+ * of a project is used by one analysis run at a time
+ */
+class FootprintStore implements Closeable {
+  private static final Logger LOG = Logger.getInstance(FootprintStore.class);
+  private static final int VERSION = 1;
+  /** stores that are open by running analyses */
+  private static final Set<Path> ourOpenStores = ConcurrentHashMap.newKeySet();
+
+  private final Path myMapFile;
+  private final PersistentHashMap<Integer, StoredFootprint> myMap;
+  private final Map<String, Module> myModules;
+  private final Map<String, Library> myLibraries;
+  private final Map<Library, String> myLibraryKeys;
+
+  private FootprintStore(@NotNull final Path mapFile,
+                         @NotNull final PersistentHashMap<Integer, StoredFootprint> map,
+                         @NotNull final Map<String, Module> modules,
+                         @NotNull final Map<String, Library> libraries) {
+    myMapFile = mapFile;
+    myMap = map;
+    myModules = modules;
+    myLibraries = libraries;
+    myLibraryKeys = new HashMap<>();
+    for (Map.Entry<String, Library> e : libraries.entrySet()) {
+      myLibraryKeys.put(e.getValue(), e.getKey());
+    }
+  }
+
+  /**
+   * Opens the store of the project, the store is cleared if
+   * module or library roots were changed since the store was written
+   * @return store or null if the store cannot be opened or is used by another analysis run
+   */
+  @Nullable
+  public static FootprintStore open(@NotNull final Project project) {
+    final Map<String, Module> modules = new HashMap<>();
+    final Map<String, Library> libraries = new HashMap<>();
+    final String fingerprint = ApplicationManager.getApplication().runReadAction((Computable<String>) () -> collectRoots(project, modules, libraries));
+
+    final Path dir = Paths.get(PathManager.getSystemPath(), "jonnyzzz.dependencies", project.getLocationHash());
+    final Path mapFile = dir.resolve("footprints");
+    final Path fingerprintFile = dir.resolve("fingerprint");
+
+    //two runs must not open the same map, the run that comes second is not incremental
+    if (!ourOpenStores.add(mapFile)) {
+      LOG.info("Dependencies footprint store at " + dir + " is used by another analysis");
+      return null;
+    }
+
+    boolean opened = false;
+    try {
+      Files.createDirectories(dir);
+      final String stored = Files.exists(fingerprintFile) ? new String(Files.readAllBytes(fingerprintFile), StandardCharsets.UTF_8) : null;
+      if (!fingerprint.equals(stored)) {
+        IOUtil.deleteAllFilesStartingWith(mapFile.toFile());
+        Files.write(fingerprintFile, fingerprint.getBytes(StandardCharsets.UTF_8));
+      }
+      final FootprintStore store = new FootprintStore(mapFile, openMap(mapFile), modules, libraries);
+      opened = true;
+      ApplicationManager.getApplication().runReadAction(store::pruneDeletedFiles);
+      return store;
+    } catch (IOException e) {
+      LOG.warn("Failed to open dependencies footprint store at " + dir + ". " + e.getMessage(), e);
+      return null;
+    } finally {
+      if (!opened) ourOpenStores.remove(mapFile);
+    }
+  }
+
+  @NotNull
+  private static PersistentHashMap<Integer, StoredFootprint> openMap(@NotNull final Path mapFile) throws IOException {
+    try {
+      return new PersistentHashMap<>(mapFile, EnumeratorIntegerDescriptor.INSTANCE, new StoredFootprintExternalizer(), 4096, VERSION);
+    } catch (IOException e) {
+      //the store is just a cache, start from scratch if it is corrupted
+      IOUtil.deleteAllFilesStartingWith(mapFile.toFile());
+      return new PersistentHashMap<>(mapFile, EnumeratorIntegerDescriptor.INSTANCE, new StoredFootprintExternalizer(), 4096, VERSION);
+    }
+  }
+
+  /**
+   * Removes footprints of files that no longer exist,
+   * otherwise the store grows with every deleted file
+   */
+  private void pruneDeletedFiles() {
+    final ManagingFS fs = ManagingFS.getInstance();
+    try {
+      final List<Integer> deleted = new ArrayList<>();
+      myMap.processKeysWithExistingMapping(id -> {
+        final VirtualFile file = fs.findFileById(id);
+        if (file == null || !file.isValid()) deleted.add(id);
+        return true;
+      });
+      for (Integer id : deleted) {
+        myMap.remove(id);
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to prune dependencies footprint store. " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Collects modules and libraries by their names
+   * @return fingerprint of all module and library roots and module order entries
+   */
+  @NotNull
+  private static String collectRoots(@NotNull final Project project,
+                                     @NotNull final Map<String, Module> modules,
+                                     @NotNull final Map<String, Library> libraries) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(VERSION).append('\n');
+    final Module[] sorted = ModuleManager.getInstance(project).getModules().clone();
+    Arrays.sort(sorted, Comparators.MODULE_COMPARATOR);
+
+    for (Module module : sorted) {
+      modules.put(module.getName(), module);
+      sb.append("module:").append(module.getName()).append('\n');
+      for (String url : ModuleRootManager.getInstance(module).getSourceRootUrls()) {
+        sb.append("  source:").append(url).append('\n');
+      }
+
+      for (OrderEntry e : ModuleRootManager.getInstance(module).getOrderEntries()) {
+        //order, scope and export of dependencies change resolve results
+        sb.append("  entry:").append(orderEntryKey(e)).append('\n');
+        if (!(e instanceof LibraryOrderEntry)) continue;
+        final Library library = ((LibraryOrderEntry) e).getLibrary();
+        if (library == null) continue;
+
+        final String key = libraryKey(library);
+        if (libraries.put(key, library) != null) continue;
+
+        sb.append("library:").append(key).append('\n');
+        for (VirtualFile root : library.getFiles(OrderRootType.CLASSES)) {
+          //a rebuilt jar has the same url, so the time stamp is included
+          sb.append("  classes:").append(root.getUrl()).append(':').append(root.getTimeStamp()).append('\n');
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  private static String orderEntryKey(@NotNull final OrderEntry e) {
+    final String target;
+    if (e instanceof ModuleOrderEntry) {
+      target = "module:" + ((ModuleOrderEntry) e).getModuleName();
+    } else if (e instanceof LibraryOrderEntry) {
+      final Library library = ((LibraryOrderEntry) e).getLibrary();
+      target = "library:" + (library != null ? libraryKey(library) : ((LibraryOrderEntry) e).getLibraryName());
+    } else if (e instanceof JdkOrderEntry) {
+      target = "jdk:" + ((JdkOrderEntry) e).getJdkName();
+    } else if (e instanceof ModuleSourceOrderEntry) {
+      target = "source";
+    } else {
+      target = e.getClass().getSimpleName() + ":" + e.getPresentableName();
+    }
+
+    if (!(e instanceof ExportableOrderEntry)) return target;
+    final ExportableOrderEntry exportable = (ExportableOrderEntry) e;
+    return target + ":" + exportable.getScope() + (exportable.isExported() ? ":exported" : "");
+  }
+
+  @NotNull
+  private static String libraryKey(@NotNull final Library library) {
+    final LibraryTable table = library.getTable();
+    if (table != null) return table.getTableLevel() + ":" + library.getName();
+
+    final Module owner = library instanceof LibraryEx ? ((LibraryEx) library).getModule() : null;
+    final String name = library.getName() != null ? library.getName() : String.join(",", library.getUrls(OrderRootType.CLASSES));
+    return "module:" + (owner == null ? "" : owner.getName()) + ":" + name;
+  }
+
+  /**
+   * Must be called under Read lock
+   * @return stored usages of the file or null if there are no valid usages stored
+   */
+  @Nullable
+  public LibOrModuleSet load(@NotNull final VirtualFile file, @NotNull final DependencyUniverse universe) {
+    if (!(file instanceof VirtualFileWithId)) return null;
+    //the analysis sees unsaved changes, the stored footprint is of the saved file
+    final FileDocumentManager documents = FileDocumentManager.getInstance();
+    if (documents.isFileModified(file)) return null;
+
+    final StoredFootprint stored;
+    try {
+      stored = myMap.get(((VirtualFileWithId) file).getId());
+    } catch (IOException e) {
+      LOG.debug("Failed to read footprint of " + file + ". " + e.getMessage(), e);
+      return null;
+    }
+    if (stored == null) return null;
+    if (stored.myTimeStamp != file.getTimeStamp() || stored.myLength != file.getLength()) return null;
+
+    final ManagingFS fs = ManagingFS.getInstance();
+    for (int i = 0; i < stored.mySourceFiles.length; i++) {
+      final VirtualFile source = fs.findFileById(stored.mySourceFiles[i]);
+      if (source == null || !source.isValid()) return null;
+      if (source.getTimeStamp() != stored.mySourceStamps[i] || documents.isFileModified(source)) return null;
+    }
+
+    final LibOrModuleSet result = new LibOrModuleSet(universe);
+    for (String name : stored.myModules) {
+      final Module module = myModules.get(name);
+      if (module == null) return null;
+      result.addDependency(module);
+    }
+    for (String key : stored.myLibraries) {
+      final Library library = myLibraries.get(key);
+      if (library == null) return null;
+      result.addDependency(library);
+    }
+    return result;
+  }
+
+  /**
+   * Must be called under Read lock
+   * @param file analyzed file
+   * @param usages complete usages of the file
+   */
+  public void save(@NotNull final VirtualFile file, @NotNull final FileUsages usages) {
+    if (!(file instanceof VirtualFileWithId)) return;
+    //usages of unsaved changes do not match the time stamp of the saved file
+    final FileDocumentManager documents = FileDocumentManager.getInstance();
+    if (documents.isFileModified(file)) return;
+    final int fileId = ((VirtualFileWithId) file).getId();
+
+    final ManagingFS fs = ManagingFS.getInstance();
+    final int[] sources = Arrays.stream(usages.getSourceFiles()).filter(id -> id != fileId).toArray();
+    final long[] stamps = new long[sources.length];
+    for (int i = 0; i < sources.length; i++) {
+      final VirtualFile source = fs.findFileById(sources[i]);
+      if (source == null || documents.isFileModified(source)) return;
+      stamps[i] = source.getTimeStamp();
+    }
+
+    final List<String> modules = new ArrayList<>();
+    for (Module module : usages.getUsages().getModules()) {
+      modules.add(module.getName());
+    }
+    final List<String> libraries = new ArrayList<>();
+    for (Library library : usages.getUsages().getLibraries()) {
+      final String key = myLibraryKeys.get(library);
+      //the library is not known to the store, it cannot be loaded back
+      if (key == null) return;
+      libraries.add(key);
+    }
+
+    try {
+      myMap.put(fileId, new StoredFootprint(file.getTimeStamp(), file.getLength(),
+              modules.toArray(new String[0]), libraries.toArray(new String[0]), sources, stamps));
+    } catch (IOException e) {
+      LOG.debug("Failed to write footprint of " + file + ". " + e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      myMap.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close dependencies footprint store. " + e.getMessage(), e);
+    } finally {
+      ourOpenStores.remove(myMapFile);
+    }
+  }
+
+  private static class StoredFootprint {
+    private final long myTimeStamp;
+    private final long myLength;
+    private final String[] myModules;
+    private final String[] myLibraries;
+    private final int[] mySourceFiles;
+    private final long[] mySourceStamps;
+
+    private StoredFootprint(final long timeStamp,
+                            final long length,
+                            @NotNull final String[] modules,
+                            @NotNull final String[] libraries,
+                            @NotNull final int[] sourceFiles,
+                            @NotNull final long[] sourceStamps) {
+      myTimeStamp = timeStamp;
+      myLength = length;
+      myModules = modules;
+      myLibraries = libraries;
+      mySourceFiles = sourceFiles;
+      mySourceStamps = sourceStamps;
+    }
+  }
+
+  private static class StoredFootprintExternalizer implements DataExternalizer<StoredFootprint> {
+    @Override
+    public void save(@NotNull DataOutput out, StoredFootprint value) throws IOException {
+      DataInputOutputUtil.writeLONG(out, value.myTimeStamp);
+      DataInputOutputUtil.writeLONG(out, value.myLength);
+      writeStrings(out, value.myModules);
+      writeStrings(out, value.myLibraries);
+      DataInputOutputUtil.writeINT(out, value.mySourceFiles.length);
+      for (int i = 0; i < value.mySourceFiles.length; i++) {
+        DataInputOutputUtil.writeINT(out, value.mySourceFiles[i]);
+        DataInputOutputUtil.writeLONG(out, value.mySourceStamps[i]);
+      }
+    }
+
+    @Override
+    public StoredFootprint read(@NotNull DataInput in) throws IOException {
+      final long timeStamp = DataInputOutputUtil.readLONG(in);
+      final long length = DataInputOutputUtil.readLONG(in);
+      final String[] modules = readStrings(in);
+      final String[] libraries = readStrings(in);
+      final int sources = DataInputOutputUtil.readINT(in);
+      final int[] sourceFiles = new int[sources];
+      final long[] sourceStamps = new long[sources];
+      for (int i = 0; i < sources; i++) {
+        sourceFiles[i] = DataInputOutputUtil.readINT(in);
+        sourceStamps[i] = DataInputOutputUtil.readLONG(in);
+      }
+      return new StoredFootprint(timeStamp, length, modules, libraries, sourceFiles, sourceStamps);
+    }
+
+    private static void writeStrings(@NotNull DataOutput out, @NotNull String[] values) throws IOException {
+      DataInputOutputUtil.writeINT(out, values.length);
+      for (String value : values) {
+        IOUtil.writeUTF(out, value);
+      }
+    }
+
+    @NotNull
+    private static String[] readStrings(@NotNull DataInput in) throws IOException {
+      final String[] values = new String[DataInputOutputUtil.readINT(in)];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = IOUtil.readUTF(in);
+      }
+      return values;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.psi.*;
+import org.jetbrains.annotations.NotNull;
+
+import static com.intellij.psi.PsiReferenceService.Hints.NO_HINTS;
+
+/**
+ * Asks every PSI element of a file for references, works for any language
+ */
+public class GenericReferenceExtractor implements DependencyReferenceExtractor {
+  public static final GenericReferenceExtractor INSTANCE = new GenericReferenceExtractor();
+  /** visitors are reused by the thread that analyzes files */
+  private static final ThreadLocal<ReferenceVisitor> VISITORS = ThreadLocal.withInitial(ReferenceVisitor::new);
+
+  @Override
+  public boolean isApplicable(@NotNull PsiFile file) {
+    return true;
+  }
+
+  @Override
+  public void processReferences(@NotNull final PsiFile file, @NotNull final ReferenceSink sink) {
+    final ReferenceVisitor cached = VISITORS.get();
+    //a sink may walk another file while the thread walks this one
+    final ReferenceVisitor visitor = cached.mySink == null ? cached : new ReferenceVisitor();
+    visitor.mySink = sink;
+    try {
+      file.accept(visitor);
+    } finally {
+      visitor.mySink = null;
+    }
+  }
+
+  private static class ReferenceVisitor extends PsiRecursiveElementVisitor {
+    private final PsiReferenceService myService = PsiReferenceService.getService();
+    private ReferenceSink mySink;
+
+    @Override
+    public void visitElement(final @NotNull PsiElement element) {
+      if (mySink.isDone()) return;
+      super.visitElement(element);
+
+      for (final PsiReference ref : myService.getReferences(element, NO_HINTS)) {
+        mySink.reference(ref);
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * The first phase of the two-phase analysis. Imports of module files are scanned
+ * without resolving, an imported class proves a dependency if exactly one
+ * of the module dependencies provides the class and no SDK does.
+ * Such an import would be resolved to the class of that dependency by the PSI analysis too.
+ * On-demand imports of nested classes prove their class in the same way, while
+ * on-demand imports of packages prove nothing, the PSI analysis does not count a package as a usage.
+ * Classes of modules are taken from Java source files, modules with sources of other
+ * languages may declare any class, so the phase is skipped for modules that can see them.
+ * Dependencies that are not proven are left to the saturated PSI analysis.
+ * Imports are read from {@link ImportsIndex} maintained by the IDE indexing
+ */
+class ImportPrescan {
+  private final Project myProject;
+  private final LibraryPackageIndex myLibraries;
+  private final ProjectSourceClasses mySources;
+  private int myProvenModules;
+  private int myIndexedFiles;
+
+  ImportPrescan(@NotNull final Project project, @NotNull final ProjectSourceClasses sources) {
+    myProject = project;
+    myLibraries = LibraryPackageIndex.getInstance(project);
+    myLibraries.ensureUpToDate();
+    mySources = sources;
+  }
+
+  /**
+   * @param files    source files of the module
+   * @param required dependencies to prove
+   * @return dependencies that are proven by imports of the module files
+   */
+  @NotNull
+  public LibOrModuleSet proveUsages(@NotNull final ProgressIndicator indicator,
+                                    @NotNull final Module module,
+                                    @NotNull final List<VirtualFile> files,
+                                    @NotNull final LibOrModuleSet required,
+                                    @NotNull final DependencyUniverse universe) {
+    final LibOrModuleSet proven = new LibOrModuleSet(universe);
+    if (isOpaque(module, required)) return proven;
+
+    final LibOrModuleSet production = collectVisible(module, true, universe);
+    final LibOrModuleSet tests = collectVisible(module, false, universe);
+    final ModuleFileIndex moduleIndex = ModuleRootManager.getInstance(module).getFileIndex();
+    final int total = required.getModuleIds().length + required.getLibraryIds().length;
+
+    for (VirtualFile file : files) {
+      indicator.checkCanceled();
+      if (!"java".equals(file.getExtension())) continue;
+
+      final Collection<String> imports = ApplicationManager.getApplication().runReadAction((Computable<Collection<String>>) () -> loadImports(file));
+      if (imports == null) continue;
+
+      final LibOrModuleSet visible = moduleIndex.isInTestSourceContent(file) ? tests : production;
+      for (String name : imports) {
+        //a package name has no class prefix, so only on-demand imports of nested classes are settled
+        final Object owner = findUniqueOwner(module, required, name.endsWith(ImportsIndex.ON_DEMAND)
+                ? name.substring(0, name.length() - ImportsIndex.ON_DEMAND.length())
+                : name);
+        if (owner instanceof Module && visible.contains((Module) owner)) proven.addDependency((Module) owner);
+        if (owner instanceof Library && visible.contains((Library) owner)) proven.addDependency((Library) owner);
+      }
+
+      //all dependencies are proven, other files cannot add anything
+      if (proven.getModuleIds().length + proven.getLibraryIds().length == total) break;
+    }
+
+    if (!proven.isEmpty()) myProvenModules++;
+    return proven;
+  }
+
+  /**
+   * @return number of modules with at least one dependency proven by imports
+   */
+  public int getProvenModules() {
+    return myProvenModules;
+  }
+
+  /**
+   * @return number of files which imports were taken from {@link ImportsIndex}
+   */
+  public int getIndexedFiles() {
+    return myIndexedFiles;
+  }
+
+  /**
+   * @param name imported name, may be a nested class name
+   * @return the only module or library among module dependencies and the module itself,
+   * that provides the top-level class of the name, or null if the name cannot be settled by imports
+   */
+  @Nullable
+  private Object findUniqueOwner(@NotNull final Module module,
+                                 @NotNull final LibOrModuleSet required,
+                                 @NotNull final String name) {
+    int end = name.indexOf('.');
+    while (true) {
+      final String prefix = end < 0 ? name : name.substring(0, end);
+      if (myLibraries.isSdkClass(prefix)) return null;
+
+      final List<Library> libraries = myLibraries.getClassOwners(prefix);
+      final List<Module> modules = mySources.getClassOwners(prefix);
+      if (!libraries.isEmpty() || !modules.isEmpty()) return uniqueOwner(module, required, libraries, modules);
+
+      if (end < 0) return null;
+      end = name.indexOf('.', end + 1);
+    }
+  }
+
+  @Nullable
+  private static Object uniqueOwner(@NotNull final Module module,
+                                    @NotNull final LibOrModuleSet required,
+                                    @NotNull final List<Library> libraries,
+                                    @NotNull final List<Module> modules) {
+    Object owner = null;
+    int count = 0;
+    for (Library library : libraries) {
+      if (!required.contains(library)) continue;
+      owner = library;
+      count++;
+    }
+    for (Module candidate : modules) {
+      if (candidate != module && !required.contains(candidate)) continue;
+      owner = candidate;
+      count++;
+    }
+    //classes of the module itself are not dependencies
+    return count == 1 && owner != module ? owner : null;
+  }
+
+  private boolean isOpaque(@NotNull final Module module, @NotNull final LibOrModuleSet required) {
+    if (mySources.isOpaque(module)) return true;
+    for (Module opaque : mySources.getOpaqueModules()) {
+      if (required.contains(opaque)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return dependencies visible to the compiler for production or test sources of the module
+   */
+  @NotNull
+  private static LibOrModuleSet collectVisible(@NotNull final Module module,
+                                               final boolean production,
+                                               @NotNull final DependencyUniverse universe) {
+    final LibOrModuleSet result = new LibOrModuleSet(universe);
+    ApplicationManager.getApplication().runReadAction(() -> {
+      OrderEnumerator enumerator = ModuleRootManager.getInstance(module).orderEntries().withoutSdk().withoutModuleSourceEntries().compileOnly();
+      if (production) enumerator = enumerator.productionOnly();
+      enumerator.recursively().exportedOnly().forEach(e -> {
+        result.addDependency(e);
+        return true;
+      });
+    });
+    return result;
+  }
+
+  /**
+   * Imports are taken from {@link ImportsIndex} if it is available,
+   * otherwise the file text is scanned
+   */
+  @Nullable
+  private Collection<String> loadImports(@NotNull final VirtualFile file) {
+    if (!file.isValid()) return null;
+    final Collection<String> indexed = ImportsIndex.getImports(myProject, file);
+    if (indexed != null) {
+      myIndexedFiles++;
+      return indexed;
+    }
+
+    //unsaved changes are seen by the PSI analysis too
+    final Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+    final CharSequence text = document != null ? document.getImmutableCharSequence() : LoadTextUtil.loadText(file);
+    final List<String> result = new ArrayList<>();
+    ImportScanner.scan(text, result::add, name -> result.add(name + ImportsIndex.ON_DEMAND));
+    return result;
+  }
+}
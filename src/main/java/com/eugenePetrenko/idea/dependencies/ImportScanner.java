@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Consumer;
+
+/**
+ * Syntax-only scanner of Java import statements.
+ * The scan stops at the first token after the imports, so the file body is never read.
+ * Single-type and static imports are reported as the name of the imported class,
+ * that may be a nested class name. Other on-demand imports, that is of packages
+ * or of nested classes, are reported separately if a consumer for them is given.
+ * Qualified names of the whole text are reported by {@link #scanQualifiedNames}
+ */
+class ImportScanner {
+  private final CharSequence myText;
+  private int myPos;
+
+  private ImportScanner(@NotNull final CharSequence text) {
+    myText = text;
+  }
+
+  /**
+   * @param text    Java source text
+   * @param imports receives imported class names
+   */
+  public static void scan(@NotNull final CharSequence text, @NotNull final Consumer<String> imports) {
+    new ImportScanner(text).scan(imports, null);
+  }
+
+  /**
+   * @param text     Java source text
+   * @param imports  receives imported class names
+   * @param packages receives names imported on demand except static imports, that is names of packages or classes
+   */
+  public static void scan(@NotNull final CharSequence text,
+                          @NotNull final Consumer<String> imports,
+                          @NotNull final Consumer<String> packages) {
+    new ImportScanner(text).scan(imports, packages);
+  }
+
+  /**
+   * Reports dot-separated names of the whole text that start with a lower-case
+   * segment, that is names that may be fully qualified class names.
+   * Comments, string and character literals are skipped
+   * @param text  Java source text
+   * @param names receives names with at least two segments
+   */
+  public static void scanQualifiedNames(@NotNull final CharSequence text, @NotNull final Consumer<String> names) {
+    new ImportScanner(text).scanQualifiedNames(names);
+  }
+
+  private void scanQualifiedNames(@NotNull final Consumer<String> names) {
+    final int length = myText.length();
+    while (true) {
+      skipSpaces();
+      if (myPos >= length) return;
+
+      final char c = myText.charAt(myPos);
+      if (c == '"' || c == '\'') {
+        skipLiteral(c);
+      } else if (Character.isJavaIdentifierStart(c)) {
+        final String name = readName();
+        if (name != null && name.indexOf('.') > 0 && Character.isLowerCase(name.charAt(0))) names.accept(name);
+      } else {
+        myPos++;
+      }
+    }
+  }
+
+  private void skipLiteral(final char quote) {
+    final int length = myText.length();
+    if (quote == '"' && myPos + 2 < length && myText.charAt(myPos + 1) == '"' && myText.charAt(myPos + 2) == '"') {
+      //a text block
+      final int end = indexOf("\"\"\"", myPos + 3);
+      myPos = end < 0 ? length : end + 3;
+      return;
+    }
+
+    myPos++;
+    while (myPos < length) {
+      final char c = myText.charAt(myPos++);
+      if (c == '\\') {
+        myPos++;
+      } else if (c == quote || c == '\n') {
+        return;
+      }
+    }
+  }
+
+  private void scan(@NotNull final Consumer<String> imports, @Nullable final Consumer<String> packages) {
+    String token = nextWord();
+    if ("package".equals(token)) {
+      if (readName() == null) return;
+      if (!skip(';')) return;
+      token = nextWord();
+    }
+
+    while ("import".equals(token)) {
+      String name = readName();
+      final boolean isStatic = "static".equals(name);
+      if (isStatic) name = readName();
+      if (name == null) return;
+
+      boolean onDemand = false;
+      if (skip('.')) {
+        if (!skip('*')) return;
+        onDemand = true;
+      }
+      if (!skip(';')) return;
+
+      if (isStatic) {
+        //the last segment of a single static import is a member name
+        final int dot = name.lastIndexOf('.');
+        imports.accept(onDemand || dot < 0 ? name : name.substring(0, dot));
+      } else if (!onDemand) {
+        imports.accept(name);
+      } else if (packages != null) {
+        packages.accept(name);
+      }
+      token = nextWord();
+    }
+  }
+
+  /**
+   * Reads a dot-separated name, the trailing {@code .*} is left in the input
+   * @return name or null if there is no name at the position
+   */
+  private String readName() {
+    final StringBuilder sb = new StringBuilder();
+    while (true) {
+      final String word = nextWord();
+      if (word == null) return null;
+      sb.append(word);
+
+      final int mark = myPos;
+      if (!skip('.')) return sb.toString();
+      skipSpaces();
+      if (myPos < myText.length() && myText.charAt(myPos) == '*') {
+        myPos = mark;
+        return sb.toString();
+      }
+      sb.append('.');
+    }
+  }
+
+  private String nextWord() {
+    skipSpaces();
+    final int start = myPos;
+    if (start >= myText.length() || !Character.isJavaIdentifierStart(myText.charAt(start))) return null;
+    while (myPos < myText.length() && Character.isJavaIdentifierPart(myText.charAt(myPos))) myPos++;
+    return myText.subSequence(start, myPos).toString();
+  }
+
+  private boolean skip(final char c) {
+    skipSpaces();
+    if (myPos >= myText.length() || myText.charAt(myPos) != c) return false;
+    myPos++;
+    return true;
+  }
+
+  private void skipSpaces() {
+    final int length = myText.length();
+    while (myPos < length) {
+      final char c = myText.charAt(myPos);
+      if (Character.isWhitespace(c) || c == '\uFEFF') {
+        myPos++;
+      } else if (c == '/' && myPos + 1 < length && myText.charAt(myPos + 1) == '/') {
+        while (myPos < length && myText.charAt(myPos) != '\n') myPos++;
+      } else if (c == '/' && myPos + 1 < length && myText.charAt(myPos + 1) == '*') {
+        final int end = indexOf("*/", myPos + 2);
+        myPos = end < 0 ? length : end + 2;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private int indexOf(@NotNull final String s, final int from) {
+    search:
+    for (int i = from; i + s.length() <= myText.length(); i++) {
+      for (int j = 0; j < s.length(); j++) {
+        if (myText.charAt(i + j) != s.charAt(j)) continue search;
+      }
+      return i;
+    }
+    return -1;
+  }
+}
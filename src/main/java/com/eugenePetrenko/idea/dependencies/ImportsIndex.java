@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Names a Java file refers to from its imports, collected by {@link ImportScanner}
+ * during the IDE indexing. Keys are imported class names and names of packages or classes
+ * imported on demand, the latter end with {@link #ON_DEMAND}.
+ * Qualified names from the code are not indexed, a text scan cannot tell
+ * them from chains of field accesses, so they cannot prove a dependency
+ */
+public class ImportsIndex extends ScalarIndexExtension<String> {
+  public static final ID<String, Void> NAME = ID.create("jonnyzzz.dependencies.imports");
+  public static final String ON_DEMAND = ".*";
+
+  @NotNull
+  @Override
+  public ID<String, Void> getName() {
+    return NAME;
+  }
+
+  @NotNull
+  @Override
+  public DataIndexer<String, Void, FileContent> getIndexer() {
+    return content -> {
+      final Map<String, Void> result = new HashMap<>();
+      ImportScanner.scan(content.getContentAsText(),
+              name -> result.put(name, null),
+              name -> result.put(name + ON_DEMAND, null));
+      return result;
+    };
+  }
+
+  @NotNull
+  @Override
+  public KeyDescriptor<String> getKeyDescriptor() {
+    return EnumeratorStringDescriptor.INSTANCE;
+  }
+
+  @Override
+  public int getVersion() {
+    return 1;
+  }
+
+  @NotNull
+  @Override
+  public FileBasedIndex.InputFilter getInputFilter() {
+    return new DefaultFileTypeSpecificInputFilter(JavaFileType.INSTANCE);
+  }
+
+  @Override
+  public boolean dependsOnFileContent() {
+    return true;
+  }
+
+  /**
+   * Imports of the file taken from the index. Call under Read lock
+   * @return imported class names and names of packages or classes imported on demand
+   * with the {@link #ON_DEMAND} suffix, or null if the index cannot be used now,
+   * i.e. in dumb mode or for a file with unsaved changes
+   */
+  @Nullable
+  public static Collection<String> getImports(@NotNull final Project project, @NotNull final VirtualFile file) {
+    if (DumbService.isDumb(project)) return null;
+    if (FileDocumentManager.getInstance().isFileModified(file)) return null;
+
+    return FileBasedIndex.getInstance().getFileData(NAME, file, project).keySet();
+  }
+}
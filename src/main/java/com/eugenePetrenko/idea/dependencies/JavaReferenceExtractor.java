@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.psi.*;
+import com.intellij.psi.javadoc.PsiDocComment;
+import com.intellij.psi.javadoc.PsiDocTagValue;
+import org.jetbrains.annotations.NotNull;
+
+import static com.intellij.psi.PsiReferenceService.Hints.NO_HINTS;
+
+/**
+ * Reports Java code references, that is type elements, qualified names, imports and
+ * expressions. Whitespaces and plain comments are not visited. String literals and
+ * Javadoc tag values are asked for contributed references, as the generic walk does,
+ * so that class names in reflection calls and in Javadoc are not missed
+ */
+public class JavaReferenceExtractor implements DependencyReferenceExtractor {
+  /** visitors are reused by the thread that analyzes files */
+  private static final ThreadLocal<ReferenceVisitor> VISITORS = ThreadLocal.withInitial(ReferenceVisitor::new);
+
+  @Override
+  public boolean isApplicable(@NotNull PsiFile file) {
+    return file instanceof PsiJavaFile;
+  }
+
+  @Override
+  public void processReferences(@NotNull final PsiFile file, @NotNull final ReferenceSink sink) {
+    final ReferenceVisitor cached = VISITORS.get();
+    //a sink may walk another file while the thread walks this one
+    final ReferenceVisitor visitor = cached.mySink == null ? cached : new ReferenceVisitor();
+    visitor.mySink = sink;
+    try {
+      file.accept(visitor);
+    } finally {
+      visitor.mySink = null;
+    }
+  }
+
+  private static class ReferenceVisitor extends JavaRecursiveElementWalkingVisitor {
+    private final PsiReferenceService myService = PsiReferenceService.getService();
+    private ReferenceSink mySink;
+
+    @Override
+    public void visitElement(@NotNull PsiElement element) {
+      if (mySink.isDone()) return;
+      super.visitElement(element);
+    }
+
+    @Override
+    public void visitReferenceElement(PsiJavaCodeReferenceElement reference) {
+      //expressions are reported by visitReferenceExpression
+      if (!(reference instanceof PsiReferenceExpression)) mySink.reference(reference);
+      super.visitReferenceElement(reference);
+    }
+
+    @Override
+    public void visitReferenceExpression(PsiReferenceExpression expression) {
+      mySink.reference(expression);
+      super.visitReferenceExpression(expression);
+    }
+
+    @Override
+    public void visitImportStaticReferenceElement(PsiImportStaticReferenceElement reference) {
+      mySink.reference(reference);
+      super.visitImportStaticReferenceElement(reference);
+    }
+
+    @Override
+    public void visitLiteralExpression(PsiLiteralExpression expression) {
+      reportContributed(expression);
+    }
+
+    @Override
+    public void visitDocTagValue(PsiDocTagValue value) {
+      reportContributed(value);
+      super.visitDocTagValue(value);
+    }
+
+    @Override
+    public void visitComment(PsiComment comment) {
+      //Javadoc contains code references, other comments do not
+      if (comment instanceof PsiDocComment) super.visitComment(comment);
+    }
+
+    @Override
+    public void visitWhiteSpace(PsiWhiteSpace space) {
+    }
+
+    private void reportContributed(@NotNull final PsiElement element) {
+      for (PsiReference ref : myService.getReferences(element, NO_HINTS)) {
+        mySink.reference(ref);
+      }
+    }
+  }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.projectRoots.Sdk;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Index of packages and top-level classes of project libraries and SDKs, kept in a {@link PackageTrie}.
+ * Jar roots are read from the zip central directory, no entry is inflated.
+ * The index is updated by {@link #ensureUpToDate()} at the start of an analysis,
+ * and only libraries with changed roots are read again. Queries never update
+ * the index, they are called from workers under Read lock and see the last update
+ */
+public class LibraryPackageIndex implements Disposable {
+  private static final Logger LOG = Logger.getInstance(LibraryPackageIndex.class);
+
+  private static class LibraryEntry {
+    private final int myId;
+    private final String myFingerprint;
+    private final List<PackageTrie.Node> myNodes = new ArrayList<>();
+
+    private LibraryEntry(final int id, @NotNull final String fingerprint) {
+      myId = id;
+      myFingerprint = fingerprint;
+    }
+  }
+
+  private final Project myProject;
+  private final ReadWriteLock myLock = new ReentrantReadWriteLock();
+  private final PackageTrie myTrie = new PackageTrie();
+  /** entries of libraries and SDKs */
+  private final Map<Object, LibraryEntry> myEntries = new HashMap<>();
+  /** libraries and SDKs by IDs, removed ones leave null slots for reuse */
+  private final List<Object> myLibraries = new ArrayList<>();
+  private final AtomicLong myRootsVersion = new AtomicLong(1);
+  private volatile long myIndexedVersion = 0;
+
+  public LibraryPackageIndex(@NotNull final Project project) {
+    myProject = project;
+    project.getMessageBus().connect(this).subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootListener() {
+      @Override
+      public void rootsChanged(@NotNull ModuleRootEvent event) {
+        myRootsVersion.incrementAndGet();
+      }
+    });
+  }
+
+  @NotNull
+  public static LibraryPackageIndex getInstance(@NotNull final Project project) {
+    return project.getService(LibraryPackageIndex.class);
+  }
+
+  /**
+   * @param qualifiedName name of a top-level class
+   * @return libraries that contain the class
+   */
+  @NotNull
+  public List<Library> getClassOwners(@NotNull final CharSequence qualifiedName) {
+    myLock.readLock().lock();
+    try {
+      return toLibraries(myTrie.getClassOwners(qualifiedName));
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param packageName name of a package
+   * @return libraries that contain classes of the package or of its subpackages
+   */
+  @NotNull
+  public List<Library> getPackageOwners(@NotNull final CharSequence packageName) {
+    myLock.readLock().lock();
+    try {
+      return toLibraries(myTrie.getPackageOwners(packageName));
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param qualifiedName name of a top-level class
+   * @return true if an SDK of the project contains the class
+   */
+  public boolean isSdkClass(@NotNull final CharSequence qualifiedName) {
+    myLock.readLock().lock();
+    try {
+      for (int id : myTrie.getClassOwners(qualifiedName)) {
+        if (myLibraries.get(id) instanceof Sdk) return true;
+      }
+      return false;
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  @NotNull
+  private List<Library> toLibraries(@NotNull final int[] ids) {
+    if (ids.length == 0) return Collections.emptyList();
+    final List<Library> result = new ArrayList<>(ids.length);
+    for (int id : ids) {
+      final Object owner = myLibraries.get(id);
+      if (owner instanceof Library) result.add((Library) owner);
+    }
+    return result;
+  }
+
+  /**
+   * Reads libraries that were added or changed since the last update.
+   * Takes short read actions on its own, so must not be called under Read lock
+   */
+  public void ensureUpToDate() {
+    if (myIndexedVersion == myRootsVersion.get()) return;
+    synchronized (this) {
+      final long version = myRootsVersion.get();
+      if (myIndexedVersion == version) return;
+      update();
+      //roots changed during the update are handled by the next call
+      myIndexedVersion = version;
+    }
+  }
+
+  /**
+   * Changed libraries are read without the lock, since reading takes read actions
+   * that would wait for a write action blocked by workers waiting for the lock.
+   * Entries are changed only here, under the monitor, so they are read without the lock too
+   */
+  private void update() {
+    final Map<Object, String> fingerprints = ApplicationManager.getApplication().runReadAction((Computable<Map<Object, String>>) this::collectLibraries);
+
+    final List<Object> removed = new ArrayList<>();
+    for (Map.Entry<Object, LibraryEntry> e : myEntries.entrySet()) {
+      if (!e.getValue().myFingerprint.equals(fingerprints.get(e.getKey()))) removed.add(e.getKey());
+    }
+    final Map<Object, List<String[]>> added = new LinkedHashMap<>();
+    for (Map.Entry<Object, String> e : fingerprints.entrySet()) {
+      final LibraryEntry entry = myEntries.get(e.getKey());
+      if (entry == null || !entry.myFingerprint.equals(e.getValue())) added.put(e.getKey(), readClasses(e.getKey()));
+    }
+    if (removed.isEmpty() && added.isEmpty()) return;
+
+    myLock.writeLock().lock();
+    try {
+      for (Object library : removed) {
+        removeLibrary(myEntries.remove(library));
+      }
+
+      for (Map.Entry<Object, List<String[]>> e : added.entrySet()) {
+        myEntries.put(e.getKey(), addLibrary(e.getKey(), fingerprints.get(e.getKey()), e.getValue()));
+      }
+    } finally {
+      myLock.writeLock().unlock();
+    }
+    if (!added.isEmpty()) {
+      LOG.info("Library package index is updated for " + added.size() + " of " + fingerprints.size() + " libraries");
+    }
+  }
+
+  /**
+   * @return fingerprints of class roots of all libraries and SDKs
+   */
+  @NotNull
+  private Map<Object, String> collectLibraries() {
+    final Map<Object, String> result = new LinkedHashMap<>();
+    for (Module module : ModuleManager.getInstance(myProject).getModules()) {
+      for (OrderEntry entry : ModuleRootManager.getInstance(module).getOrderEntries()) {
+        final Object owner = entry instanceof LibraryOrderEntry ? ((LibraryOrderEntry) entry).getLibrary()
+                : entry instanceof JdkOrderEntry ? ((JdkOrderEntry) entry).getJdk() : null;
+        if (owner != null && !result.containsKey(owner)) result.put(owner, fingerprint(owner));
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static VirtualFile[] getClassRoots(@NotNull final Object owner) {
+    final RootProvider provider = owner instanceof Library ? ((Library) owner).getRootProvider() : ((Sdk) owner).getRootProvider();
+    return provider.getFiles(OrderRootType.CLASSES);
+  }
+
+  @NotNull
+  private static String fingerprint(@NotNull final Object owner) {
+    final StringBuilder sb = new StringBuilder();
+    for (VirtualFile root : getClassRoots(owner)) {
+      sb.append(root.getUrl());
+      final VirtualFile jar = JarFileSystem.getInstance().getVirtualFileForJar(root);
+      if (jar != null) sb.append(':').append(jar.getTimeStamp()).append(':').append(jar.getLength());
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Must be called under the write lock
+   * @param classes names of top-level classes split by package segments
+   */
+  @NotNull
+  private LibraryEntry addLibrary(@NotNull final Object library,
+                                  @NotNull final String fingerprint,
+                                  @NotNull final List<String[]> classes) {
+    int id = myLibraries.indexOf(null);
+    if (id < 0) {
+      id = myLibraries.size();
+      myLibraries.add(library);
+    } else {
+      myLibraries.set(id, library);
+    }
+
+    final LibraryEntry entry = new LibraryEntry(id, fingerprint);
+    for (String[] names : classes) {
+      myTrie.addClass(names, entry.myId, entry.myNodes);
+    }
+    return entry;
+  }
+
+  /**
+   * Takes short read actions on its own, must not be called under the lock
+   * @return names of top-level classes of the library split by package segments
+   */
+  @NotNull
+  private static List<String[]> readClasses(@NotNull final Object library) {
+    final List<String[]> result = new ArrayList<>();
+    final Map<String, String> segments = new HashMap<>();
+    final Consumer<String> addClass = path -> {
+      //entries are like a/b/C$D.class, only top-level classes are indexed
+      final int nested = path.indexOf('$', path.lastIndexOf('/') + 1);
+      final int end = nested < 0 ? path.length() - ".class".length() : nested;
+      final String[] names = StringUtil.split(path.substring(0, end), "/").toArray(new String[0]);
+      for (int i = 0; i < names.length; i++) {
+        names[i] = segments.computeIfAbsent(names[i], s -> s);
+      }
+      if (names.length > 0) result.add(names);
+    };
+
+    final VirtualFile[] roots = ApplicationManager.getApplication().runReadAction((Computable<VirtualFile[]>) () -> getClassRoots(library));
+    for (VirtualFile root : roots) {
+      final VirtualFile jar = JarFileSystem.getInstance().getVirtualFileForJar(root);
+      if (jar != null && root.getParent() == null) {
+        try {
+          readJarEntries(Paths.get(jar.getPath()), addClass);
+          continue;
+        } catch (IOException e) {
+          LOG.info("Failed to read central directory of " + jar.getPath() + ", falling back to VFS. " + e.getMessage());
+        }
+      }
+      ApplicationManager.getApplication().runReadAction(() -> readDirectory(root, addClass));
+    }
+    return result;
+  }
+
+  /**
+   * Must be called under the write lock
+   */
+  private void removeLibrary(@NotNull final LibraryEntry entry) {
+    myTrie.remove(entry.myNodes, entry.myId);
+    myLibraries.set(entry.myId, null);
+  }
+
+  private static void readDirectory(@NotNull final VirtualFile root, @NotNull final Consumer<String> classes) {
+    if (!root.isValid()) return;
+    VfsUtilCore.visitChildrenRecursively(root, new VirtualFileVisitor<Void>() {
+      @Override
+      public boolean visitFile(@NotNull VirtualFile file) {
+        if (!file.isDirectory() && file.getName().endsWith(".class")) {
+          final String path = VfsUtilCore.getRelativePath(file, root, '/');
+          if (path != null) classes.accept(path);
+        }
+        return true;
+      }
+    });
+  }
+
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+  private static final int CEN_SIGNATURE = 0x02014b50;
+
+  /**
+   * Reports names of .class entries of a jar from its central directory
+   */
+  static void readJarEntries(@NotNull final Path jar, @NotNull final Consumer<String> classes) throws IOException {
+    try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new IOException("Jar is too large to be mapped");
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+      //the end record is followed by a comment of up to 64K
+      int eocd = -1;
+      for (int pos = (int) size - 22; pos >= Math.max(0, size - 22 - 0xFFFF); pos--) {
+        if (buffer.getInt(pos) == EOCD_SIGNATURE) {
+          eocd = pos;
+          break;
+        }
+      }
+      if (eocd < 0) throw new IOException("End of central directory is not found");
+
+      long entries = buffer.getShort(eocd + 10) & 0xFFFF;
+      long offset = buffer.getInt(eocd + 16) & 0xFFFFFFFFL;
+      if (eocd >= 20 && buffer.getInt(eocd - 20) == ZIP64_LOCATOR_SIGNATURE) {
+        final int zip64 = (int) buffer.getLong(eocd - 12);
+        if (buffer.getInt(zip64) != ZIP64_EOCD_SIGNATURE) throw new IOException("Broken zip64 end of central directory");
+        entries = buffer.getLong(zip64 + 32);
+        offset = buffer.getLong(zip64 + 48);
+      }
+
+      int pos = (int) offset;
+      final byte[] name = new byte[0xFFFF];
+      for (long i = 0; i < entries; i++) {
+        if (buffer.getInt(pos) != CEN_SIGNATURE) throw new IOException("Broken central directory entry at " + pos);
+        final int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+        final int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+        final int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+
+        if (nameLength > ".class".length() && isClassEntry(buffer, pos + 46, nameLength)) {
+          for (int c = 0; c < nameLength; c++) {
+            name[c] = buffer.get(pos + 46 + c);
+          }
+          final String entry = new String(name, 0, nameLength, StandardCharsets.UTF_8);
+          //multi-release and other metadata entries are not classes of the library
+          if (!entry.startsWith("META-INF/")) classes.accept(entry);
+        }
+        pos += 46 + nameLength + extraLength + commentLength;
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Truncated central directory", e);
+    }
+  }
+
+  private static boolean isClassEntry(@NotNull final MappedByteBuffer buffer, final int name, final int length) {
+    final int end = name + length;
+    return buffer.get(end - 6) == '.' && buffer.get(end - 5) == 'c' && buffer.get(end - 4) == 'l'
+            && buffer.get(end - 3) == 'a' && buffer.get(end - 2) == 's' && buffer.get(end - 1) == 's';
+  }
+
+  @Override
+  public void dispose() {
+    myLock.writeLock().lock();
+    try {
+      myEntries.clear();
+      myLibraries.clear();
+    } finally {
+      myLock.writeLock().unlock();
+    }
+  }
+}
@@ -16,17 +16,24 @@
 
 package com.eugenePetrenko.idea.dependencies;
 
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
 import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleManager;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.roots.OrderEntry;
 import com.intellij.openapi.util.Computable;
+import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -44,14 +51,65 @@ public class ModuleDependenciesAnalyzer {
   public static ModulesDependencies processAllDependencies(@NotNull final AnalyzeStrategy strategy,
                                                            @NotNull final ProgressIndicator indicator,
                                                            @NotNull final Project project) {
+    return processAllDependencies(strategy, AnalyzeOptions.defaults(), indicator, project);
+  }
+
+  /**
+   * Performs references analysis for all modules
+   *
+   * @param options   search options
+   * @param indicator progress
+   * @param project   project
+   * @return set of module dependencies that could be removed
+   */
+  @NotNull
+  public static ModulesDependencies processAllDependencies(@NotNull final AnalyzeStrategy strategy,
+                                                           @NotNull final AnalyzeOptions options,
+                                                           @NotNull final ProgressIndicator indicator,
+                                                           @NotNull final Project project) {
+    return processAllDependencies(strategy, options, indicator, project, null);
+  }
+
+  /**
+   * Performs references analysis for all modules
+   *
+   * @param options   search options
+   * @param indicator progress
+   * @param project   project
+   * @param listener  receives results of modules as soon as they are final
+   * @return set of module dependencies that could be removed
+   */
+  @NotNull
+  public static ModulesDependencies processAllDependencies(@NotNull final AnalyzeStrategy strategy,
+                                                           @NotNull final AnalyzeOptions options,
+                                                           @NotNull final ProgressIndicator indicator,
+                                                           @NotNull final Project project,
+                                                           @Nullable final ModuleResultListener listener) {
     final Module[] modules = ApplicationManager.getApplication().runReadAction((Computable<Module[]>) () -> ModuleManager.getInstance(project).getSortedModules());
 
-    return processModulesDependencies(strategy, indicator, modules, project);
+    return processModulesDependencies(strategy, options, indicator, modules, project, listener);
+  }
+
+  /**
+   * Performs references analysis for given module
+   *
+   * @param indicator progress
+   * @param modules   modules
+   * @param project   project
+   * @return set of module dependencies that could be removed
+   */
+  @NotNull
+  public static ModulesDependencies processModulesDependencies(@NotNull final AnalyzeStrategy strategy,
+                                                               @NotNull final ProgressIndicator indicator,
+                                                               @NotNull final Module[] modules,
+                                                               @NotNull final Project project) {
+    return processModulesDependencies(strategy, AnalyzeOptions.defaults(), indicator, modules, project);
   }
 
   /**
    * Performs references analysis for given module
    *
+   * @param options   search options
    * @param indicator progress
    * @param modules   modules
    * @param project   project
@@ -59,34 +117,79 @@ public class ModuleDependenciesAnalyzer {
    */
   @NotNull
   public static ModulesDependencies processModulesDependencies(@NotNull final AnalyzeStrategy strategy,
+                                                               @NotNull final AnalyzeOptions options,
                                                                @NotNull final ProgressIndicator indicator,
                                                                @NotNull final Module[] modules,
                                                                @NotNull final Project project) {
+    return processModulesDependencies(strategy, options, indicator, modules, project, null);
+  }
+
+  /**
+   * Performs references analysis for given module
+   *
+   * @param options   search options
+   * @param indicator progress
+   * @param modules   modules
+   * @param project   project
+   * @param listener  receives results of modules as soon as they are final
+   * @return set of module dependencies that could be removed
+   */
+  @NotNull
+  public static ModulesDependencies processModulesDependencies(@NotNull final AnalyzeStrategy strategy,
+                                                               @NotNull final AnalyzeOptions options,
+                                                               @NotNull final ProgressIndicator indicator,
+                                                               @NotNull final Module[] modules,
+                                                               @NotNull final Project project,
+                                                               @Nullable final ModuleResultListener listener) {
     //take export dependencies closure
     //TODO: could be an option here to consider or not Exported deps
     final Module[] allModules = strategy.collectAllModules(project, modules);
 
-    final ModulesDependencies moduleUsages = ModuleDependenciesSearcher.collectionActualModulesDependencies(indicator, project, allModules);
+    final Set<Module> reported = ContainerUtil.newConcurrentSet();
+    final BiConsumer<Module, LibOrModuleSet> usagesListener = listener == null ? null : (module, usages) -> {
+      //usages of the module are changed at the end
+      if (strategy.isUpdatedDependencies(project, module)) return;
+      if (!reported.add(module)) return;
+      listener.moduleFinished(module, collectRemovables(strategy, module, usages, usages.getUniverse()));
+    };
+
+    //all sets of the run share the universe, so they are merged on bitsets
+    final DependencyUniverse universe = new DependencyUniverse();
+    //resolve is not available while the IDE is indexing
+    final boolean approximate = options.isDumbModeAnalysis() && DumbService.isDumb(project);
+    final ModulesDependencies moduleUsages = approximate
+            ? ApproximateDependenciesSearcher.collectionActualModulesDependencies(indicator, project, allModules, universe)
+            : ModuleDependenciesSearcher.collectionActualModulesDependencies(options, indicator, project, allModules, universe, usagesListener);
 
     //update export dependency usages
     strategy.updateDetectedDependencies(project, allModules, moduleUsages);
 
-    final ModulesDependencies moduleRemovables = new ModulesDependencies();
+    final ModulesDependencies moduleRemovables = new ModulesDependencies(moduleUsages.getUniverse());
+    moduleRemovables.setApproximate(approximate);
+    moduleRemovables.setFromBytecode(!approximate && options.getEngine() == AnalyzeOptions.Engine.BYTECODE);
 
     for (final Module module : allModules) {
-      final LibOrModuleSet toRemove = new LibOrModuleSet();
-      final LibOrModuleSet actualUsages = moduleUsages.forModule(module);
-      ApplicationManager.getApplication().runReadAction(() -> {
-        for (OrderEntry e : ModuleRootManager.getInstance(module).getOrderEntries()) {
-          if (!strategy.isSupportedDependency(e)) continue;
-          if (actualUsages != null && actualUsages.contains(e)) continue;
-          toRemove.addDependency(e);
-        }
-      });
+      final LibOrModuleSet toRemove = collectRemovables(strategy, module, moduleUsages.forModule(module), moduleUsages.getUniverse());
       moduleRemovables.addAll(module, toRemove);
+      if (listener != null && reported.add(module)) listener.moduleFinished(module, toRemove);
     }
 
     return moduleRemovables;
   }
 
+  @NotNull
+  private static LibOrModuleSet collectRemovables(@NotNull final AnalyzeStrategy strategy,
+                                                  @NotNull final Module module,
+                                                  @Nullable final LibOrModuleSet actualUsages,
+                                                  @NotNull final DependencyUniverse universe) {
+    final LibOrModuleSet toRemove = new LibOrModuleSet(universe);
+    ApplicationManager.getApplication().runReadAction(() -> {
+      for (OrderEntry e : ModuleRootManager.getInstance(module).getOrderEntries()) {
+        if (!strategy.isSupportedDependency(e)) continue;
+        if (actualUsages != null && actualUsages.contains(e)) continue;
+        toRemove.addDependency(e);
+      }
+    });
+    return toRemove;
+  }
 }
@@ -16,19 +16,20 @@
 
 package com.eugenePetrenko.idea.dependencies;
 
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
 import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.module.Module;
-import com.intellij.openapi.module.ModuleManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.*;
 import com.intellij.openapi.util.Computable;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -40,81 +41,112 @@ public class ModuleDependenciesHelper {
   public static Module[] includeExportDependencies(@NotNull final Project project,
                                                    @NotNull final Module[] modules) {
     return ApplicationManager.getApplication().runReadAction((Computable<Module[]>) () -> {
-      Set<Module> set = new HashSet<>();
-      includeExportDependencies(project, Arrays.asList(modules), set);
-      return set.toArray(new Module[0]);
-    });
-  }
+      final ModuleGraph graph = ModuleGraph.getInstance(project);
+      final Set<Module> result = new LinkedHashSet<>();
+      final BitSet visited = new BitSet(graph.getModulesCount());
+      final IntArrayList queue = new IntArrayList();
+
+      for (Module module : modules) {
+        final int id = graph.findModuleId(module);
+        if (id < 0) {
+          result.add(module);
+        } else if (!visited.get(id)) {
+          visited.set(id);
+          queue.add(id);
+        }
+      }
 
-  private static void includeExportDependencies(@NotNull final Project project,
-                                                @NotNull final List<Module> modules,
-                                                @NotNull final Set<Module> result) {
-    final ModuleManager moduleManager = ModuleManager.getInstance(project);
-    for (final Module module : modules) {
-      //do not re-check visited modules
-      if (!result.add(module)) continue;
-      if (collectModuleExports(module).isEmpty()) continue;
-
-      includeExportDependencies(
-              project,
-              moduleManager.getModuleDependentModules(module),
-              result);
-    }
+      for (int head = 0; head < queue.size(); head++) {
+        final int id = queue.getInt(head);
+        result.add(graph.getModule(id));
+        if (!graph.hasExports(id)) continue;
+
+        //modules that depends on the module with export dependency
+        for (int dependent : graph.getDependents(id)) {
+          if (visited.get(dependent)) continue;
+          visited.set(dependent);
+          queue.add(dependent);
+        }
+      }
+      return result.toArray(new Module[0]);
+    });
   }
 
+  /**
+   * Marks exported dependencies of modules as used if the exported library or module
+   * is used by modules that see it through the chain of exported dependencies
+   */
   public static void updateExportedDependenciesUsages(@NotNull final Project project,
                                                       @NotNull final Module[] modules,
                                                       @NotNull final ModulesDependencies deps) {
     ApplicationManager.getApplication().runReadAction(() -> {
-      final ModuleManager moduleManager = ModuleManager.getInstance(project);
+      final ModuleGraph graph = ModuleGraph.getInstance(project);
+      final DependencyUniverse universe = deps.getUniverse();
 
+      //local indexes of analyzed modules
+      final int[] local = new int[graph.getModulesCount()];
+      Arrays.fill(local, -1);
+      final IntArrayList ids = new IntArrayList();
       for (Module module : modules) {
-        final LibOrModuleSet exports = collectModuleExports(module);
-        if (exports.isEmpty()) continue;
+        final int id = graph.findModuleId(module);
+        if (id < 0 || local[id] >= 0) continue;
+        local[id] = ids.size();
+        ids.add(id);
+      }
+
+      final int[][] exports = new int[ids.size()][];
+      final LibOrModuleSet[] demand = new LibOrModuleSet[ids.size()];
+      for (int i = 0; i < demand.length; i++) {
+        demand[i] = new LibOrModuleSet(universe);
+      }
+
+      for (int i = 0; i < ids.size(); i++) {
+        final int id = ids.getInt(i);
+        final LibOrModuleSet usages = deps.forModule(graph.getModule(id));
+        final IntArrayList exported = new IntArrayList();
 
-        //take modules that depends on the module that has export dependency
-        final LibOrModuleSet moduleDeps = new LibOrModuleSet();
-        for (Module dependee : moduleManager.getModuleDependentModules(module)) {
-          final LibOrModuleSet libOrModuleDep = deps.forModule(dependee);
-          if (libOrModuleDep == null) continue;
+        for (int dependency : graph.getDependencies(id)) {
+          final int target = local[dependency];
+          if (target < 0) continue;
 
-          moduleDeps.addDependencies(libOrModuleDep.intersect(exports));
+          if (usages != null) demand[target].addDependencies(usages);
+          if (graph.isExported(id, dependency)) exported.add(target);
         }
+        exports[i] = exported.toIntArray();
+      }
 
-        deps.addAll(module, moduleDeps);
+      ExportPropagation.propagate(exports, demand);
+
+      for (int i = 0; i < ids.size(); i++) {
+        final int id = ids.getInt(i);
+        if (!graph.hasExports(id)) continue;
+
+        deps.addAll(graph.getModule(id), demand[i].intersect(graph.getExports(id, universe)));
       }
     });
   }
 
-  public static boolean isExportDependency(@NotNull final OrderEntry e) {
-    final LibOrModuleSet set = new LibOrModuleSet();
-    e.accept(createExportDependencyCollector(set), null);
-    return !set.isEmpty();
-  }
-
-  @NotNull
-  private static LibOrModuleSet collectModuleExports(@NotNull final Module module) {
-    final LibOrModuleSet exports = new LibOrModuleSet();
-    ModuleRootManager.getInstance(module).processOrder(createExportDependencyCollector(exports), null);
-    return exports;
+  public static boolean hasExportDependencies(@NotNull final Project project,
+                                              @NotNull final Module module) {
+    return ApplicationManager.getApplication().runReadAction((Computable<Boolean>) () -> {
+      final ModuleGraph graph = ModuleGraph.getInstance(project);
+      final int id = graph.findModuleId(module);
+      //unknown modules are not final until the end
+      return id < 0 || graph.hasExports(id);
+    });
   }
 
-  @NotNull
-  private static RootPolicy<Void> createExportDependencyCollector(@NotNull final LibOrModuleSet exports) {
-    return new RootPolicy<>() {
+  public static boolean isExportDependency(@NotNull final OrderEntry e) {
+    return e.accept(new RootPolicy<>() {
       @Override
-      public Void visitModuleOrderEntry(@NotNull ModuleOrderEntry moduleOrderEntry, Void value) {
-        if (!moduleOrderEntry.isExported()) return null;
-        exports.addDependency(moduleOrderEntry);
-        return null;
+      public Boolean visitModuleOrderEntry(@NotNull ModuleOrderEntry moduleOrderEntry, Boolean value) {
+        return moduleOrderEntry.isExported() && moduleOrderEntry.getModule() != null;
       }
 
       @Override
-      public Void visitLibraryOrderEntry(@NotNull LibraryOrderEntry libraryOrderEntry, Void value) {
-        if (!libraryOrderEntry.isExported()) return null;
-        exports.addDependency(libraryOrderEntry);
-        return null;
+      public Boolean visitLibraryOrderEntry(@NotNull LibraryOrderEntry libraryOrderEntry, Boolean value) {
+        return libraryOrderEntry.isExported() && libraryOrderEntry.getLibrary() != null;
       }
-    };
+    }, false);
   }
 }
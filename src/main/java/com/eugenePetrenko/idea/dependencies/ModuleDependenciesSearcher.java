@@ -16,39 +16,37 @@
 
 package com.eugenePetrenko.idea.dependencies;
 
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
 import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
-import com.intellij.codeInsight.daemon.ProblemHighlightFilter;
-import com.intellij.concurrency.JobLauncher;
-import com.intellij.ide.util.DelegatingProgressIndicator;
-import com.intellij.lang.injection.InjectedLanguageManager;
+import com.intellij.concurrency.SensitiveProgressWrapper;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectCoreUtil;
-import com.intellij.openapi.project.ProjectUtil;
 import com.intellij.openapi.roots.*;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.*;
-import com.intellij.psi.util.InheritanceUtil;
-import com.intellij.util.Processor;
+import com.intellij.util.ExceptionUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import static com.intellij.psi.PsiReferenceService.Hints.NO_HINTS;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
  * Date: 17.04.13 10:47
  */
 public class ModuleDependenciesSearcher {
+  private static final Logger LOG = Logger.getInstance(ModuleDependenciesSearcher.class);
+
   /**
    * Performs references analysis for given module
    *
@@ -61,143 +59,252 @@ public class ModuleDependenciesSearcher {
   public static LibOrModuleSet collectionActualModuleDependencies(@NotNull final ProgressIndicator indicator,
                                                                   @NotNull final Project project,
                                                                   @NotNull final Module module) {
-    final LibOrModuleSet dependencies = new LibOrModuleSet();
+    return collectionActualModuleDependencies(AnalyzeOptions.defaults(), indicator, project, module);
+  }
 
-    final PsiManager psiManager = PsiManager.getInstance(project);
-    final ModuleRootManager roots = ModuleRootManager.getInstance(module);
-    final ModuleFileIndex moduleIndex = roots.getFileIndex();
-    final ProjectFileIndex projectIndex = ProjectRootManager.getInstance(project).getFileIndex();
+  /**
+   * Performs references analysis for given module
+   *
+   * @param options   search options
+   * @param indicator progress
+   * @param project   project
+   * @param module    module
+   * @return set of module dependencies that could be removed
+   */
+  @NotNull
+  public static LibOrModuleSet collectionActualModuleDependencies(@NotNull final AnalyzeOptions options,
+                                                                  @NotNull final ProgressIndicator indicator,
+                                                                  @NotNull final Project project,
+                                                                  @NotNull final Module module) {
+    return searchModules(options, indicator, project, new Module[]{module}, new DependencyUniverse(), null).get(module);
+  }
 
-    final List<VirtualFile> allFiles = new ArrayList<>(1000);
-    moduleIndex.iterateContent(fileOrDir -> {
-      indicator.checkCanceled();
+  /**
+   * Performs references analysis for given modules.
+   * Files of all modules are processed from one shared work queue,
+   * so that small modules do not wait for a huge one to complete
+   *
+   * @param indicator progress
+   * @param project   project
+   * @param modules   modules
+   * @return set of module dependencies that could be removed
+   */
+  @NotNull
+  public static ModulesDependencies collectionActualModulesDependencies(@NotNull final ProgressIndicator indicator,
+                                                                        @NotNull final Project project,
+                                                                        @NotNull final Module[] modules) {
+    return collectionActualModulesDependencies(AnalyzeOptions.defaults(), indicator, project, modules);
+  }
 
-      if (fileOrDir.isDirectory()) return true;
-      if (ProjectCoreUtil.isProjectOrWorkspaceFile(fileOrDir)) return true;
-      if (!moduleIndex.isInContent(fileOrDir)) return true;
-      if (moduleIndex.isInSourceContent(fileOrDir) || moduleIndex.isInTestSourceContent(fileOrDir)) {
-        allFiles.add(fileOrDir);
-      }
-      return true;
-    });
+  /**
+   * Performs references analysis for given modules.
+   * Files of all modules are processed from one shared work queue,
+   * so that small modules do not wait for a huge one to complete
+   *
+   * @param options   search options
+   * @param indicator progress
+   * @param project   project
+   * @param modules   modules
+   * @return set of module dependencies that could be removed
+   */
+  @NotNull
+  public static ModulesDependencies collectionActualModulesDependencies(@NotNull final AnalyzeOptions options,
+                                                                        @NotNull final ProgressIndicator indicator,
+                                                                        @NotNull final Project project,
+                                                                        @NotNull final Module[] modules) {
+    return collectionActualModulesDependencies(options, indicator, project, modules, new DependencyUniverse(), null);
+  }
 
-    final double total = allFiles.size();
-    final AtomicInteger current = new AtomicInteger();
-
-    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
-            allFiles,
-            indicator,
-            new Processor<>() {
-              public boolean process(@NotNull final VirtualFile file) {
-                indicator.checkCanceled();
-                indicator.setFraction(current.incrementAndGet() / total);
-
-                final Set<OrderEntry> oes = new HashSet<>(10);
-                ApplicationManager.getApplication().runReadAction(new Runnable() {
-                  public void run() {
-                    final PsiFile psiFile = psiManager.findFile(file);
-
-                    if (psiFile == null) return;
-                    if (!psiFile.isValid()) return;
-                    if (!ProblemHighlightFilter.shouldProcessFileInBatch(psiFile)) return;
-
-                    indicator.checkCanceled();
-                    indicator.setText2("" + ProjectUtil.calcRelativeToProjectPath(file, project));
-
-                    psiFile.accept(new PsiRecursiveElementVisitor() {
-                      @Override
-                      public void visitElement(final @NotNull PsiElement element) {
-                        super.visitElement(element);
-
-                        for (final PsiReference ref : PsiReferenceService.getService().getReferences(element, NO_HINTS)) {
-                          processResolvedElement(ref.resolve());
-                        }
-                      }
-
-                      private void processResolvedElement(@Nullable PsiElement resolved) {
-                        if (resolved == null) return;
-                        if (resolved.getProject().isDefault()) return;
-                        if (!resolved.isValid()) return;
-
-                        if (resolved instanceof PsiClass) {
-                          InheritanceUtil.processSupers((PsiClass) resolved, true, psiClass -> {
-                            registerUsage(psiClass);
-                            return true;
-                          });
-                          return;
-                        }
-
-                        registerUsage(resolved);
-                      }
-
-                      private void registerUsage(@NotNull PsiElement resolved) {
-                        final PsiFile file = resolved.getContainingFile();
-                        if (file == null) return;
-                        if (!file.isValid()) return;
-
-                        final VirtualFile virtual = file.getVirtualFile();
-                        if (virtual == null) return;
-                        if (!virtual.isValid()) return;
-
-                        oes.addAll(projectIndex.getOrderEntriesForFile(virtual));
-                      }
-                    });
-
-                    psiManager.dropResolveCaches();
-                    InjectedLanguageManager.getInstance(psiFile.getProject()).dropFileCaches(psiFile);
-                  }
-                });
-
-                synchronized (dependencies) {
-                  dependencies.addDependencies(oes);
-                }
-                return true;
-              }
-            }
-    );
-
-    return dependencies;
+  /**
+   * Performs references analysis for given modules
+   *
+   * @param options   search options
+   * @param indicator progress
+   * @param project   project
+   * @param modules   modules
+   * @param universe  universe of the analysis run
+   * @param listener  receives usages of every module as soon as they are collected,
+   *                  it is called from worker threads
+   * @return set of module dependencies that could be removed
+   */
+  @NotNull
+  public static ModulesDependencies collectionActualModulesDependencies(@NotNull final AnalyzeOptions options,
+                                                                        @NotNull final ProgressIndicator indicator,
+                                                                        @NotNull final Project project,
+                                                                        @NotNull final Module[] modules,
+                                                                        @NotNull final DependencyUniverse universe,
+                                                                        @Nullable final BiConsumer<Module, LibOrModuleSet> listener) {
+    final ModulesDependencies result = new ModulesDependencies(universe);
+    for (Map.Entry<Module, LibOrModuleSet> e : searchModules(options, indicator, project, modules, universe, listener).entrySet()) {
+      result.addAll(e.getKey(), e.getValue());
+    }
+    return result;
   }
 
   /**
-     * Performs references analysis for given module
-     *
-     * @param indicator progress
-     * @param project   project
-     * @param modules   modules
-     * @return set of module dependencies that could be removed
-     */
-    @NotNull
-    public static ModulesDependencies collectionActualModulesDependencies(@NotNull final ProgressIndicator indicator,
-                                                                          @NotNull final Project project,
-                                                                          @NotNull final Module[] modules) {
-      final ModulesDependencies result = new ModulesDependencies();
-      final double length = modules.length;
-      final double outerStep = 1.0 / length;
-
-      for (int i = 0; i < modules.length; i++) {
-        final Module module = modules[i];
+   * @return usages of every module, in the order of modules
+   */
+  @NotNull
+  private static Map<Module, LibOrModuleSet> searchModules(@NotNull final AnalyzeOptions options,
+                                                  @NotNull final ProgressIndicator indicator,
+                                                  @NotNull final Project project,
+                                                  @NotNull final Module[] modules,
+                                                  @NotNull final DependencyUniverse universe,
+                                                  @Nullable final BiConsumer<Module, LibOrModuleSet> listener) {
+    indicator.setIndeterminate(false);
+    final ModuleResultCache resultCache = options.isResultCache() ? ModuleResultCache.getInstance(project) : null;
+    final DependencyFootprintCache footprints = new DependencyFootprintCache(new OrderEntryLookup(ProjectRootManager.getInstance(project).getFileIndex()), universe);
+    final boolean isTwoPhase = options.isSaturation() && options.isTwoPhase();
+    final ProjectSourceClasses sources = isTwoPhase || !options.getResolveFilters().isEmpty() ? ProjectSourceClasses.collect(project) : null;
+    final ImportPrescan prescan = isTwoPhase ? new ImportPrescan(project, sources) : null;
+    final ResolveFilters filters = options.getResolveFilters().isEmpty() ? null : createFilters(project, options, sources);
+    //the streaming producer is stopped on its own if the analysis fails
+    final ProgressIndicator planIndicator = options.isStreaming() ? new SensitiveProgressWrapper(indicator) : indicator;
+    final ModuleSearchPlanner planner = new ModuleSearchPlanner(options, planIndicator, project, universe, footprints, resultCache, prescan, listener);
 
-        indicator.setIndeterminate(false);
-        indicator.checkCanceled();
-        indicator.setText(module.getName());
+    final FootprintStore store = options.isIncremental() ? FootprintStore.open(project) : null;
+    try {
+      final ModuleFileProcessor processor = new ModuleFileProcessor(options, indicator, project, footprints, universe, store, filters, listener);
+      final int interruptions = options.isStreaming()
+              ? processStreamed(indicator, planIndicator, modules, planner, options.getThreads(), processor)
+              : processCollected(indicator, modules, planner, options.getThreads(), processor);
 
-        final double outerFraction = (double) i / length;
-        indicator.setFraction(outerFraction);
+      LOG.info("Dependencies search of " + modules.length + " module(s) completed. " +
+              "Modules with reverse search: " + planner.getReverseModules() + ". " +
+              (options.isStreaming() ? "Modules with streamed files: " + planner.getStreamedModules() + ". " : "") +
+              (prescan != null ? "Modules with dependencies proven by imports: " + prescan.getProvenModules() + ", files read from the imports index: " + prescan.getIndexedFiles() + ". " : "") +
+              "Read actions interrupted: " + interruptions + ". " + processor);
+    } finally {
+      if (store != null) store.close();
+    }
+
+    final Map<Module, LibOrModuleSet> results = planner.getResults();
+    for (Map.Entry<ModuleSearch, ModuleResultCache.Memo> e : planner.getSearches().entrySet()) {
+      final ModuleSearch search = e.getKey();
+      final LibOrModuleSet usages = search.getDependencies();
+      if (e.getValue() != null) e.getValue().set(options.getResultKey(), usages);
+      results.put(search.getModule(), usages);
+    }
+    if (resultCache != null) {
+      LOG.info("Usages of " + (modules.length - planner.getSearches().size() - planner.getCompiledModules()) + " module(s) were reused from the previous analysis");
+    }
+    return results;
+  }
 
-        DelegatingProgressIndicator subProgress = new DelegatingProgressIndicator(indicator) {
+  /**
+   * Collects files of all modules first, then analyzes them
+   * @return number of interrupted read actions
+   */
+  private static int processCollected(@NotNull final ProgressIndicator indicator,
+                                      @NotNull final Module[] modules,
+                                      @NotNull final ModuleSearchPlanner planner,
+                                      final int threads,
+                                      @NotNull final ModuleFileProcessor processor) {
+    final List<FileTask> tasks = new ArrayList<>(1000);
+    planner.planModules(modules, tasks::add);
+    indicator.setFraction(0);
+    return FileBatchWorker.processAll(indicator, tasks, threads, processor);
+  }
+
+  /**
+   * Enumerates files of modules in a pooled thread while the workers analyze them
+   * @return number of interrupted read actions
+   */
+  private static int processStreamed(@NotNull final ProgressIndicator indicator,
+                                     @NotNull final ProgressIndicator planIndicator,
+                                     @NotNull final Module[] modules,
+                                     @NotNull final ModuleSearchPlanner planner,
+                                     final int threads,
+                                     @NotNull final ModuleFileProcessor processor) {
+    final FileTaskStream stream = new FileTaskStream(planIndicator, indicator, FileTaskStream.DEFAULT_CAPACITY);
+    //the total is known once all modules are enumerated
+    indicator.setIndeterminate(true);
+    final Future<?> producer = ApplicationManager.getApplication().executeOnPooledThread(() -> ProgressManager.getInstance().runProcess(() -> {
+      try {
+        planner.planModules(modules, new ModuleSearchPlanner.FileTaskSink() {
           @Override
-          public double getFraction() {
-            return (super.getFraction() - outerFraction) / outerStep;
+          public void add(@NotNull final FileTask task) {
+            stream.put(task);
           }
 
           @Override
-          public void setFraction(double fraction) {
-            super.setFraction(outerFraction + fraction * outerStep);
+          public void moduleEnumerated(@NotNull final ModuleSearch search, final int files) {
+            processor.filesEnumerated(search, files);
           }
-        };
-        result.addAll(module, collectionActualModuleDependencies(subProgress, project, module));
+        });
+      } finally {
+        stream.close();
+        indicator.setIndeterminate(false);
       }
-      return result;
+    }, planIndicator));
+
+    boolean completed = false;
+    try {
+      final int interruptions = FileBatchWorker.processAll(indicator, stream, threads, processor);
+      completed = true;
+      waitFor(producer);
+      LOG.info("Streamed files: " + stream);
+      return interruptions;
+    } finally {
+      if (!completed) {
+        //the producer must not wait for the failed workers
+        planIndicator.cancel();
+        try {
+          producer.get();
+        } catch (InterruptedException | ExecutionException e) {
+          //the failure of the workers is reported instead
+        }
+      }
+    }
+  }
+
+  private static void waitFor(@NotNull final Future<?> producer) {
+    try {
+      producer.get();
+    } catch (InterruptedException e) {
+      throw new ProcessCanceledException(e);
+    } catch (ExecutionException e) {
+      ExceptionUtil.rethrowUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
     }
+  }
+
+  @NotNull
+  private static ResolveFilters createFilters(@NotNull final Project project,
+                                              @NotNull final AnalyzeOptions options,
+                                              @NotNull final ProjectSourceClasses sources) {
+    final LibraryPackageIndex libraries = LibraryPackageIndex.getInstance(project);
+    //the index is not updated from worker threads under Read lock
+    libraries.ensureUpToDate();
+    return new ResolveFilters(options.getResolveFilters(), sources, libraries);
+  }
+
+  @NotNull
+  static List<VirtualFile> collectModuleFiles(@NotNull final ProgressIndicator indicator,
+                                              @NotNull final Module module) {
+    final List<VirtualFile> allFiles = new ArrayList<>(1000);
+    processModuleFiles(indicator, module, allFiles::add);
+    return allFiles;
+  }
+
+  /**
+   * Iterates source and test source files of the module
+   */
+  static void processModuleFiles(@NotNull final ProgressIndicator indicator,
+                                 @NotNull final Module module,
+                                 @NotNull final Consumer<VirtualFile> consumer) {
+    final ModuleFileIndex moduleIndex = ModuleRootManager.getInstance(module).getFileIndex();
+
+    moduleIndex.iterateContent(fileOrDir -> {
+      indicator.checkCanceled();
+
+      if (fileOrDir.isDirectory()) return true;
+      if (ProjectCoreUtil.isProjectOrWorkspaceFile(fileOrDir)) return true;
+      if (!moduleIndex.isInContent(fileOrDir)) return true;
+      if (moduleIndex.isInSourceContent(fileOrDir) || moduleIndex.isInTestSourceContent(fileOrDir)) {
+        consumer.accept(fileOrDir);
+      }
+      return true;
+    });
+  }
 }
@@ -18,43 +18,377 @@ package com.eugenePetrenko.idea.dependencies;
 
 import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.command.undo.GlobalUndoableAction;
+import com.intellij.openapi.command.undo.UndoManager;
 import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.ModifiableRootModel;
-import com.intellij.openapi.roots.ModuleRootManager;
-import com.intellij.openapi.roots.OrderEntry;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.impl.ModifiableModelCommitter;
+import com.intellij.openapi.roots.impl.libraries.LibraryEx;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.roots.libraries.LibraryProperties;
+import com.intellij.openapi.roots.libraries.LibraryTable;
+import com.intellij.openapi.roots.libraries.LibraryTablesRegistrar;
+import com.intellij.openapi.roots.libraries.PersistentLibraryKind;
+import com.intellij.util.ArrayUtilRt;
+import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
 
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
  * Date: 08.04.13 0:08
  */
 public class ModuleDependenciesUpdater {
+  /**
+   * Removes dependencies of all modules in one multi-module commit,
+   * so that project roots change only once. The removal is registered
+   * as an undoable action, so must be called in a command and under write action
+   */
   public static void updateModuleDependencies(@NotNull final Project project,
                                               @NotNull final ModulesDependencies model) {
-    //TODO: implement undo
-
+    final List<ModuleSnapshot> snapshots = new ArrayList<>();
     for (final Module module : model.modules()) {
       final LibOrModuleSet toRemove = model.forModule(module);
-      if (toRemove == null) return;
-
-      final ModifiableRootModel rootModel = ModuleRootManager.getInstance(module).getModifiableModel();
-      try {
-        boolean containedChanges = false;
-        for (OrderEntry e : rootModel.getOrderEntries()) {
-          if (toRemove.contains(e)) {
-            rootModel.removeOrderEntry(e);
-            containedChanges = true;
+      if (toRemove == null) continue;
+
+      final ModuleSnapshot snapshot = new ModuleSnapshot(module.getName());
+      final OrderEntry[] entries = ModuleRootManager.getInstance(module).getOrderEntries();
+      for (int i = 0; i < entries.length; i++) {
+        if (!toRemove.contains(entries[i])) continue;
+
+        final RemovedEntry removed = RemovedEntry.create(i, entries[i]);
+        if (removed != null) snapshot.myEntries.add(removed);
+      }
+
+      if (!snapshot.myEntries.isEmpty()) snapshots.add(snapshot);
+    }
+
+    if (snapshots.isEmpty()) return;
+    removeEntries(project, snapshots);
+    UndoManager.getInstance(project).undoableActionPerformed(new RemoveDependenciesAction(project, snapshots));
+  }
+
+  private static void removeEntries(@NotNull final Project project,
+                                    @NotNull final List<ModuleSnapshot> snapshots) {
+    final ModuleManager moduleManager = ModuleManager.getInstance(project);
+    final List<ModifiableRootModel> models = new ArrayList<>();
+    try {
+      for (ModuleSnapshot snapshot : snapshots) {
+        final Module module = moduleManager.findModuleByName(snapshot.myModuleName);
+        if (module == null) continue;
+
+        final ModifiableRootModel rootModel = ModuleRootManager.getInstance(module).getModifiableModel();
+        models.add(rootModel);
+
+        //entries are found before the removal, since the removal shifts positions
+        final OrderEntry[] entries = rootModel.getOrderEntries();
+        final List<OrderEntry> found = new ArrayList<>();
+        for (RemovedEntry removed : snapshot.myEntries) {
+          final OrderEntry e = removed.find(entries);
+          if (e != null) found.add(e);
+        }
+        for (OrderEntry e : found) {
+          rootModel.removeOrderEntry(e);
+        }
+      }
+
+      multiCommit(project, models);
+    } finally {
+      disposeUncommitted(models);
+    }
+  }
+
+  private static void restoreEntries(@NotNull final Project project,
+                                     @NotNull final List<ModuleSnapshot> snapshots) {
+    final ModuleManager moduleManager = ModuleManager.getInstance(project);
+    final List<ModifiableRootModel> models = new ArrayList<>();
+    try {
+      for (ModuleSnapshot snapshot : snapshots) {
+        final Module module = moduleManager.findModuleByName(snapshot.myModuleName);
+        if (module == null) continue;
+
+        final ModifiableRootModel rootModel = ModuleRootManager.getInstance(module).getModifiableModel();
+        models.add(rootModel);
+
+        final List<OrderEntry> order = new ArrayList<>(Arrays.asList(rootModel.getOrderEntries()));
+        //entries are sorted by the original index
+        for (RemovedEntry removed : snapshot.myEntries) {
+          final OrderEntry entry = removed.restore(project, rootModel);
+          if (entry == null) continue;
+          order.add(Math.min(removed.myIndex, order.size()), entry);
+        }
+        rootModel.rearrangeOrderEntries(order.toArray(OrderEntry.EMPTY_ARRAY));
+      }
+
+      multiCommit(project, models);
+    } finally {
+      disposeUncommitted(models);
+    }
+  }
+
+  private static void multiCommit(@NotNull final Project project,
+                                  @NotNull final List<ModifiableRootModel> models) {
+    final List<ModifiableRootModel> changed = new ArrayList<>();
+    for (ModifiableRootModel model : models) {
+      if (model.isChanged()) changed.add(model);
+    }
+    if (changed.isEmpty()) return;
+
+    //one roots change event for all modules
+    ModifiableModelCommitter.multiCommit(
+            changed.toArray(new ModifiableRootModel[0]),
+            ModuleManager.getInstance(project).getModifiableModel());
+  }
+
+  private static void disposeUncommitted(@NotNull final List<ModifiableRootModel> models) {
+    for (ModifiableRootModel model : models) {
+      //it's not allowed to dispose model after commit
+      if (model.isWritable()) model.dispose();
+    }
+  }
+
+  private static class RemoveDependenciesAction extends GlobalUndoableAction {
+    private final Project myProject;
+    private final List<ModuleSnapshot> mySnapshots;
+
+    private RemoveDependenciesAction(@NotNull final Project project,
+                                     @NotNull final List<ModuleSnapshot> snapshots) {
+      myProject = project;
+      mySnapshots = snapshots;
+    }
+
+    @Override
+    public void undo() {
+      WriteAction.run(() -> restoreEntries(myProject, mySnapshots));
+    }
+
+    @Override
+    public void redo() {
+      WriteAction.run(() -> removeEntries(myProject, mySnapshots));
+    }
+  }
+
+  private static class ModuleSnapshot {
+    private final String myModuleName;
+    private final List<RemovedEntry> myEntries = new ArrayList<>();
+
+    private ModuleSnapshot(@NotNull final String moduleName) {
+      myModuleName = moduleName;
+    }
+  }
+
+  /**
+   * Description of a removed order entry that is enough to find or to re-create it,
+   * the entry itself and module level libraries are disposed on removal.
+   * An entry is looked for at its position first, since a module may have
+   * several entries with the same name
+   */
+  private static class RemovedEntry {
+    private final int myIndex;
+    private final DependencyScope myScope;
+    private final boolean myExported;
+    @Nullable
+    private final String myModuleName;
+    @Nullable
+    private final String myLibraryName;
+    @Nullable
+    private final String myLibraryLevel;
+    /**
+     * Kind, properties and roots of a module level library
+     */
+    @Nullable
+    private PersistentLibraryKind<?> myKind;
+    @Nullable
+    private LibraryProperties<?> myProperties;
+    private final Map<OrderRootType, String[]> myUrls = new HashMap<>();
+    /**
+     * Jar directories of every root type with their recursive flags
+     */
+    private final Map<OrderRootType, Map<String, Boolean>> myJarDirectories = new HashMap<>();
+    private String[] myExcludedUrls = ArrayUtilRt.EMPTY_STRING_ARRAY;
+
+    private RemovedEntry(final int index,
+                         @NotNull final ExportableOrderEntry e,
+                         @Nullable final String moduleName,
+                         @Nullable final String libraryName,
+                         @Nullable final String libraryLevel) {
+      myIndex = index;
+      myScope = e.getScope();
+      myExported = e.isExported();
+      myModuleName = moduleName;
+      myLibraryName = libraryName;
+      myLibraryLevel = libraryLevel;
+    }
+
+    @Nullable
+    static RemovedEntry create(final int index, @NotNull final OrderEntry e) {
+      if (e instanceof ModuleOrderEntry) {
+        final ModuleOrderEntry entry = (ModuleOrderEntry) e;
+        return new RemovedEntry(index, entry, entry.getModuleName(), null, null);
+      }
+
+      if (e instanceof LibraryOrderEntry) {
+        final LibraryOrderEntry entry = (LibraryOrderEntry) e;
+        final RemovedEntry removed = new RemovedEntry(index, entry, null, entry.getLibraryName(), entry.getLibraryLevel());
+        final Library library = entry.getLibrary();
+        if (entry.isModuleLevel() && library != null) {
+          Element state = null;
+          for (OrderRootType type : OrderRootType.getAllTypes()) {
+            final String[] urls = library.getUrls(type);
+            if (urls.length == 0) continue;
+            removed.myUrls.put(type, urls);
+            for (String url : urls) {
+              if (!library.isJarDirectory(url, type)) continue;
+              if (state == null) state = writeState(library);
+              removed.myJarDirectories.computeIfAbsent(type, t -> new HashMap<>()).put(url, isRecursive(state, type, url));
+            }
+          }
+          if (library instanceof LibraryEx) {
+            final LibraryEx ex = (LibraryEx) library;
+            removed.myExcludedUrls = ex.getExcludedRootUrls();
+            removed.myKind = ex.getKind();
+            removed.myProperties = copyProperties(ex.getKind(), ex.getProperties());
           }
         }
+        return removed;
+      }
+      return null;
+    }
+
+    @NotNull
+    private static Element writeState(@NotNull final Library library) {
+      final Element state = new Element("library");
+      library.writeExternal(state);
+      return state;
+    }
+
+    /**
+     * The library API does not tell whether a jar directory is recursive,
+     * so the flag is read from the stored state of the library
+     */
+    private static boolean isRecursive(@NotNull final Element state,
+                                       @NotNull final OrderRootType type,
+                                       @NotNull final String url) {
+      for (Element e : state.getChildren("jarDirectory")) {
+        //the type is not stored for jar directories of classes
+        if (!type.name().equals(e.getAttributeValue("type", OrderRootType.CLASSES.name()))) continue;
+        if (url.equals(e.getAttributeValue("url"))) return Boolean.parseBoolean(e.getAttributeValue("recursive"));
+      }
+      return false;
+    }
+
+    /**
+     * @return copy of the properties, the library that owns them is disposed on removal
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static LibraryProperties<?> copyProperties(@Nullable final PersistentLibraryKind<?> kind,
+                                                       @Nullable final LibraryProperties<?> properties) {
+      if (kind == null || properties == null) return null;
+      final LibraryProperties<Object> copy = (LibraryProperties<Object>) kind.createDefaultProperties();
+      copy.loadState(properties.getState());
+      return copy;
+    }
+
+    /**
+     * @param entries order entries of the module
+     * @return the entry at the original position if it matches, otherwise the only matching entry
+     */
+    @Nullable
+    OrderEntry find(@NotNull final OrderEntry[] entries) {
+      if (myIndex < entries.length && matches(entries[myIndex])) return entries[myIndex];
+
+      OrderEntry found = null;
+      for (OrderEntry e : entries) {
+        if (!matches(e)) continue;
+        //the module was changed, an ambiguous entry is not removed
+        if (found != null) return null;
+        found = e;
+      }
+      return found;
+    }
+
+    private boolean matches(@NotNull final OrderEntry e) {
+      if (!(e instanceof ExportableOrderEntry)) return false;
+      final ExportableOrderEntry exportable = (ExportableOrderEntry) e;
+      if (exportable.getScope() != myScope || exportable.isExported() != myExported) return false;
+
+      if (myModuleName != null) {
+        return e instanceof ModuleOrderEntry && myModuleName.equals(((ModuleOrderEntry) e).getModuleName());
+      }
+
+      if (!(e instanceof LibraryOrderEntry)) return false;
+      final LibraryOrderEntry entry = (LibraryOrderEntry) e;
+      if (!Objects.equals(myLibraryLevel, entry.getLibraryLevel())) return false;
+      if (!Objects.equals(myLibraryName, entry.getLibraryName())) return false;
+      if (!entry.isModuleLevel()) return true;
+
+      final Library library = entry.getLibrary();
+      if (library == null) return false;
+      if (library instanceof LibraryEx && !Objects.equals(myKind, ((LibraryEx) library).getKind())) return false;
+      return Arrays.equals(classes(), library.getUrls(OrderRootType.CLASSES));
+    }
+
+    @Nullable
+    OrderEntry restore(@NotNull final Project project, @NotNull final ModifiableRootModel model) {
+      final ExportableOrderEntry entry;
+      if (myModuleName != null) {
+        final Module module = ModuleManager.getInstance(project).findModuleByName(myModuleName);
+        entry = module != null ? model.addModuleOrderEntry(module) : model.addInvalidModuleEntry(myModuleName);
+      } else if (LibraryTablesRegistrar.APPLICATION_LEVEL.equals(myLibraryLevel) || LibraryTablesRegistrar.PROJECT_LEVEL.equals(myLibraryLevel)) {
+        if (myLibraryName == null) return null;
+        final LibraryTable table = LibraryTablesRegistrar.getInstance().getLibraryTableByLevel(myLibraryLevel, project);
+        final Library library = table != null ? table.getLibraryByName(myLibraryName) : null;
+        entry = library != null ? model.addLibraryEntry(library) : model.addInvalidLibrary(myLibraryName, myLibraryLevel);
+      } else {
+        entry = restoreModuleLibrary(model);
+      }
+
+      if (entry == null) return null;
+      entry.setScope(myScope);
+      entry.setExported(myExported);
+      return entry;
+    }
 
-        if (containedChanges) {
-          rootModel.commit();
+    @Nullable
+    private LibraryOrderEntry restoreModuleLibrary(@NotNull final ModifiableRootModel model) {
+      final LibraryTable.ModifiableModel tableModel = model.getModuleLibraryTable().getModifiableModel();
+      final Library library = tableModel.createLibrary(myLibraryName, myKind);
+      final Library.ModifiableModel libraryModel = library.getModifiableModel();
+      for (Map.Entry<OrderRootType, String[]> e : myUrls.entrySet()) {
+        final Map<String, Boolean> jarDirectories = myJarDirectories.getOrDefault(e.getKey(), Collections.emptyMap());
+        for (String url : e.getValue()) {
+          final Boolean recursive = jarDirectories.get(url);
+          if (recursive != null) {
+            libraryModel.addJarDirectory(url, recursive, e.getKey());
+          } else {
+            libraryModel.addRoot(url, e.getKey());
+          }
+        }
+      }
+      if (libraryModel instanceof LibraryEx.ModifiableModelEx) {
+        final LibraryEx.ModifiableModelEx ex = (LibraryEx.ModifiableModelEx) libraryModel;
+        for (String url : myExcludedUrls) {
+          ex.addExcludedRoot(url);
         }
-      } finally {
-        //it's not allowed to dispose model after commit
-        if (rootModel.isWritable()) rootModel.dispose();
+        //the copy is not shared between restores
+        final LibraryProperties<?> properties = copyProperties(myKind, myProperties);
+        if (properties != null) ex.setProperties(properties);
       }
+      libraryModel.commit();
+      tableModel.commit();
+      return model.findLibraryOrderEntry(library);
+    }
+
+    @NotNull
+    private String[] classes() {
+      final String[] urls = myUrls.get(OrderRootType.CLASSES);
+      return urls != null ? urls : ArrayUtilRt.EMPTY_STRING_ARRAY;
     }
   }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.codeInsight.daemon.ProblemHighlightFilter;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Resolves references of module files and collects usages into the module search.
+ * The processor is shared by all worker threads of one search run
+ */
+class ModuleFileProcessor implements FileBatchWorker.FileProcessor {
+  private final ProgressIndicator myIndicator;
+  private final Project myProject;
+  private final DependencyUniverse myUniverse;
+  private final PsiManager myPsiManager;
+  private final DependencyFootprintCache myFootprints;
+  private final ResolveCachePolicy myCaches;
+  @Nullable
+  private final FootprintStore myStore;
+  @Nullable
+  private final ResolveFilters myFilters;
+  private final ProjectFileIndex myFileIndex;
+  private final AtomicInteger myStoredFiles = new AtomicInteger();
+  private final ThreadLocal<ReferenceWalker> myWalkers;
+  @Nullable
+  private final BiConsumer<Module, LibOrModuleSet> myListener;
+
+  ModuleFileProcessor(@NotNull final AnalyzeOptions options,
+                      @NotNull final ProgressIndicator indicator,
+                      @NotNull final Project project,
+                      @NotNull final DependencyFootprintCache footprints,
+                      @NotNull final DependencyUniverse universe,
+                      @Nullable final FootprintStore store,
+                      @Nullable final ResolveFilters filters,
+                      @Nullable final BiConsumer<Module, LibOrModuleSet> listener) {
+    myIndicator = indicator;
+    myProject = project;
+    myUniverse = universe;
+    myPsiManager = PsiManager.getInstance(project);
+    myFootprints = footprints;
+    myCaches = new ResolveCachePolicy(myPsiManager, options);
+    myStore = store;
+    myFilters = filters;
+    myFileIndex = ProjectRootManager.getInstance(project).getFileIndex();
+    myWalkers = ThreadLocal.withInitial(() -> new ReferenceWalker(footprints, new LibOrModuleSet(universe), filters));
+    myListener = listener;
+  }
+
+  @Override
+  public void process(@NotNull final FileTask task) {
+    final ModuleSearch search = task.getSearch();
+    if (search.isSaturated()) {
+      fileProcessed(search, null);
+      return;
+    }
+    final int total = search.getTotalFiles();
+    myIndicator.setText(search.getModule().getName() + " (" + search.getProcessedFiles() + (total < 0 ? "" : " of " + total) + " files)");
+
+    final LibOrModuleSet oes = search.getAccumulator();
+    if (myStore == null) {
+      final PsiFile psiFile = findFile(task.getFile());
+      if (psiFile != null) {
+        myWalkers.get().walk(search, psiFile, isTest(task.getFile()), oes);
+        myCaches.fileProcessed(psiFile);
+      }
+      fileProcessed(search, oes);
+      return;
+    }
+
+    final LibOrModuleSet stored = myStore.load(task.getFile(), myUniverse);
+    if (stored != null) {
+      myStoredFiles.incrementAndGet();
+      oes.addDependencies(stored);
+      fileProcessed(search, oes);
+      return;
+    }
+
+    final PsiFile psiFile = findFile(task.getFile());
+    if (psiFile != null) {
+      final FileUsages usages = myWalkers.get().walkTracking(search, psiFile, isTest(task.getFile()));
+      myCaches.fileProcessed(psiFile);
+      oes.addDependencies(usages.getUsages());
+      //saturation may have stopped the file before all usages were collected
+      if (!search.isSaturated()) {
+        myStore.save(task.getFile(), usages);
+      }
+    }
+    fileProcessed(search, oes);
+  }
+
+  @Override
+  public void batchProcessed() {
+    myCaches.batchProcessed();
+  }
+
+  /**
+   * Called once all files of a streamed module are enumerated
+   */
+  public void filesEnumerated(@NotNull final ModuleSearch search, final int files) {
+    if (search.setTotalFiles(files)) {
+      ApplicationManager.getApplication().runReadAction(myCaches::moduleProcessed);
+      moduleFinished(search);
+    }
+  }
+
+  private void fileProcessed(@NotNull final ModuleSearch search, @Nullable final LibOrModuleSet oes) {
+    if (search.fileProcessed(oes)) {
+      myCaches.moduleProcessed();
+      moduleFinished(search);
+    }
+  }
+
+  private void moduleFinished(@NotNull final ModuleSearch search) {
+    if (myListener != null) myListener.accept(search.getModule(), search.getDependencies());
+  }
+
+  /**
+   * @return PSI of the file or null if the file is not analyzed
+   */
+  @Nullable
+  private PsiFile findFile(@NotNull final VirtualFile file) {
+    final PsiFile psiFile = myPsiManager.findFile(file);
+
+    if (psiFile == null) return null;
+    if (!psiFile.isValid()) return null;
+    if (!ProblemHighlightFilter.shouldProcessFileInBatch(psiFile)) return null;
+
+    myIndicator.checkCanceled();
+    myIndicator.setText2("" + ProjectUtil.calcRelativeToProjectPath(file, myProject));
+    return psiFile;
+  }
+
+  private boolean isTest(@NotNull final VirtualFile file) {
+    return myFilters != null && myFileIndex.isInTestSourceContent(file);
+  }
+
+  @Override
+  public String toString() {
+    return (myStore != null ? "Files taken from the footprint store: " + myStoredFiles + ". " : "") +
+            (myFilters != null ? myFilters + ". " : "") +
+            myFootprints + ". " + myCaches;
+  }
+}
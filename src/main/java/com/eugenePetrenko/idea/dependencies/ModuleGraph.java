@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of module to module dependencies of a project.
+ * Forward and reverse edges are stored as int arrays indexed by module ID,
+ * exported dependencies of a module are stored as bitsets.
+ * The snapshot is cached on the project and is rebuilt on project roots change.
+ * Should be accessed under read action
+ */
+class ModuleGraph {
+  private static final Key<CachedValue<ModuleGraph>> KEY = Key.create("jonnyzzz.dependencies.module.graph");
+
+  private final Module[] myModules;
+  private final Map<Module, Integer> myModuleIds;
+  private final Library[] myLibraries;
+  /**
+   * Modules that module with given ID depends on
+   */
+  private final int[][] myDependencies;
+  /**
+   * Modules that depend on module with given ID
+   */
+  private final int[][] myDependents;
+  private final BitSet[] myExportedModules;
+  private final BitSet[] myExportedLibraries;
+
+  private ModuleGraph(@NotNull final Module[] modules) {
+    myModules = modules;
+    myModuleIds = new HashMap<>(modules.length * 2);
+    for (int i = 0; i < modules.length; i++) {
+      myModuleIds.put(modules[i], i);
+    }
+
+    final Map<Library, Integer> libraryIds = new HashMap<>();
+    final List<Library> libraries = new ArrayList<>();
+    myDependencies = new int[modules.length][];
+    myExportedModules = new BitSet[modules.length];
+    myExportedLibraries = new BitSet[modules.length];
+
+    final int[] dependentsCount = new int[modules.length];
+    for (int i = 0; i < modules.length; i++) {
+      final BitSet dependencies = new BitSet();
+      final BitSet exportedModules = new BitSet();
+      final BitSet exportedLibraries = new BitSet();
+
+      for (OrderEntry e : ModuleRootManager.getInstance(modules[i]).getOrderEntries()) {
+        if (e instanceof ModuleOrderEntry) {
+          final ModuleOrderEntry entry = (ModuleOrderEntry) e;
+          final int id = findModuleId(entry.getModule());
+          if (id < 0) continue;
+
+          dependencies.set(id);
+          if (entry.isExported()) exportedModules.set(id);
+        } else if (e instanceof LibraryOrderEntry) {
+          final LibraryOrderEntry entry = (LibraryOrderEntry) e;
+          final Library library = entry.getLibrary();
+          if (library == null || !entry.isExported()) continue;
+          if (!DependenciesFilter.REMOVABLE_DEPENDENCY.test(entry)) continue;
+
+          exportedLibraries.set(libraryIds.computeIfAbsent(library, l -> {
+            libraries.add(l);
+            return libraries.size() - 1;
+          }));
+        }
+      }
+
+      myDependencies[i] = dependencies.stream().toArray();
+      myExportedModules[i] = exportedModules;
+      myExportedLibraries[i] = exportedLibraries;
+      for (int dep : myDependencies[i]) {
+        dependentsCount[dep]++;
+      }
+    }
+
+    myDependents = new int[modules.length][];
+    for (int i = 0; i < modules.length; i++) {
+      myDependents[i] = new int[dependentsCount[i]];
+      dependentsCount[i] = 0;
+    }
+    for (int i = 0; i < modules.length; i++) {
+      for (int dep : myDependencies[i]) {
+        myDependents[dep][dependentsCount[dep]++] = i;
+      }
+    }
+
+    myLibraries = libraries.toArray(new Library[0]);
+  }
+
+  @NotNull
+  public static ModuleGraph getInstance(@NotNull final Project project) {
+    return CachedValuesManager.getManager(project).getCachedValue(project, KEY, () -> CachedValueProvider.Result.create(
+            new ModuleGraph(ModuleManager.getInstance(project).getModules()),
+            ProjectRootModificationTracker.getInstance(project)
+    ), false);
+  }
+
+  public int getModulesCount() {
+    return myModules.length;
+  }
+
+  @NotNull
+  public Module getModule(final int id) {
+    return myModules[id];
+  }
+
+  /**
+   * @return ID of the module or -1 if the module is not in the snapshot
+   */
+  public int findModuleId(@Nullable final Module module) {
+    if (module == null) return -1;
+    final Integer id = myModuleIds.get(module);
+    return id != null ? id : -1;
+  }
+
+  @NotNull
+  public int[] getDependencies(final int id) {
+    return myDependencies[id];
+  }
+
+  @NotNull
+  public int[] getDependents(final int id) {
+    return myDependents[id];
+  }
+
+  public boolean hasExports(final int id) {
+    return !myExportedModules[id].isEmpty() || !myExportedLibraries[id].isEmpty();
+  }
+
+  /**
+   * @return true if module {@code id} exports its dependency on module {@code dependency}
+   */
+  public boolean isExported(final int id, final int dependency) {
+    return myExportedModules[id].get(dependency);
+  }
+
+  /**
+   * @return exported dependencies of the module in terms of the given universe
+   */
+  @NotNull
+  public LibOrModuleSet getExports(final int id, @NotNull final DependencyUniverse universe) {
+    final LibOrModuleSet exports = new LibOrModuleSet(universe);
+    final BitSet modules = myExportedModules[id];
+    for (int i = modules.nextSetBit(0); i >= 0; i = modules.nextSetBit(i + 1)) {
+      exports.addDependency(myModules[i]);
+    }
+    final BitSet libraries = myExportedLibraries[id];
+    for (int i = libraries.nextSetBit(0); i >= 0; i = libraries.nextSetBit(i + 1)) {
+      exports.addDependency(myLibraries[i]);
+    }
+    return exports;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.lang.java.JavaLanguage;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleUtilCore;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.SimpleModificationTracker;
+import com.intellij.psi.*;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory cache of module usages between analysis runs.
+ * An entry is a {@link CachedValue} of a module that depends on project roots,
+ * on Java structure of the project and on any PSI change in the module files.
+ * Usages are held by a soft reference, so the cache never keeps memory
+ * the IDE needs
+ */
+public class ModuleResultCache implements Disposable {
+  private static final Key<CachedValue<Memo>> KEY = Key.create("jonnyzzz.dependencies.module.usages");
+
+  private final Project myProject;
+  private final ConcurrentMap<Module, SimpleModificationTracker> myModuleTrackers = ContainerUtil.createConcurrentWeakMap();
+  /**
+   * Changes that cannot be attributed to a module, i.e. file moves and deletions
+   */
+  private final SimpleModificationTracker myUnknownModuleTracker = new SimpleModificationTracker();
+
+  public ModuleResultCache(@NotNull final Project project) {
+    myProject = project;
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+      @Override
+      public void childAdded(@NotNull PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childMoved(@NotNull PsiTreeChangeEvent event) {
+        myUnknownModuleTracker.incModificationCount();
+      }
+
+      @Override
+      public void propertyChanged(@NotNull PsiTreeChangeEvent event) {
+        myUnknownModuleTracker.incModificationCount();
+      }
+    }, this);
+  }
+
+  @NotNull
+  public static ModuleResultCache getInstance(@NotNull final Project project) {
+    return project.getService(ModuleResultCache.class);
+  }
+
+  private void psiChanged(@NotNull final PsiTreeChangeEvent event) {
+    final PsiFile file = event.getFile();
+    final Module module = file == null ? null : ModuleUtilCore.findModuleForFile(file);
+    if (module == null) {
+      myUnknownModuleTracker.incModificationCount();
+      return;
+    }
+    moduleTracker(module).incModificationCount();
+  }
+
+  @NotNull
+  private SimpleModificationTracker moduleTracker(@NotNull final Module module) {
+    return myModuleTrackers.computeIfAbsent(module, m -> new SimpleModificationTracker());
+  }
+
+  /**
+   * Returns the memo of the module. The memo must be taken before
+   * the module is analyzed, so that changes made during the analysis
+   * invalidate the stored usages. Call under Read lock
+   */
+  @NotNull
+  public Memo getMemo(@NotNull final Module module) {
+    return CachedValuesManager.getManager(myProject).getCachedValue(module, KEY, () -> CachedValueProvider.Result.create(
+            new Memo(),
+            ProjectRootManager.getInstance(myProject),
+            PsiModificationTracker.SERVICE.getInstance(myProject).forLanguage(JavaLanguage.INSTANCE),
+            myUnknownModuleTracker,
+            moduleTracker(module)
+    ), false);
+  }
+
+  @Override
+  public void dispose() {
+    myModuleTrackers.clear();
+  }
+
+  /**
+   * Usages of a module computed while its dependencies were not changed.
+   * Usages are stored with the options they were collected with,
+   * see {@link AnalyzeOptions#getResultKey()}
+   */
+  public static class Memo {
+    private volatile SoftReference<Stored> myStored;
+
+    /**
+     * @param key options of the current analysis
+     * @return copy of stored usages or null if usages are not known, were collected
+     * with other options or were collected by GC
+     */
+    @Nullable
+    public LibOrModuleSet get(@NotNull final String key) {
+      final SoftReference<Stored> ref = myStored;
+      final Stored stored = ref == null ? null : ref.get();
+      if (stored == null || !stored.myKey.equals(key)) return null;
+      return copy(stored.myUsages);
+    }
+
+    public void set(@NotNull final String key, @NotNull final LibOrModuleSet usages) {
+      myStored = new SoftReference<>(new Stored(key, copy(usages)));
+    }
+
+    @NotNull
+    private static LibOrModuleSet copy(@NotNull final LibOrModuleSet usages) {
+      final LibOrModuleSet copy = new LibOrModuleSet(usages.getUniverse());
+      copy.addDependencies(usages);
+      return copy;
+    }
+  }
+
+  private static class Stored {
+    private final String myKey;
+    private final LibOrModuleSet myUsages;
+
+    private Stored(@NotNull final String key, @NotNull final LibOrModuleSet usages) {
+      myKey = key;
+      myUsages = usages;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.module.Module;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives results of the analysis module by module, as soon as the result
+ * of a module is final. Modules which usages may be updated by other modules,
+ * i.e. modules with exported dependencies, are reported once all modules are analyzed.
+ * Every analyzed module is reported once. Implementation must be thread-safe,
+ * it is called from worker threads, possibly under Read lock
+ */
+public interface ModuleResultListener {
+  /**
+   * @param module   analyzed module
+   * @param toRemove dependencies that could be removed from the module, may be empty.
+   *                 The set must not be changed
+   */
+  void moduleFinished(@NotNull Module module, @NotNull LibOrModuleSet toRemove);
+}
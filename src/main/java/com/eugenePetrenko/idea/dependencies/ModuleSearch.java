@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.module.Module;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Collected state of one module, shared by all the file tasks of the module.
+ * Every worker thread collects usages into its own set,
+ * the sets are merged once the last file of the module is processed
+ */
+class ModuleSearch {
+  private final Module myModule;
+  private final DependencyUniverse myUniverse;
+  /** number of files of the module, or -1 while files are still enumerated */
+  private volatile int myTotalFiles;
+  private final AtomicInteger myProcessedFiles = new AtomicInteger();
+  private final AtomicBoolean myFinished = new AtomicBoolean();
+  private final ConcurrentMap<Thread, LibOrModuleSet> myAccumulators = new ConcurrentHashMap<>();
+  private final LibOrModuleSet myDependencies;
+  /** qualified names of classes which footprints are counted for production and test sources of the module */
+  private final Set<String> myCountedClasses = ConcurrentHashMap.newKeySet();
+  private final Set<String> myCountedTestClasses = ConcurrentHashMap.newKeySet();
+
+  private int[] myRequiredModules;
+  private int[] myRequiredLibraries;
+  private AtomicIntegerArray myProven;
+  private AtomicInteger myUnproven;
+  private volatile boolean mySaturated;
+
+  /**
+   * @param totalFiles number of files of the module, or -1 if files are
+   *                   enumerated while they are processed, see {@link #setTotalFiles}
+   */
+  ModuleSearch(@NotNull final Module module, final int totalFiles, @NotNull final DependencyUniverse universe) {
+    myModule = module;
+    myUniverse = universe;
+    myTotalFiles = totalFiles;
+    myDependencies = new LibOrModuleSet(universe);
+  }
+
+  @NotNull
+  public Module getModule() {
+    return myModule;
+  }
+
+  /**
+   * @return number of files of the module, or -1 if it is not known yet
+   */
+  public int getTotalFiles() {
+    return myTotalFiles;
+  }
+
+  /**
+   * Called once files of the module that was created with an unknown number
+   * of files are enumerated, the files may have been processed already
+   * @return true if all the files of the module were processed
+   */
+  public boolean setTotalFiles(final int totalFiles) {
+    myTotalFiles = totalFiles;
+    return myProcessedFiles.get() == totalFiles && finish();
+  }
+
+  public int getProcessedFiles() {
+    return myProcessedFiles.get();
+  }
+
+  /**
+   * Enables saturation for the module
+   * @param required all dependencies that are to be proven
+   */
+  public void setRequiredDependencies(@NotNull final LibOrModuleSet required) {
+    myRequiredModules = required.getModuleIds();
+    myRequiredLibraries = required.getLibraryIds();
+    myProven = new AtomicIntegerArray(myRequiredModules.length + myRequiredLibraries.length);
+    myUnproven = new AtomicInteger(myProven.length());
+    mySaturated = myProven.length() == 0;
+  }
+
+  /**
+   * Registers usages found without processing module files
+   * @param proven usages of the module
+   */
+  public void addProvenDependencies(@NotNull final LibOrModuleSet proven) {
+    myDependencies.addDependencies(proven);
+    updateSaturation(proven);
+  }
+
+  /**
+   * @return true if all required dependencies are already proven,
+   * so the rest of the files do not need to be processed
+   */
+  public boolean isSaturated() {
+    return mySaturated;
+  }
+
+  /**
+   * @return usages set of the current thread
+   */
+  @NotNull
+  public LibOrModuleSet getAccumulator() {
+    final Thread thread = Thread.currentThread();
+    final LibOrModuleSet set = myAccumulators.get(thread);
+    if (set != null) return set;
+    return myAccumulators.computeIfAbsent(thread, t -> new LibOrModuleSet(myUniverse));
+  }
+
+  /**
+   * Called when a file is processed or skipped
+   * @param accumulator usages set of the current thread or null if the file was skipped
+   * @return true if it was the last file of the module
+   */
+  public boolean fileProcessed(@Nullable final LibOrModuleSet accumulator) {
+    if (accumulator != null) updateSaturation(accumulator);
+
+    if (myProcessedFiles.incrementAndGet() != myTotalFiles) return false;
+    return finish();
+  }
+
+  private boolean finish() {
+    //the last file and the enumeration may both see the module done
+    if (!myFinished.compareAndSet(false, true)) return false;
+
+    //all other threads are done with the module
+    mergeAccumulators();
+    return true;
+  }
+
+  /**
+   * @param name qualified name of a class
+   * @param isTest true for usages from test sources, which may see
+   *               a class with the same name in other dependencies
+   * @return true if the footprint of the class is counted for the module
+   */
+  public boolean isCounted(@NotNull final String name, final boolean isTest) {
+    return (isTest ? myCountedTestClasses : myCountedClasses).contains(name);
+  }
+
+  public void setCounted(@NotNull final String name, final boolean isTest) {
+    (isTest ? myCountedTestClasses : myCountedClasses).add(name);
+  }
+
+  @NotNull
+  public LibOrModuleSet getDependencies() {
+    assert myProcessedFiles.get() == myTotalFiles;
+    return myDependencies;
+  }
+
+  private void updateSaturation(@NotNull final LibOrModuleSet accumulator) {
+    if (myProven == null || mySaturated) return;
+
+    for (int i = 0; i < myRequiredModules.length; i++) {
+      if (accumulator.containsModuleId(myRequiredModules[i])) prove(i);
+    }
+    for (int i = 0; i < myRequiredLibraries.length; i++) {
+      if (accumulator.containsLibraryId(myRequiredLibraries[i])) prove(myRequiredModules.length + i);
+    }
+  }
+
+  private void prove(final int index) {
+    if (myProven.get(index) != 0) return;
+    if (!myProven.compareAndSet(index, 0, 1)) return;
+    if (myUnproven.decrementAndGet() == 0) {
+      mySaturated = true;
+    }
+  }
+
+  private void mergeAccumulators() {
+    for (LibOrModuleSet set : myAccumulators.values()) {
+      myDependencies.addDependencies(set);
+    }
+    myAccumulators.clear();
+  }
+}
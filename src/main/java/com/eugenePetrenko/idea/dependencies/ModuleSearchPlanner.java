@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Prepares the search of every module and adds module files for the analysis.
+ * Usages that are known without the analysis, that is cached usages and usages
+ * found by the bytecode engine, are taken directly.
+ * In streaming mode files of a module are added while the module content
+ * is iterated, unless the module needs all its files to be known first
+ */
+class ModuleSearchPlanner {
+  /**
+   * Receives files of modules to be analyzed
+   */
+  interface FileTaskSink {
+    void add(@NotNull FileTask task);
+
+    /**
+     * Called once all files of a streamed module are added
+     * @param files number of added files of the module
+     */
+    default void moduleEnumerated(@NotNull ModuleSearch search, int files) {
+    }
+  }
+
+  private final AnalyzeOptions myOptions;
+  private final ProgressIndicator myIndicator;
+  private final Project myProject;
+  private final DependencyUniverse myUniverse;
+  private final DependencyFootprintCache myFootprints;
+  @Nullable
+  private final ModuleResultCache myResultCache;
+  @Nullable
+  private final ImportPrescan myPrescan;
+  @Nullable
+  private final BiConsumer<Module, LibOrModuleSet> myListener;
+  private final Map<Module, LibOrModuleSet> myResults = new LinkedHashMap<>();
+  private final Map<ModuleSearch, ModuleResultCache.Memo> mySearches = new LinkedHashMap<>();
+  private int myCompiledModules;
+  private int myReverseModules;
+  private int myStreamedModules;
+
+  ModuleSearchPlanner(@NotNull final AnalyzeOptions options,
+                      @NotNull final ProgressIndicator indicator,
+                      @NotNull final Project project,
+                      @NotNull final DependencyUniverse universe,
+                      @NotNull final DependencyFootprintCache footprints,
+                      @Nullable final ModuleResultCache resultCache,
+                      @Nullable final ImportPrescan prescan,
+                      @Nullable final BiConsumer<Module, LibOrModuleSet> listener) {
+    myOptions = options;
+    myIndicator = indicator;
+    myProject = project;
+    myUniverse = universe;
+    myFootprints = footprints;
+    myResultCache = resultCache;
+    myPrescan = prescan;
+    myListener = listener;
+  }
+
+  public void planModules(@NotNull final Module[] modules, @NotNull final FileTaskSink sink) {
+    for (int i = 0; i < modules.length; i++) {
+      final Module module = modules[i];
+      myIndicator.checkCanceled();
+      if (!myOptions.isStreaming()) {
+        //streamed files are analyzed meanwhile, the analysis shows the progress
+        myIndicator.setText("Collecting files of " + module.getName());
+        myIndicator.setFraction((double) i / modules.length);
+      }
+
+      //the memo is taken before the analysis, so changes made meanwhile are not stored
+      final ModuleResultCache.Memo memo = myResultCache == null ? null : ApplicationManager.getApplication().runReadAction((Computable<ModuleResultCache.Memo>) () -> myResultCache.getMemo(module));
+      final LibOrModuleSet cached = memo == null ? null : memo.get(myOptions.getResultKey());
+      if (cached != null) {
+        myResults.put(module, cached);
+        moduleFinished(module, cached);
+        continue;
+      }
+      //keeps the order of modules in the result
+      myResults.put(module, null);
+
+      if (myOptions.isStreaming() && !needsAllFiles()) {
+        streamModule(module, memo, sink);
+        continue;
+      }
+
+      final List<VirtualFile> files = ModuleDependenciesSearcher.collectModuleFiles(myIndicator, module);
+      if (myOptions.getEngine() == AnalyzeOptions.Engine.BYTECODE) {
+        final LibOrModuleSet compiled = BytecodeDependenciesSearcher.searchModule(myIndicator, myProject, module, files, myFootprints, myUniverse);
+        if (compiled != null) {
+          //the memo does not depend on the compiler output, so bytecode usages are not stored
+          myResults.put(module, compiled);
+          myCompiledModules++;
+          moduleFinished(module, compiled);
+          continue;
+        }
+      }
+
+      final ModuleSearch search = new ModuleSearch(module, files.size(), myUniverse);
+      if (myOptions.isSaturation()) {
+        saturate(search, files);
+        //larger files tend to have more imports, so they are likely to prove more dependencies
+        files.sort(Comparator.comparingLong(VirtualFile::getLength).reversed());
+      }
+      mySearches.put(search, memo);
+      if (files.isEmpty()) {
+        //no file completes the search
+        moduleFinished(module, search.getDependencies());
+        continue;
+      }
+      for (VirtualFile file : files) {
+        sink.add(new FileTask(search, file));
+      }
+    }
+  }
+
+  private void moduleFinished(@NotNull final Module module, @NotNull final LibOrModuleSet usages) {
+    if (myListener != null) myListener.accept(module, usages);
+  }
+
+  /**
+   * @return usages of modules that were known without the analysis, other modules are mapped to null
+   */
+  @NotNull
+  public Map<Module, LibOrModuleSet> getResults() {
+    return myResults;
+  }
+
+  /**
+   * @return searches of analyzed modules with their result cache memos
+   */
+  @NotNull
+  public Map<ModuleSearch, ModuleResultCache.Memo> getSearches() {
+    return mySearches;
+  }
+
+  public int getCompiledModules() {
+    return myCompiledModules;
+  }
+
+  public int getReverseModules() {
+    return myReverseModules;
+  }
+
+  public int getStreamedModules() {
+    return myStreamedModules;
+  }
+
+  /**
+   * Two-phase mode, the bytecode engine and the reverse search planner use all files of a module
+   */
+  private boolean needsAllFiles() {
+    switch (myOptions.getEngine()) {
+      case BYTECODE:
+        return true;
+      case AUTO:
+        return myOptions.isSaturation();
+      default:
+        return myPrescan != null;
+    }
+  }
+
+  private void streamModule(@NotNull final Module module,
+                            @Nullable final ModuleResultCache.Memo memo,
+                            @NotNull final FileTaskSink sink) {
+    final ModuleSearch search = new ModuleSearch(module, -1, myUniverse);
+    if (myOptions.isSaturation()) saturate(search, null);
+    mySearches.put(search, memo);
+    myStreamedModules++;
+
+    if (search.isSaturated()) {
+      //no file can add a usage
+      sink.moduleEnumerated(search, 0);
+      return;
+    }
+
+    final int[] files = {0};
+    ModuleDependenciesSearcher.processModuleFiles(myIndicator, module, file -> {
+      sink.add(new FileTask(search, file));
+      files[0]++;
+    });
+    sink.moduleEnumerated(search, files[0]);
+  }
+
+  /**
+   * Enables saturation for the module and proves dependencies without the forward scan
+   * @param files all files of the module or null if they are not known yet
+   */
+  private void saturate(@NotNull final ModuleSearch search, @Nullable final List<VirtualFile> files) {
+    final Module module = search.getModule();
+    final LibOrModuleSet required = ApplicationManager.getApplication().runReadAction((Computable<LibOrModuleSet>) () -> collectReachableDependencies(module));
+    search.setRequiredDependencies(required);
+    if (myPrescan != null && files != null) {
+      myIndicator.setText2("Scanning imports of " + module.getName());
+      search.addProvenDependencies(myPrescan.proveUsages(myIndicator, module, files, required, myUniverse));
+    }
+    if (!search.isSaturated() && isReverseSearch(files, required)) {
+      //files are skipped by the forward scan if all dependencies are proven
+      search.addProvenDependencies(ReverseDependenciesSearcher.proveUsages(myIndicator, myProject, module, required, myUniverse, myOptions));
+      myReverseModules++;
+    }
+  }
+
+  private boolean isReverseSearch(@Nullable final List<VirtualFile> files, @NotNull final LibOrModuleSet required) {
+    switch (myOptions.getEngine()) {
+      case REVERSE:
+        return true;
+      case AUTO:
+        return files != null && ReverseDependenciesSearcher.isReverseCheaper(files.size(), required, myOptions);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Collects all the dependencies which usages may affect the result for the module,
+   * that is declared dependencies and dependencies exported by them
+   */
+  @NotNull
+  private LibOrModuleSet collectReachableDependencies(@NotNull final Module module) {
+    final LibOrModuleSet result = new LibOrModuleSet(myUniverse);
+    ModuleRootManager.getInstance(module).orderEntries().withoutSdk().withoutModuleSourceEntries().recursively().exportedOnly().forEach(e -> {
+      result.addDependency(e);
+      return true;
+    });
+    return result;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.containers.ConcurrentIntObjectMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves order entries that own a file.
+ * All files under the same classes or source root have the same owners,
+ * so the index is queried once per root and the answer is shared.
+ * Only {@link DependenciesFilter#REMOVABLE_DEPENDENCY} entries are returned,
+ * one entry per library or module.
+ * Must be called under Read lock
+ */
+public class OrderEntryLookup {
+  private final ProjectFileIndex myIndex;
+  private final ConcurrentIntObjectMap<List<OrderEntry>> myFileOwners = ContainerUtil.createConcurrentIntObjectMap();
+  private final ConcurrentMap<Pair<VirtualFile, VirtualFile>, List<OrderEntry>> myRootOwners = new ConcurrentHashMap<>();
+
+  public OrderEntryLookup(@NotNull final ProjectFileIndex index) {
+    myIndex = index;
+  }
+
+  @NotNull
+  public ProjectFileIndex getIndex() {
+    return myIndex;
+  }
+
+  /**
+   * @param file a file
+   * @return shared immutable list of order entries owning the file
+   */
+  @NotNull
+  public List<OrderEntry> getOwners(@NotNull final VirtualFile file) {
+    if (!(file instanceof VirtualFileWithId)) return getRootOwners(file);
+
+    final int id = ((VirtualFileWithId) file).getId();
+    final List<OrderEntry> cached = myFileOwners.get(id);
+    if (cached != null) return cached;
+
+    final List<OrderEntry> owners = getRootOwners(file);
+    myFileOwners.put(id, owners);
+    return owners;
+  }
+
+  /**
+   * @param file a file
+   * @return innermost classes and source roots of the file,
+   * or null if the file is not under any root
+   */
+  @Nullable
+  public Pair<VirtualFile, VirtualFile> getRoots(@NotNull final VirtualFile file) {
+    final VirtualFile classRoot = myIndex.getClassRootForFile(file);
+    final VirtualFile sourceRoot = myIndex.getSourceRootForFile(file);
+    if (classRoot == null && sourceRoot == null) return null;
+    return Pair.create(classRoot, sourceRoot);
+  }
+
+  @NotNull
+  private List<OrderEntry> getRootOwners(@NotNull final VirtualFile file) {
+    final Pair<VirtualFile, VirtualFile> roots = getRoots(file);
+    if (roots == null) return computeOwners(file);
+
+    final List<OrderEntry> cached = myRootOwners.get(roots);
+    if (cached != null) return cached;
+
+    final List<OrderEntry> owners = computeOwners(file);
+    final List<OrderEntry> existing = myRootOwners.putIfAbsent(roots, owners);
+    return existing != null ? existing : owners;
+  }
+
+  @NotNull
+  private List<OrderEntry> computeOwners(@NotNull final VirtualFile file) {
+    final Set<Module> modules = new HashSet<>();
+    final Set<Library> libs = new HashSet<>();
+    final List<OrderEntry> result = new ArrayList<>();
+
+    for (OrderEntry e : myIndex.getOrderEntriesForFile(file)) {
+      if (!DependenciesFilter.REMOVABLE_DEPENDENCY.test(e)) continue;
+
+      final boolean isNew = e.accept(new RootPolicy<>() {
+        @Override
+        public Boolean visitModuleOrderEntry(@NotNull ModuleOrderEntry moduleOrderEntry, Boolean value) {
+          final Module module = moduleOrderEntry.getModule();
+          return module != null && modules.add(module);
+        }
+
+        @Override
+        public Boolean visitLibraryOrderEntry(@NotNull LibraryOrderEntry libraryOrderEntry, Boolean value) {
+          final Library library = libraryOrderEntry.getLibrary();
+          return library != null && libs.add(library);
+        }
+      }, false);
+
+      if (isNew) result.add(e);
+    }
+    return result.isEmpty() ? Collections.emptyList() : List.copyOf(result);
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Trie of packages and top-level classes. A node is a name segment,
+ * children are kept in sorted arrays. Every node knows owners
+ * that contain a class or a package with the node path.
+ * Owners are small int IDs assigned by the caller.
+ * Not thread-safe
+ */
+class PackageTrie {
+  private static final String[] NO_KEYS = new String[0];
+  private static final Node[] NO_NODES = new Node[0];
+  private static final int[] NO_OWNERS = new int[0];
+
+  static class Node {
+    private String[] myKeys = NO_KEYS;
+    private Node[] myChildren = NO_NODES;
+    private int[] myClassOwners = NO_OWNERS;
+    private int[] myPackageOwners = NO_OWNERS;
+
+    @Nullable
+    private Node child(@NotNull final CharSequence name, final int from, final int to) {
+      int low = 0;
+      int high = myKeys.length - 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final int cmp = compare(myKeys[mid], name, from, to);
+        if (cmp < 0) low = mid + 1;
+        else if (cmp > 0) high = mid - 1;
+        else return myChildren[mid];
+      }
+      return null;
+    }
+
+    @NotNull
+    private Node getOrCreateChild(@NotNull final String name) {
+      final int index = Arrays.binarySearch(myKeys, name);
+      if (index >= 0) return myChildren[index];
+
+      final int at = -index - 1;
+      final Node node = new Node();
+      myKeys = insert(myKeys, at, name, new String[myKeys.length + 1]);
+      myChildren = insert(myChildren, at, node, new Node[myChildren.length + 1]);
+      return node;
+    }
+  }
+
+  private final Node myRoot = new Node();
+
+  /**
+   * Adds a class with its packages
+   * @param path    class name segments, i.e. package names and the short class name
+   * @param touched receives nodes that got the owner, they are needed to {@link #remove} it
+   */
+  public void addClass(@NotNull final String[] path, final int owner, @NotNull final Collection<Node> touched) {
+    Node node = myRoot;
+    for (int i = 0; i < path.length; i++) {
+      node = node.getOrCreateChild(path[i]);
+      if (i == path.length - 1) {
+        if (addOwner(node, owner, true)) touched.add(node);
+      } else {
+        if (addOwner(node, owner, false)) touched.add(node);
+      }
+    }
+  }
+
+  /**
+   * Removes the owner from the nodes it was added to
+   */
+  public void remove(@NotNull final Collection<Node> touched, final int owner) {
+    for (Node node : touched) {
+      node.myClassOwners = removeOwner(node.myClassOwners, owner);
+      node.myPackageOwners = removeOwner(node.myPackageOwners, owner);
+    }
+  }
+
+  /**
+   * @param qualifiedName dot-separated name of a top-level class
+   * @return sorted owners of the class, the array must not be modified
+   */
+  @NotNull
+  public int[] getClassOwners(@NotNull final CharSequence qualifiedName) {
+    final Node node = find(qualifiedName);
+    return node == null ? NO_OWNERS : node.myClassOwners;
+  }
+
+  /**
+   * @param packageName dot-separated name of a package
+   * @return sorted owners that contain classes of the package or its subpackages, the array must not be modified
+   */
+  @NotNull
+  public int[] getPackageOwners(@NotNull final CharSequence packageName) {
+    final Node node = find(packageName);
+    return node == null ? NO_OWNERS : node.myPackageOwners;
+  }
+
+  @Nullable
+  private Node find(@NotNull final CharSequence name) {
+    Node node = myRoot;
+    int from = 0;
+    while (node != null && from <= name.length()) {
+      int to = from;
+      while (to < name.length() && name.charAt(to) != '.') to++;
+      node = node.child(name, from, to);
+      from = to + 1;
+    }
+    return node;
+  }
+
+  private static boolean addOwner(@NotNull final Node node, final int owner, final boolean isClass) {
+    final int[] owners = isClass ? node.myClassOwners : node.myPackageOwners;
+    final int index = Arrays.binarySearch(owners, owner);
+    if (index >= 0) return false;
+
+    final int[] result = new int[owners.length + 1];
+    final int at = -index - 1;
+    System.arraycopy(owners, 0, result, 0, at);
+    result[at] = owner;
+    System.arraycopy(owners, at, result, at + 1, owners.length - at);
+    if (isClass) node.myClassOwners = result;
+    else node.myPackageOwners = result;
+    return true;
+  }
+
+  @NotNull
+  private static int[] removeOwner(@NotNull final int[] owners, final int owner) {
+    final int index = Arrays.binarySearch(owners, owner);
+    if (index < 0) return owners;
+    if (owners.length == 1) return NO_OWNERS;
+
+    final int[] result = new int[owners.length - 1];
+    System.arraycopy(owners, 0, result, 0, index);
+    System.arraycopy(owners, index + 1, result, index, owners.length - index - 1);
+    return result;
+  }
+
+  @NotNull
+  private static <T> T[] insert(@NotNull final T[] array, final int at, @NotNull final T value, @NotNull final T[] result) {
+    System.arraycopy(array, 0, result, 0, at);
+    result[at] = value;
+    System.arraycopy(array, at, result, at + 1, array.length - at);
+    return result;
+  }
+
+  private static int compare(@NotNull final String key, @NotNull final CharSequence name, final int from, final int to) {
+    final int length = Math.min(key.length(), to - from);
+    for (int i = 0; i < length; i++) {
+      final int cmp = key.charAt(i) - name.charAt(from + i);
+      if (cmp != 0) return cmp;
+    }
+    return key.length() - (to - from);
+  }
+}
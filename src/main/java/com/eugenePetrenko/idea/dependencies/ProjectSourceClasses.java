@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Top-level classes of project modules by qualified names, taken from the layout
+ * of Java source files. Sources of other JVM languages may declare any class,
+ * modules with such sources are reported as opaque.
+ * The snapshot is taken once per analysis run, either from the project file index
+ * or, while the IDE is indexing, directly from source roots of modules
+ */
+class ProjectSourceClasses {
+  private static final Set<String> OPAQUE_EXTENSIONS = Set.of("kt", "kts", "groovy", "scala", "clj");
+
+  private final PackageTrie myClasses = new PackageTrie();
+  private final List<Module> myModules;
+  private final Set<Module> myOpaqueModules = new HashSet<>();
+
+  private ProjectSourceClasses(@NotNull final Project project) {
+    myModules = Arrays.asList(ModuleManager.getInstance(project).getModules());
+  }
+
+  @NotNull
+  public static ProjectSourceClasses collect(@NotNull final Project project) {
+    final ProjectSourceClasses result = new ProjectSourceClasses(project);
+    ApplicationManager.getApplication().runReadAction(() -> result.collectClasses(project));
+    return result;
+  }
+
+  /**
+   * Reads source roots of modules without the project file index, so that
+   * the layout is known while the IDE is indexing
+   */
+  @NotNull
+  public static ProjectSourceClasses collectFromSourceRoots(@NotNull final Project project) {
+    final ProjectSourceClasses result = new ProjectSourceClasses(project);
+    ApplicationManager.getApplication().runReadAction(result::collectRootClasses);
+    return result;
+  }
+
+  /**
+   * Iterates files under source roots of the module, excluded folders and
+   * nested source roots are skipped. Must be called under Read lock
+   * @param consumer receives a file and the package name of its directory
+   */
+  static void processSourceRootFiles(@NotNull final Module module, @NotNull final BiConsumer<VirtualFile, String> consumer) {
+    final Set<VirtualFile> roots = new HashSet<>();
+    final Set<VirtualFile> excluded = new HashSet<>();
+    final ContentEntry[] entries = ModuleRootManager.getInstance(module).getContentEntries();
+    for (ContentEntry entry : entries) {
+      excluded.addAll(Arrays.asList(entry.getExcludeFolderFiles()));
+      for (SourceFolder folder : entry.getSourceFolders()) {
+        if (folder.getFile() != null) roots.add(folder.getFile());
+      }
+    }
+
+    final FileTypeManager fileTypes = FileTypeManager.getInstance();
+    for (ContentEntry entry : entries) {
+      for (SourceFolder folder : entry.getSourceFolders()) {
+        final VirtualFile root = folder.getFile();
+        if (root == null) continue;
+
+        final String prefix = folder.getPackagePrefix();
+        VfsUtilCore.visitChildrenRecursively(root, new VirtualFileVisitor<Void>() {
+          @Override
+          public boolean visitFile(@NotNull VirtualFile file) {
+            if (fileTypes.isFileIgnored(file)) return false;
+            if (file.isDirectory()) {
+              //a nested root is visited with its own package prefix
+              return file.equals(root) || !roots.contains(file) && !excluded.contains(file);
+            }
+
+            final VirtualFile dir = file.getParent();
+            final String relative = dir == null ? null : VfsUtilCore.getRelativePath(dir, root, '.');
+            if (relative == null) return true;
+            consumer.accept(file, prefix.isEmpty() ? relative : relative.isEmpty() ? prefix : prefix + "." + relative);
+            return true;
+          }
+        });
+      }
+    }
+  }
+
+  private void collectClasses(@NotNull final Project project) {
+    final ProjectFileIndex index = ProjectRootManager.getInstance(project).getFileIndex();
+    final List<PackageTrie.Node> touched = new ArrayList<>();
+    for (int i = 0; i < myModules.size(); i++) {
+      final Module module = myModules.get(i);
+      final int owner = i;
+      final ModuleFileIndex moduleIndex = ModuleRootManager.getInstance(module).getFileIndex();
+      moduleIndex.iterateContent(file -> {
+        if (file.isDirectory()) return true;
+        if (!moduleIndex.isInSourceContent(file)) return true;
+
+        final VirtualFile dir = file.getParent();
+        addSourceFile(owner, file, dir == null ? null : index.getPackageNameByDirectory(dir), touched);
+        return true;
+      });
+    }
+  }
+
+  private void collectRootClasses() {
+    final List<PackageTrie.Node> touched = new ArrayList<>();
+    for (int i = 0; i < myModules.size(); i++) {
+      final int owner = i;
+      processSourceRootFiles(myModules.get(i), (file, packageName) -> addSourceFile(owner, file, packageName, touched));
+    }
+  }
+
+  private void addSourceFile(final int owner,
+                             @NotNull final VirtualFile file,
+                             @Nullable final String packageName,
+                             @NotNull final List<PackageTrie.Node> touched) {
+    final String extension = file.getExtension();
+    if (extension != null && OPAQUE_EXTENSIONS.contains(extension)) myOpaqueModules.add(myModules.get(owner));
+    if (!"java".equals(extension)) return;
+    if (packageName == null) return;
+
+    final List<String> path = new ArrayList<>(StringUtil.split(packageName, "."));
+    path.add(file.getNameWithoutExtension());
+    myClasses.addClass(path.toArray(new String[0]), owner, touched);
+    //nodes are only needed to remove an owner
+    touched.clear();
+  }
+
+  /**
+   * @param qualifiedName name of a top-level class
+   * @return modules with a Java source file of the class
+   */
+  @NotNull
+  public List<Module> getClassOwners(@NotNull final CharSequence qualifiedName) {
+    return toModules(myClasses.getClassOwners(qualifiedName));
+  }
+
+  @NotNull
+  private List<Module> toModules(@NotNull final int[] ids) {
+    if (ids.length == 0) return Collections.emptyList();
+    final List<Module> result = new ArrayList<>(ids.length);
+    for (int id : ids) {
+      result.add(myModules.get(id));
+    }
+    return result;
+  }
+
+  /**
+   * @param packageName name of a package
+   * @return modules with Java source files of the package or of its subpackages
+   */
+  @NotNull
+  public List<Module> getPackageOwners(@NotNull final CharSequence packageName) {
+    return toModules(myClasses.getPackageOwners(packageName));
+  }
+
+  /**
+   * @return true if the module has sources that may declare classes not seen by this snapshot
+   */
+  public boolean isOpaque(@NotNull final Module module) {
+    return myOpaqueModules.contains(module);
+  }
+
+  @NotNull
+  public Set<Module> getOpaqueModules() {
+    return Collections.unmodifiableSet(myOpaqueModules);
+  }
+}
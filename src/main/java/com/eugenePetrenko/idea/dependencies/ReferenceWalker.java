@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Resolves references of files and collects usages of every file.
+ * A walker is owned by one thread and reused for all files that the thread
+ * processes, so the per-file state is kept in fields that are reset for every
+ * file instead of being captured by a new sink
+ */
+class ReferenceWalker implements DependencyReferenceExtractor.ReferenceSink {
+  private final DependencyFootprintCache myFootprints;
+  private final FileUsages myUsages = new FileUsages();
+  @Nullable
+  private final ResolveFilters.FileFilter myFilterState;
+  /** usages of one file for the footprint store */
+  private final LibOrModuleSet myFileUsages;
+
+  private ModuleSearch mySearch;
+  private ResolveFilters.FileFilter myFilter;
+
+  ReferenceWalker(@NotNull final DependencyFootprintCache footprints,
+                  @NotNull final LibOrModuleSet fileUsages,
+                  @Nullable final ResolveFilters filters) {
+    myFootprints = footprints;
+    myFileUsages = fileUsages;
+    myFilterState = filters == null ? null : filters.createFileFilter();
+  }
+
+  /**
+   * Collects usages of the file into the given set
+   */
+  public void walk(@NotNull final ModuleSearch search,
+                   @NotNull final PsiFile file,
+                   final boolean isTest,
+                   @NotNull final LibOrModuleSet usages) {
+    myUsages.reset(usages, false);
+    walk(search, file, isTest);
+  }
+
+  /**
+   * Collects complete usages of the file and project source files
+   * that they were resolved to into the reused state of the walker
+   * @return usages of the file, valid until the next walk
+   */
+  @NotNull
+  public FileUsages walkTracking(@NotNull final ModuleSearch search,
+                                 @NotNull final PsiFile file,
+                                 final boolean isTest) {
+    myFileUsages.clear();
+    myUsages.reset(myFileUsages, true);
+    walk(search, file, isTest);
+    return myUsages;
+  }
+
+  private void walk(@NotNull final ModuleSearch search,
+                    @NotNull final PsiFile file,
+                    final boolean isTest) {
+    mySearch = search;
+    myFilter = myFilterState != null && myFilterState.reset(search, file, isTest, myUsages.isTrackingSourceFiles()) ? myFilterState : null;
+    try {
+      DependencyReferenceExtractor.forFile(file).processReferences(file, this);
+    } finally {
+      //do not hold PSI of the file until the next one
+      mySearch = null;
+      myFilter = null;
+      if (myFilterState != null) myFilterState.release();
+    }
+  }
+
+  @Override
+  public boolean isDone() {
+    //let a pending write action interrupt the read action
+    ProgressManager.checkCanceled();
+    //other files have already proven all the dependencies
+    return mySearch.isSaturated();
+  }
+
+  @Override
+  public void reference(@NotNull final PsiReference reference) {
+    if (myFilter != null && !myFilter.shouldResolve(reference)) return;
+
+    final PsiElement resolved = reference.resolve();
+    if (resolved == null) return;
+    if (resolved.getProject().isDefault()) return;
+    if (!resolved.isValid()) return;
+
+    if (resolved instanceof PsiClass) {
+      myUsages.addFootprint(myFootprints.getFootprint((PsiClass) resolved));
+      if (myFilter != null) myFilter.classCounted((PsiClass) resolved);
+      return;
+    }
+
+    registerUsage(resolved);
+  }
+
+  private void registerUsage(@NotNull final PsiElement resolved) {
+    final PsiFile file = resolved.getContainingFile();
+    if (file == null) return;
+    if (!file.isValid()) return;
+
+    final VirtualFile virtual = file.getVirtualFile();
+    if (virtual == null) return;
+    if (!virtual.isValid()) return;
+
+    myUsages.addUsage(myFootprints.getTargets(virtual), virtual, myUsages.isTrackingSourceFiles() && myFootprints.isProjectSource(virtual));
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.AnalyzeOptions.CacheRetention;
+import com.intellij.lang.injection.InjectedLanguageManager;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops resolve caches during the analysis according to {@link CacheRetention}.
+ * Keeping caches lets the next file of the same package reuse resolve results,
+ * dropping them keeps the memory bounded. The time spent on drops and
+ * the heap used after garbage collections are collected to compare the policies.
+ * Methods are called under Read lock from worker threads
+ */
+class ResolveCachePolicy {
+  private static final List<MemoryPoolMXBean> HEAP_POOLS = heapPools();
+
+  private final PsiManager myPsiManager;
+  private final CacheRetention myRetention;
+  private final long myHeapBudget;
+
+  private final AtomicBoolean myDropping = new AtomicBoolean();
+  private final AtomicLong myDrops = new AtomicLong();
+  private final AtomicLong myDropNanos = new AtomicLong();
+  private final AtomicLong myPeakUsedHeap = new AtomicLong();
+  /** used heap measured at the last drop, it is the same until the next collection */
+  private final AtomicLong myUsedHeapAtDrop = new AtomicLong(-1);
+
+  ResolveCachePolicy(@NotNull final PsiManager psiManager, @NotNull final AnalyzeOptions options) {
+    myPsiManager = psiManager;
+    myRetention = options.getCacheRetention();
+    myHeapBudget = Runtime.getRuntime().maxMemory() / 100 * Math.max(1, Math.min(100, options.getHeapBudgetPercent()));
+  }
+
+  public void fileProcessed(@NotNull final PsiFile psiFile) {
+    //injected fragments of the analyzed file are not needed for other files
+    InjectedLanguageManager.getInstance(psiFile.getProject()).dropFileCaches(psiFile);
+
+    final long used = usedHeap();
+    myPeakUsedHeap.accumulateAndGet(used, Math::max);
+
+    if (myRetention == CacheRetention.PER_FILE) {
+      dropCaches();
+    } else if (myRetention == CacheRetention.ON_MEMORY_PRESSURE && used > myHeapBudget && myUsedHeapAtDrop.getAndSet(used) != used) {
+      //dropped caches are seen only after the next collection
+      dropCaches();
+    }
+  }
+
+  public void batchProcessed() {
+    if (myRetention == CacheRetention.PER_BATCH) dropCaches();
+  }
+
+  public void moduleProcessed() {
+    if (myRetention == CacheRetention.PER_MODULE) dropCaches();
+  }
+
+  private void dropCaches() {
+    //one drop is enough if many threads decide to drop at once
+    if (!myDropping.compareAndSet(false, true)) return;
+    try {
+      final long start = System.nanoTime();
+      myPsiManager.dropResolveCaches();
+      myDropNanos.addAndGet(System.nanoTime() - start);
+      myDrops.incrementAndGet();
+    } finally {
+      myDropping.set(false);
+    }
+  }
+
+  /**
+   * Free memory includes garbage, so heap pools are measured as they were
+   * after their last collection
+   * @return used heap after the last garbage collection
+   */
+  private static long usedHeap() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : HEAP_POOLS) {
+      final MemoryUsage usage = pool.getCollectionUsage();
+      if (usage != null) used += usage.getUsed();
+    }
+    return used;
+  }
+
+  @NotNull
+  private static List<MemoryPoolMXBean> heapPools() {
+    final List<MemoryPoolMXBean> result = new ArrayList<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      //pools without collection usage are not collected by a garbage collector
+      if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null) result.add(pool);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "ResolveCachePolicy{" +
+            "retention=" + myRetention +
+            ", heapBudget=" + StringUtil.formatFileSize(myHeapBudget) +
+            ", drops=" + myDrops +
+            ", dropTime=" + StringUtil.formatDuration(myDropNanos.get() / 1_000_000) +
+            ", peakUsedHeap=" + StringUtil.formatFileSize(myPeakUsedHeap.get()) +
+            ", usedHeap=" + StringUtil.formatFileSize(usedHeap()) +
+            '}';
+  }
+}
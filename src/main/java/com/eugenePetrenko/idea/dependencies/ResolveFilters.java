@@ -0,0 +1,300 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.AnalyzeOptions.ResolveFilter;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.*;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chain of pre-resolve filters. A Java type reference is not resolved if its target
+ * is known without resolving and cannot change the result:
+ * <ul>
+ * <li>{@link ResolveFilter#SDK} - classes of {@code java.*} packages, including
+ * not imported {@code java.lang} names, belong to the SDK which is never removed</li>
+ * <li>{@link ResolveFilter#MODULE_LOCAL} - short names of classes of the same package
+ * in the module, which footprint was already counted for the module</li>
+ * <li>{@link ResolveFilter#PROVEN} - imported and qualified names of classes,
+ * which footprint was already counted for the module</li>
+ * </ul>
+ * The target is derived from the file imports and declared classes the same way
+ * Java resolves names, references that may be shadowed are always resolved.
+ * Counters show how many resolves every filter avoided
+ */
+class ResolveFilters {
+  private final Set<ResolveFilter> myFilters;
+  private final ProjectSourceClasses mySources;
+  private final LibraryPackageIndex myLibraries;
+  private final Map<ResolveFilter, AtomicLong> mySkipped = new EnumMap<>(ResolveFilter.class);
+  private final AtomicLong myResolved = new AtomicLong();
+
+  ResolveFilters(@NotNull final Set<ResolveFilter> filters,
+                 @NotNull final ProjectSourceClasses sources,
+                 @NotNull final LibraryPackageIndex libraries) {
+    myFilters = filters.isEmpty() ? EnumSet.noneOf(ResolveFilter.class) : EnumSet.copyOf(filters);
+    mySources = sources;
+    myLibraries = libraries;
+    for (ResolveFilter filter : ResolveFilter.values()) {
+      mySkipped.put(filter, new AtomicLong());
+    }
+  }
+
+  /**
+   * @return an empty filter, that is reset for every file
+   */
+  @NotNull
+  public FileFilter createFileFilter() {
+    return new FileFilter();
+  }
+
+  /**
+   * References of one file, used by one thread. The filter is reused
+   * for all files that the thread processes, collections are cleared on reset
+   */
+  class FileFilter {
+    private final Set<String> myDeclaredNames = new HashSet<>();
+    private final Map<String, String> mySingleImports = new HashMap<>();
+    private final Set<String> myStaticImports = new HashSet<>();
+    private final StringBuilder myName = new StringBuilder();
+
+    private ModuleSearch mySearch;
+    private PsiJavaFile myFile;
+    private boolean myIsTest;
+    private boolean myCountedOnly;
+
+    private boolean myDeclaredNamesLoaded;
+    private boolean myImportsLoaded;
+    private boolean myHasOnDemandImports;
+    private boolean myHasOnDemandStaticImports;
+
+    private FileFilter() {
+    }
+
+    /**
+     * @param countedOnly true if usages of the file must be complete, so only
+     *                    filters that never skip a usage can be applied
+     * @return false if references of the file are not filtered
+     */
+    public boolean reset(@NotNull final ModuleSearch search,
+                         @NotNull final PsiFile file,
+                         final boolean isTest,
+                         final boolean countedOnly) {
+      mySearch = search;
+      myFile = file instanceof PsiJavaFile ? (PsiJavaFile) file : null;
+      myIsTest = isTest;
+      myCountedOnly = countedOnly;
+
+      myDeclaredNames.clear();
+      mySingleImports.clear();
+      myStaticImports.clear();
+      myDeclaredNamesLoaded = false;
+      myImportsLoaded = false;
+      myHasOnDemandImports = false;
+      myHasOnDemandStaticImports = false;
+      return myFile != null && !myFilters.isEmpty();
+    }
+
+    /**
+     * Forgets the file, so that its PSI is not held until the next reset
+     */
+    public void release() {
+      mySearch = null;
+      myFile = null;
+    }
+
+    /**
+     * @return false if the reference does not need to be resolved
+     */
+    public boolean shouldResolve(@NotNull final PsiReference reference) {
+      if (!(reference instanceof PsiJavaCodeReferenceElement)) return true;
+      //an expression may be a variable or a method that hides a class name
+      if (reference instanceof PsiReferenceExpression) return true;
+
+      final PsiJavaCodeReferenceElement element = (PsiJavaCodeReferenceElement) reference;
+      final ResolveFilter via = element.isQualified() || element.getParent() instanceof PsiImportStatement
+              ? ResolveFilter.PROVEN
+              : null;
+      final String name = via != null ? qualifiedName(element) : unqualifiedName(element);
+      if (name == null) return resolve();
+
+      if (name.startsWith("java.") && myFilters.contains(ResolveFilter.SDK)) return skip(ResolveFilter.SDK);
+      if (myCountedOnly) return resolve();
+
+      final ResolveFilter filter = via != null ? via : isModuleLocal(name) ? ResolveFilter.MODULE_LOCAL : ResolveFilter.PROVEN;
+      if (myFilters.contains(filter) && mySearch.isCounted(name, myIsTest)) return skip(filter);
+      return resolve();
+    }
+
+    /**
+     * Remembers that the footprint of the class is counted for the module
+     */
+    public void classCounted(@NotNull final PsiClass clazz) {
+      final String name = clazz.getQualifiedName();
+      if (name != null) mySearch.setCounted(name, myIsTest);
+    }
+
+    private boolean skip(@NotNull final ResolveFilter filter) {
+      mySkipped.get(filter).incrementAndGet();
+      return false;
+    }
+
+    private boolean resolve() {
+      myResolved.incrementAndGet();
+      return true;
+    }
+
+    private boolean isModuleLocal(@NotNull final String name) {
+      return mySources.getClassOwners(name).contains(mySearch.getModule());
+    }
+
+    /**
+     * @return qualified name of an import or a qualified reference, the first segment
+     * is expanded if it is an imported class
+     */
+    @Nullable
+    private String qualifiedName(@NotNull final PsiJavaCodeReferenceElement element) {
+      myName.setLength(0);
+      if (!appendQualifiedName(element)) return null;
+      final String joined = myName.toString();
+      if (element.getParent() instanceof PsiImportStatement) return joined;
+
+      //the first segment is a class or a package, a class wins
+      final int dot = joined.indexOf('.');
+      final String first = dot < 0 ? joined : joined.substring(0, dot);
+      if (isDeclared(first) || isStaticallyImported(first)) return null;
+      final String imported = getSingleImports().get(first);
+      if (imported != null) return dot < 0 ? imported : imported + joined.substring(dot);
+      if (hasPackageClass(first) || myHasOnDemandImports || myLibraries.isSdkClass("java.lang." + first)) return null;
+      return joined;
+    }
+
+    /**
+     * Appends segments of the reference, the qualifiers first
+     * @return false if a qualifier is an expression or a name is incomplete
+     */
+    private boolean appendQualifiedName(@NotNull final PsiJavaCodeReferenceElement ref) {
+      final String name = ref.getReferenceName();
+      if (name == null) return false;
+
+      final PsiElement qualifier = ref.getQualifier();
+      if (qualifier != null) {
+        if (!(qualifier instanceof PsiJavaCodeReferenceElement)) return false;
+        if (!appendQualifiedName((PsiJavaCodeReferenceElement) qualifier)) return false;
+        myName.append('.');
+      }
+      myName.append(name);
+      return true;
+    }
+
+    /**
+     * @return qualified name of a short name of a class
+     */
+    @Nullable
+    private String unqualifiedName(@NotNull final PsiJavaCodeReferenceElement element) {
+      final String name = element.getReferenceName();
+      if (name == null) return null;
+      if (isDeclared(name) || isStaticallyImported(name)) return null;
+
+      //a single-type import shadows classes of the package and on-demand imports
+      final String imported = getSingleImports().get(name);
+      if (imported != null) return imported;
+
+      final String local = packageLocalName(name);
+      //module sources come first in the module classpath
+      if (isModuleLocal(local)) return local;
+      if (hasPackageClass(name) || myHasOnDemandImports) return null;
+      if (!mySources.getOpaqueModules().isEmpty()) return null;
+      return myLibraries.isSdkClass("java.lang." + name) ? "java.lang." + name : null;
+    }
+
+    @NotNull
+    private String packageLocalName(@NotNull final String name) {
+      final String packageName = myFile.getPackageName();
+      if (packageName.isEmpty()) return name;
+      myName.setLength(0);
+      return myName.append(packageName).append('.').append(name).toString();
+    }
+
+    private boolean hasPackageClass(@NotNull final String name) {
+      final String local = packageLocalName(name);
+      return !mySources.getClassOwners(local).isEmpty() || !myLibraries.getClassOwners(local).isEmpty() || myLibraries.isSdkClass(local);
+    }
+
+    private boolean isDeclared(@NotNull final String name) {
+      if (!myDeclaredNamesLoaded) {
+        myDeclaredNamesLoaded = true;
+        //nested, local classes and type parameters shadow imported classes
+        for (PsiClass clazz : PsiTreeUtil.findChildrenOfType(myFile, PsiClass.class)) {
+          myDeclaredNames.add(clazz.getName());
+        }
+      }
+      return myDeclaredNames.contains(name);
+    }
+
+    private boolean isStaticallyImported(@NotNull final String name) {
+      getSingleImports();
+      return myHasOnDemandStaticImports || myStaticImports.contains(name);
+    }
+
+    /**
+     * @return imported classes by short names
+     */
+    @NotNull
+    private Map<String, String> getSingleImports() {
+      if (myImportsLoaded) return mySingleImports;
+      myImportsLoaded = true;
+
+      final PsiImportList list = myFile.getImportList();
+      if (list == null) return mySingleImports;
+
+      for (PsiImportStatement statement : list.getImportStatements()) {
+        final PsiJavaCodeReferenceElement ref = statement.getImportReference();
+        final String name = ref == null ? null : qualifiedName(ref);
+        if (statement.isOnDemand()) {
+          myHasOnDemandImports = true;
+        } else if (name != null) {
+          mySingleImports.put(StringUtil.getShortName(name), name);
+        }
+      }
+      for (PsiImportStaticStatement statement : list.getImportStaticStatements()) {
+        if (statement.isOnDemand()) {
+          //any member class of the imported class may be used by a short name
+          myHasOnDemandStaticImports = true;
+          break;
+        }
+        final String name = statement.getReferenceName();
+        if (name != null) myStaticImports.add(name);
+      }
+      return mySingleImports;
+    }
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("ResolveFilters{resolved=").append(myResolved);
+    for (Map.Entry<ResolveFilter, AtomicLong> e : mySkipped.entrySet()) {
+      sb.append(", ").append(e.getKey()).append("=").append(e.getValue());
+    }
+    return sb.append('}').toString();
+  }
+}
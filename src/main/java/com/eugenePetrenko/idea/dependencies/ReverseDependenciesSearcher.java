@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.OrderRootType;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.GlobalSearchScopesCore;
+import com.intellij.psi.search.PsiSearchHelper;
+import com.intellij.psi.search.searches.AllClassesSearch;
+import com.intellij.psi.search.searches.ReferencesSearch;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Proves usages of module dependencies in the reverse direction:
+ * for every dependency, classes it provides are searched for references
+ * in the module content with the word index, and the search stops at the first usage.
+ * Only usages can be proven this way, a dependency is used also if a class
+ * of it is a supertype of a used class. So dependencies that are not proven
+ * are left for the forward scan, which stops once all of them are proven
+ */
+class ReverseDependenciesSearcher {
+  /**
+   * Cost-based planner: the reverse search pays per declared dependency,
+   * while the forward scan pays per file, see {@link AnalyzeOptions#getReverseFilesPerDependency()}
+   * @return true if reverse search is expected to be cheaper for the module
+   */
+  public static boolean isReverseCheaper(final int files,
+                                         @NotNull final LibOrModuleSet required,
+                                         @NotNull final AnalyzeOptions options) {
+    final long dependencies = required.getModuleIds().length + required.getLibraryIds().length;
+    return dependencies * options.getReverseFilesPerDependency() < files;
+  }
+
+  /**
+   * @param required dependencies to look usages for
+   * @return dependencies that are proven to be used by the module
+   */
+  @NotNull
+  public static LibOrModuleSet proveUsages(@NotNull final ProgressIndicator indicator,
+                                           @NotNull final Project project,
+                                           @NotNull final Module module,
+                                           @NotNull final LibOrModuleSet required,
+                                           @NotNull final DependencyUniverse universe,
+                                           @NotNull final AnalyzeOptions options) {
+    final int classBudget = options.getReverseClassBudget();
+    final LibOrModuleSet result = new LibOrModuleSet(universe);
+    final GlobalSearchScope usages = module.getModuleScope(true);
+
+    for (int id : required.getModuleIds()) {
+      final Module dependency = universe.module(id);
+      indicator.checkCanceled();
+      indicator.setText2("Searching usages of " + dependency.getName() + " in " + module.getName());
+      if (hasUsages(indicator, project, dependency.getModuleScope(false), usages, classBudget)) {
+        result.addDependency(dependency);
+      }
+    }
+
+    for (int id : required.getLibraryIds()) {
+      final Library library = universe.library(id);
+      indicator.checkCanceled();
+      indicator.setText2("Searching usages of " + StringUtil.notNullize(library.getName(), "library") + " in " + module.getName());
+      final GlobalSearchScope provided = ApplicationManager.getApplication().runReadAction((Computable<GlobalSearchScope>) () -> libraryScope(project, library));
+      if (provided != null && hasUsages(indicator, project, provided, usages, classBudget)) {
+        result.addDependency(library);
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private static GlobalSearchScope libraryScope(@NotNull final Project project, @NotNull final Library library) {
+    final VirtualFile[] roots = library.getFiles(OrderRootType.CLASSES);
+    if (roots.length == 0) return null;
+    return GlobalSearchScopesCore.directoriesScope(project, true, roots);
+  }
+
+  private static boolean hasUsages(@NotNull final ProgressIndicator indicator,
+                                   @NotNull final Project project,
+                                   @NotNull final GlobalSearchScope provided,
+                                   @NotNull final GlobalSearchScope usages,
+                                   final int classBudget) {
+    final List<PsiClass> classes = ApplicationManager.getApplication().runReadAction((Computable<List<PsiClass>>) () -> {
+      final List<PsiClass> result = new ArrayList<>();
+      AllClassesSearch.search(provided, project).forEach(clazz -> {
+        //usages of nested classes refer to the top-level class too
+        if (clazz.getContainingClass() == null && clazz.getName() != null) result.add(clazz);
+        return result.size() < classBudget;
+      });
+      return result;
+    });
+
+    final PsiSearchHelper helper = PsiSearchHelper.getInstance(project);
+    for (PsiClass clazz : classes) {
+      indicator.checkCanceled();
+      //every class is checked under its own read action not to block write actions
+      final boolean used = ApplicationManager.getApplication().runReadAction((Computable<Boolean>) () -> {
+        if (!clazz.isValid()) return false;
+        final String name = clazz.getName();
+        if (name == null) return false;
+        if (helper.isCheapEnoughToSearch(name, usages, null, indicator) == PsiSearchHelper.SearchCostResult.ZERO_OCCURRENCES) return false;
+        return ReferencesSearch.search(clazz, usages).findFirst() != null;
+      });
+      if (used) return true;
+    }
+    return false;
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.eugenePetrenko.idea.dependencies.actions;
 
+import com.eugenePetrenko.idea.dependencies.AnalyzeOptions;
 import com.eugenePetrenko.idea.dependencies.AnalyzeStrategy;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
 import com.eugenePetrenko.idea.dependencies.ui.Comparators;
@@ -27,6 +28,7 @@ import com.intellij.openapi.progress.PerformInBackgroundOption;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.util.text.StringUtil;
@@ -45,7 +47,7 @@ import static com.eugenePetrenko.idea.dependencies.ModuleDependenciesAnalyzer.pr
  *
  * @author Eugene Petrenko (eugene.petrenko@jetbrains.com)
  */
-public class OnModuleAction extends AnAction {
+public class OnModuleAction extends AnAction implements DumbAware {
   @Override
   public void update(@NotNull AnActionEvent e) {
     super.update(e);
@@ -77,8 +79,14 @@ public class OnModuleAction extends AnAction {
             ) {
 
               public void run(@NotNull final ProgressIndicator indicator) {
+                final AnalyzeOptions options = AnalyzeOptions.defaults();
+                if (options.isResultsToolWindow()) {
+                  PostAction.streamProcess(project, StringUtil.join(modules, TO_STRING, ", "), indicator, (i, listener) -> processModulesDependencies(strategy, options, i, modules, project, listener));
+                  return;
+                }
+
                 final ModulesDependencies toRemove = processModulesDependencies(strategy, indicator, modules, myProject);
-                PostAction.completeProcess(project, toRemove);
+                PostAction.completeProcess(project, toRemove, indicator, i -> processModulesDependencies(strategy, i, modules, project));
               }
             });
   }
@@ -16,6 +16,7 @@
 
 package com.eugenePetrenko.idea.dependencies.actions;
 
+import com.eugenePetrenko.idea.dependencies.AnalyzeOptions;
 import com.eugenePetrenko.idea.dependencies.ModuleDependenciesAnalyzer;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
 import com.intellij.openapi.actionSystem.AnAction;
@@ -24,6 +25,7 @@ import com.intellij.openapi.progress.PerformInBackgroundOption;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -35,7 +37,7 @@ import static com.intellij.openapi.actionSystem.PlatformDataKeys.PROJECT;
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
  * Date: 06.04.13 11:16
  */
-public class OnProjectAction extends AnAction {
+public class OnProjectAction extends AnAction implements DumbAware {
   @Override
   public void update(@NotNull AnActionEvent e) {
     super.update(e);
@@ -51,8 +53,14 @@ public class OnProjectAction extends AnAction {
 
     ProgressManager.getInstance().run(new Task.Backgroundable(project, "Dependencies of all modules", true, PerformInBackgroundOption.ALWAYS_BACKGROUND) {
       public void run(@NotNull final ProgressIndicator indicator) {
+        final AnalyzeOptions options = AnalyzeOptions.defaults();
+        if (options.isResultsToolWindow()) {
+          PostAction.streamProcess(project, "All Modules", indicator, (i, listener) -> ModuleDependenciesAnalyzer.processAllDependencies(WITH_EXPORT_DEPENDENCIES, options, i, project, listener));
+          return;
+        }
+
         final ModulesDependencies result = ModuleDependenciesAnalyzer.processAllDependencies(WITH_EXPORT_DEPENDENCIES, indicator, project);
-        PostAction.completeProcess(project, result);
+        PostAction.completeProcess(project, result, indicator, i -> ModuleDependenciesAnalyzer.processAllDependencies(WITH_EXPORT_DEPENDENCIES, i, project));
       }
     });
   }
@@ -17,17 +17,30 @@
 package com.eugenePetrenko.idea.dependencies.actions;
 
 import com.eugenePetrenko.idea.dependencies.ModuleDependenciesUpdater;
+import com.eugenePetrenko.idea.dependencies.ModuleResultListener;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
 import com.eugenePetrenko.idea.dependencies.ui.LibrariesSelectionDialog;
+import com.eugenePetrenko.idea.dependencies.ui.ResultsPanel;
+import com.eugenePetrenko.idea.dependencies.ui.ResultsToolWindowFactory;
 import com.intellij.notification.Notification;
 import com.intellij.notification.NotificationType;
 import com.intellij.notification.Notifications;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Ref;
+import com.intellij.util.Function;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
  * Date: 08.04.13 0:22
@@ -37,30 +50,148 @@ public class PostAction {
     final Application app = ApplicationManager.getApplication();
 
     if (model.isEmpty()) {
-      app.invokeLater(() -> Notifications.Bus.notify(new Notification(
-              "Unused Dependencies",
-              "Remove unused dependencies",
-              "No unused dependencies were detected",
-              NotificationType.INFORMATION
-      ), project));
+      notifyNoUnusedDependencies(project, "No unused dependencies were detected");
+      return;
+    }
+
+    app.invokeLater(() -> showDialog(project, new LibrariesSelectionDialog(project, model)));
+  }
+
+  /**
+   * Shows the result of the analysis. The approximate result found while the IDE was
+   * indexing is shown at once, then the analysis is repeated once indexing completes,
+   * and the shown result is upgraded in place. Must be called from the analysis task
+   *
+   * @param analysis repeats the analysis
+   */
+  public static void completeProcess(@NotNull final Project project,
+                                     @NotNull final ModulesDependencies model,
+                                     @NotNull final ProgressIndicator indicator,
+                                     @NotNull final Function<ProgressIndicator, ModulesDependencies> analysis) {
+    if (!model.isApproximate()) {
+      completeProcess(project, model);
+      return;
+    }
+
+    final Application app = ApplicationManager.getApplication();
+    final AtomicReference<ModulesDependencies> latest = new AtomicReference<>(model);
+    final AtomicReference<LibrariesSelectionDialog> shown = new AtomicReference<>();
+    if (model.isEmpty()) {
+      notifyNoUnusedDependencies(project, "No unused dependencies were detected yet, the project is checked again once indexing completes");
+    } else {
+      app.invokeLater(() -> {
+        //the dialog may be shown after the result is upgraded
+        final LibrariesSelectionDialog dialog = new LibrariesSelectionDialog(project, latest.get());
+        shown.set(dialog);
+        showDialog(project, dialog);
+      });
+    }
+
+    ModulesDependencies result = model;
+    while (result.isApproximate()) {
+      indicator.setText("Waiting for indexing to complete");
+      indicator.setText2("");
+      DumbService.getInstance(project).waitForSmartMode();
+      indicator.checkCanceled();
+      //indexing may start again during the analysis
+      result = analysis.fun(indicator);
+    }
+
+    if (model.isEmpty()) {
+      completeProcess(project, result);
       return;
     }
 
+    final ModulesDependencies upgraded = result;
+    latest.set(upgraded);
+    //the dialog is modal
     app.invokeLater(() -> {
-      LibrariesSelectionDialog dialog = new LibrariesSelectionDialog(project, model);
-      dialog.show();
-      if (!dialog.isOK()) return;
+      final LibrariesSelectionDialog dialog = shown.get();
+      //the dialog shows the latest result once it is opened
+      if (dialog == null || dialog.getModel() == upgraded) return;
+
+      if (dialog.isShowing()) {
+        dialog.upgradeModel(upgraded);
+      } else {
+        //the approximate result could not be applied, so the exact one is not lost
+        completeProcess(project, upgraded);
+      }
+    }, ModalityState.any());
+  }
 
-      final ModulesDependencies newModel = dialog.getModel();
-      if (newModel.isEmpty()) return;
+  /**
+   * Runs the analysis and shows results of modules in the tool window as soon as they are final.
+   * Must be called from the analysis task
+   *
+   * @param title    title of the tool window tab
+   * @param analysis runs the analysis with the given listener
+   */
+  public static void streamProcess(@NotNull final Project project,
+                                   @NotNull final String title,
+                                   @NotNull final ProgressIndicator indicator,
+                                   @NotNull final BiFunction<ProgressIndicator, ModuleResultListener, ModulesDependencies> analysis) {
+    //results of the approximate analysis are not final
+    indicator.setText("Waiting for indexing to complete");
+    DumbService.getInstance(project).waitForSmartMode();
 
+    final Ref<ResultsPanel> panel = new Ref<>();
+    ApplicationManager.getApplication().invokeAndWait(() -> panel.set(ResultsToolWindowFactory.showResults(project, title, model -> removeDependencies(project, model))));
 
-      WriteAction.run(() -> {
-        ModuleDependenciesUpdater.updateModuleDependencies(project, newModel);
-      });
+    ModulesDependencies result = null;
+    try {
+      result = analysis.apply(indicator, panel.get());
+    } finally {
+      panel.get().analysisFinished(result);
+    }
+  }
+
+  private static void notifyNoUnusedDependencies(@NotNull final Project project, @NotNull final String message) {
+    ApplicationManager.getApplication().invokeLater(() -> Notifications.Bus.notify(new Notification(
+            "Unused Dependencies",
+            "Remove unused dependencies",
+            message,
+            NotificationType.INFORMATION
+    ), project));
+  }
+
+  private static void showDialog(@NotNull final Project project, @NotNull final LibrariesSelectionDialog dialog) {
+    dialog.show();
+    if (!dialog.isOK()) return;
+
+    final ModulesDependencies newModel = dialog.getModel();
+    if (newModel.isEmpty()) return;
+
+    removeDependencies(project, newModel);
+  }
+
+  /**
+   * @return true if the dependencies were removed
+   */
+  private static boolean removeDependencies(@NotNull final Project project, @NotNull final ModulesDependencies model) {
+    if (model.isFromBytecode() && !confirmBytecodeRemoval(project)) return false;
+
+    //the command makes the removal undoable
+    CommandProcessor.getInstance().executeCommand(project, () -> WriteAction.run(() -> {
+      ModuleDependenciesUpdater.updateModuleDependencies(project, model);
+    }), "Remove Unused Dependencies", null);
+
+    saveProjectAsync(ApplicationManager.getApplication(), project);
+    return true;
+  }
 
-      saveProjectAsync(app, project);
-    });
+  /**
+   * Class files miss some usages, see {@link com.eugenePetrenko.idea.dependencies.AnalyzeOptions.Engine#BYTECODE}
+   * @return true if the user agrees to remove dependencies found from class files
+   */
+  private static boolean confirmBytecodeRemoval(@NotNull final Project project) {
+    return Messages.showOkCancelDialog(project,
+            "Dependencies were detected from class files. Class files do not refer to inlined constants, " +
+                    "annotations with SOURCE retention and erased type arguments, so some of the dependencies may be used. " +
+                    "Remove them anyway?",
+            "Remove Unused Dependencies",
+            "Remove",
+            "Cancel",
+            Messages.getWarningIcon()) == Messages.OK;
   }
 
   private static void saveProjectAsync(@NotNull final Application app, @NotNull final Project project) {
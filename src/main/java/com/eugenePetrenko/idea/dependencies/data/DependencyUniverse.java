@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies.data;
+
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.roots.libraries.Library;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns dense int IDs to modules and libraries,
+ * so that {@link LibOrModuleSet} and {@link ModulesDependencies}
+ * could be stored as bitsets.
+ * Modules and libraries have separate ID spaces.
+ * One universe is expected to be created per analysis. The class is thread-safe
+ */
+public class DependencyUniverse {
+  private final ConcurrentMap<Module, Integer> myModuleIds = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Library, Integer> myLibraryIds = new ConcurrentHashMap<>();
+  private final List<Module> myModules = new ArrayList<>();
+  private final List<Library> myLibraries = new ArrayList<>();
+
+  /**
+   * @return ID of the module, a new ID is assigned if needed
+   */
+  public int moduleId(@NotNull final Module module) {
+    final Integer id = myModuleIds.get(module);
+    if (id != null) return id;
+
+    return myModuleIds.computeIfAbsent(module, m -> {
+      synchronized (myModules) {
+        myModules.add(m);
+        return myModules.size() - 1;
+      }
+    });
+  }
+
+  /**
+   * @return ID of the library, a new ID is assigned if needed
+   */
+  public int libraryId(@NotNull final Library library) {
+    final Integer id = myLibraryIds.get(library);
+    if (id != null) return id;
+
+    return myLibraryIds.computeIfAbsent(library, l -> {
+      synchronized (myLibraries) {
+        myLibraries.add(l);
+        return myLibraries.size() - 1;
+      }
+    });
+  }
+
+  /**
+   * @return ID of the module or -1 if the module has no ID yet
+   */
+  public int findModuleId(@NotNull final Module module) {
+    final Integer id = myModuleIds.get(module);
+    return id != null ? id : -1;
+  }
+
+  /**
+   * @return ID of the library or -1 if the library has no ID yet
+   */
+  public int findLibraryId(@NotNull final Library library) {
+    final Integer id = myLibraryIds.get(library);
+    return id != null ? id : -1;
+  }
+
+  @NotNull
+  public Module module(final int id) {
+    synchronized (myModules) {
+      return myModules.get(id);
+    }
+  }
+
+  @NotNull
+  public Library library(final int id) {
+    synchronized (myLibraries) {
+      return myLibraries.get(id);
+    }
+  }
+
+  public int getModulesCount() {
+    synchronized (myModules) {
+      return myModules.size();
+    }
+  }
+
+  public int getLibrariesCount() {
+    synchronized (myLibraries) {
+      return myLibraries.size();
+    }
+  }
+}
@@ -26,25 +26,75 @@ import com.intellij.openapi.roots.libraries.Library;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 /**
 * Created 07.04.13 15:54
 *
+* Set of modules and libraries stored as bitsets of {@link DependencyUniverse} IDs.
+* Operations with sets of the same universe are done on bitsets,
+* sets of different universes are compared and merged element by element.
+*
 * @author Eugene Petrenko (eugene.petrenko@jetbrains.com)
 */
 public class LibOrModuleSet {
-  private final Set<Module> myModules = new HashSet<>();
-  private final Set<Library> myLibs = new HashSet<>();
+  private final DependencyUniverse myUniverse;
+  private final BitSet myModules = new BitSet();
+  private final BitSet myLibs = new BitSet();
+
+  /**
+   * Creates a set with its own universe, operations with sets
+   * of other universes are done element by element
+   */
+  public LibOrModuleSet() {
+    this(new DependencyUniverse());
+  }
+
+  public LibOrModuleSet(@NotNull final DependencyUniverse universe) {
+    myUniverse = universe;
+  }
+
+  @NotNull
+  public DependencyUniverse getUniverse() {
+    return myUniverse;
+  }
 
   public boolean contains(@Nullable final Module mod) {
-    return mod != null && myModules.contains(mod);
+    if (mod == null) return false;
+    final int id = myUniverse.findModuleId(mod);
+    return id >= 0 && myModules.get(id);
   }
 
   public boolean contains(@Nullable final Library lib) {
-    return lib != null && myLibs.contains(lib);
+    if (lib == null) return false;
+    final int id = myUniverse.findLibraryId(lib);
+    return id >= 0 && myLibs.get(id);
+  }
+
+  public boolean containsModuleId(final int id) {
+    return myModules.get(id);
+  }
+
+  public boolean containsLibraryId(final int id) {
+    return myLibs.get(id);
+  }
+
+  public void addModuleId(final int id) {
+    myModules.set(id);
+  }
+
+  public void addLibraryId(final int id) {
+    myLibs.set(id);
+  }
+
+  @NotNull
+  public int[] getModuleIds() {
+    return myModules.stream().toArray();
+  }
+
+  @NotNull
+  public int[] getLibraryIds() {
+    return myLibs.stream().toArray();
   }
 
   public boolean contains(@Nullable final OrderEntry e) {
@@ -52,6 +102,20 @@ public class LibOrModuleSet {
     return e.accept(CONTAINS, false);
   }
 
+  public boolean containsAll(@NotNull final LibOrModuleSet deps) {
+    if (myUniverse == deps.myUniverse) {
+      return containsAll(myLibs, deps.myLibs) && containsAll(myModules, deps.myModules);
+    }
+
+    for (Module module : deps.getModules()) {
+      if (!contains(module)) return false;
+    }
+    for (Library lib : deps.getLibraries()) {
+      if (!contains(lib)) return false;
+    }
+    return true;
+  }
+
   public void addDependencies(@NotNull final Collection<? extends OrderEntry> es) {
     for (OrderEntry e : es) {
       addDependency(e);
@@ -59,8 +123,18 @@ public class LibOrModuleSet {
   }
 
   public void addDependencies(@NotNull final LibOrModuleSet deps) {
-    myLibs.addAll(deps.myLibs);
-    myModules.addAll(deps.myModules);
+    if (myUniverse == deps.myUniverse) {
+      myLibs.or(deps.myLibs);
+      myModules.or(deps.myModules);
+      return;
+    }
+
+    for (Module module : deps.getModules()) {
+      addDependency(module);
+    }
+    for (Library lib : deps.getLibraries()) {
+      addDependency(lib);
+    }
   }
 
   public void addDependency(@NotNull final OrderEntry e) {
@@ -70,28 +144,59 @@ public class LibOrModuleSet {
 
   public void addDependency(@Nullable final Library lib) {
     if (lib == null) return;
-    myLibs.add(lib);
+    myLibs.set(myUniverse.libraryId(lib));
   }
 
   public void removeDependency(@Nullable final Library lib) {
     if (lib == null) return;
-    myLibs.remove(lib);
+    final int id = myUniverse.findLibraryId(lib);
+    if (id >= 0) myLibs.clear(id);
   }
 
   public void addDependency(@Nullable final Module module) {
     if (module == null) return;
-    myModules.add(module);
+    myModules.set(myUniverse.moduleId(module));
   }
 
   public void removeDependency(@Nullable final Module module) {
     if (module == null) return;
-    myModules.remove(module);
+    final int id = myUniverse.findModuleId(module);
+    if (id >= 0) myModules.clear(id);
+  }
+
+  public void clear() {
+    myLibs.clear();
+    myModules.clear();
   }
 
   public boolean isEmpty() {
     return myLibs.isEmpty() && myModules.isEmpty();
   }
 
+  /**
+   * @return snapshot of modules in the set
+   */
+  @NotNull
+  public Collection<Module> getModules() {
+    final List<Module> result = new ArrayList<>(myModules.cardinality());
+    for (int id = myModules.nextSetBit(0); id >= 0; id = myModules.nextSetBit(id + 1)) {
+      result.add(myUniverse.module(id));
+    }
+    return result;
+  }
+
+  /**
+   * @return snapshot of libraries in the set
+   */
+  @NotNull
+  public Collection<Library> getLibraries() {
+    final List<Library> result = new ArrayList<>(myLibs.cardinality());
+    for (int id = myLibs.nextSetBit(0); id >= 0; id = myLibs.nextSetBit(id + 1)) {
+      result.add(myUniverse.library(id));
+    }
+    return result;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -99,14 +204,14 @@ public class LibOrModuleSet {
 
     if (!myModules.isEmpty()) {
       sb.append("  Modules:\n");
-      for (Module m : myModules) {
+      for (Module m : getModules()) {
         sb.append("    ").append(m).append("\n");
       }
     }
 
     if (!myLibs.isEmpty()) {
       sb.append("  Libraries:\n");
-      for (Library m : myLibs) {
+      for (Library m : getLibraries()) {
         sb.append("    ").append(m).append("\n");
       }
     }
@@ -146,13 +251,25 @@ public class LibOrModuleSet {
     if (o == null || getClass() != o.getClass()) return false;
 
     final LibOrModuleSet that = (LibOrModuleSet) o;
-    return myLibs.equals(that.myLibs) && myModules.equals(that.myModules);
+    if (myUniverse == that.myUniverse) {
+      return myLibs.equals(that.myLibs) && myModules.equals(that.myModules);
+    }
+
+    return myLibs.cardinality() == that.myLibs.cardinality()
+            && myModules.cardinality() == that.myModules.cardinality()
+            && containsAll(that);
   }
 
   @Override
   public int hashCode() {
-    int result = myModules.hashCode();
-    result = 31 * result + myLibs.hashCode();
+    //must not depend on the universe
+    int result = 0;
+    for (Module module : getModules()) {
+      result += module.hashCode();
+    }
+    for (Library lib : getLibraries()) {
+      result += 31 * lib.hashCode();
+    }
     return result;
   }
 
@@ -163,13 +280,29 @@ public class LibOrModuleSet {
 
   @NotNull
   public static LibOrModuleSet intersect(@NotNull LibOrModuleSet a, @NotNull LibOrModuleSet b) {
-    final LibOrModuleSet result = new LibOrModuleSet();
-    result.myLibs.addAll(a.myLibs);
-    result.myLibs.retainAll(b.myLibs);
+    final LibOrModuleSet result = new LibOrModuleSet(a.myUniverse);
+    if (a.myUniverse == b.myUniverse) {
+      result.myLibs.or(a.myLibs);
+      result.myLibs.and(b.myLibs);
 
-    result.myModules.addAll(a.myModules);
-    result.myModules.retainAll(b.myModules);
+      result.myModules.or(a.myModules);
+      result.myModules.and(b.myModules);
+      return result;
+    }
 
+    for (Module module : a.getModules()) {
+      if (b.contains(module)) result.addDependency(module);
+    }
+    for (Library lib : a.getLibraries()) {
+      if (b.contains(lib)) result.addDependency(lib);
+    }
     return result;
   }
+
+  private static boolean containsAll(@NotNull final BitSet set, @NotNull final BitSet subset) {
+    for (int id = subset.nextSetBit(0); id >= 0; id = subset.nextSetBit(id + 1)) {
+      if (!set.get(id)) return false;
+    }
+    return true;
+  }
 }
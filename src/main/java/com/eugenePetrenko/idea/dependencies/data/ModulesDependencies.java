@@ -26,51 +26,131 @@ import java.util.*;
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
  * Date: 07.04.13 20:33
+ *
+ * Maps modules to sets of dependencies. Modules are indexed
+ * by {@link DependencyUniverse} IDs
  */
 public class ModulesDependencies {
-  private final Map<Module, LibOrModuleSet> myModuleToRemove = new HashMap<>();
+  private final DependencyUniverse myUniverse;
+  private final BitSet myKeys = new BitSet();
+  private LibOrModuleSet[] myModuleToRemove = new LibOrModuleSet[16];
+  private boolean myApproximate;
+  private boolean myFromBytecode;
+
+  /**
+   * Creates dependencies with their own universe, operations with
+   * dependencies of other universes are done element by element
+   */
+  public ModulesDependencies() {
+    this(new DependencyUniverse());
+  }
+
+  public ModulesDependencies(@NotNull final DependencyUniverse universe) {
+    myUniverse = universe;
+  }
+
+  @NotNull
+  public DependencyUniverse getUniverse() {
+    return myUniverse;
+  }
+
+  /**
+   * @return true if the dependencies were found by the approximate analysis
+   * while the IDE was indexing, the flag does not take part in equality
+   */
+  public boolean isApproximate() {
+    return myApproximate;
+  }
+
+  public void setApproximate(final boolean approximate) {
+    myApproximate = approximate;
+  }
+
+  /**
+   * @return true if usages of modules were read from class files, see
+   * {@link com.eugenePetrenko.idea.dependencies.AnalyzeOptions.Engine#BYTECODE},
+   * the flag does not take part in equality
+   */
+  public boolean isFromBytecode() {
+    return myFromBytecode;
+  }
+
+  public void setFromBytecode(final boolean fromBytecode) {
+    myFromBytecode = fromBytecode;
+  }
 
   public void addAll(@NotNull final Module fromModule,
                      @NotNull final LibOrModuleSet dependencies) {
     if (dependencies.isEmpty()) return;
 
-    final LibOrModuleSet d = myModuleToRemove.get(fromModule);
-    if (d == null) {
-      myModuleToRemove.put(fromModule, dependencies);
-    } else {
+    final int id = myUniverse.moduleId(fromModule);
+    final LibOrModuleSet d = get(id);
+    if (d != null) {
       d.addDependencies(dependencies);
+      return;
+    }
+
+    if (dependencies.getUniverse() == myUniverse) {
+      put(id, dependencies);
+    } else {
+      final LibOrModuleSet copy = new LibOrModuleSet(myUniverse);
+      copy.addDependencies(dependencies);
+      put(id, copy);
     }
   }
 
+  /**
+   * @return snapshot of modules with dependencies
+   */
   @NotNull
   public Collection<Module> modules() {
-    return myModuleToRemove.keySet();
+    final List<Module> result = new ArrayList<>(myKeys.cardinality());
+    for (int id = myKeys.nextSetBit(0); id >= 0; id = myKeys.nextSetBit(id + 1)) {
+      result.add(myUniverse.module(id));
+    }
+    return result;
   }
 
   @Nullable
   public LibOrModuleSet forModule(@NotNull final Module module) {
-    final LibOrModuleSet set = myModuleToRemove.get(module);
+    final int id = myUniverse.findModuleId(module);
+    if (id < 0) return null;
+
+    final LibOrModuleSet set = get(id);
     assert set == null || !set.isEmpty();
     return set;
   }
 
   public boolean isEmpty() {
-    if (myModuleToRemove.isEmpty()) return true;
-    for (LibOrModuleSet val : myModuleToRemove.values()) {
-      if (!val.isEmpty()) return false;
+    for (int id = myKeys.nextSetBit(0); id >= 0; id = myKeys.nextSetBit(id + 1)) {
+      if (!myModuleToRemove[id].isEmpty()) return false;
     }
     return true;
   }
 
+  @Nullable
+  private LibOrModuleSet get(final int id) {
+    return myKeys.get(id) ? myModuleToRemove[id] : null;
+  }
+
+  private void put(final int id, @NotNull final LibOrModuleSet set) {
+    if (id >= myModuleToRemove.length) {
+      myModuleToRemove = Arrays.copyOf(myModuleToRemove, Math.max(id + 1, myModuleToRemove.length * 2));
+    }
+    myModuleToRemove[id] = set;
+    myKeys.set(id);
+  }
+
   @Override
   public String toString() {
     final StringBuilder sb = new StringBuilder();
     sb.append("RemoveModulesModel{\n");
-    for (Map.Entry<Module, LibOrModuleSet> e : myModuleToRemove.entrySet()) {
-      if (e.getValue().isEmpty()) continue;
+    for (int id = myKeys.nextSetBit(0); id >= 0; id = myKeys.nextSetBit(id + 1)) {
+      final LibOrModuleSet set = myModuleToRemove[id];
+      if (set.isEmpty()) continue;
 
-      sb.append("  ").append(e.getKey()).append(" =>\n");
-      for (String line : e.getValue().toString().split("[\n\r]+")) {
+      sb.append("  ").append(myUniverse.module(id)).append(" =>\n");
+      for (String line : set.toString().split("[\n\r]+")) {
         if (StringUtil.isEmptyOrSpaces(line)) continue;
         sb.append("    ").append(line).append("\n");
       }
@@ -86,23 +166,41 @@ public class ModulesDependencies {
 
     final ModulesDependencies that = (ModulesDependencies) o;
 
+    if (myUniverse == that.myUniverse) {
+      final BitSet allKeys = (BitSet) myKeys.clone();
+      allKeys.or(that.myKeys);
+
+      for (int id = allKeys.nextSetBit(0); id >= 0; id = allKeys.nextSetBit(id + 1)) {
+        if (!equalSets(this.get(id), that.get(id))) return false;
+      }
+      return true;
+    }
+
     final Set<Module> allKeys = new HashSet<>();
-    allKeys.addAll(this.myModuleToRemove.keySet());
-    allKeys.addAll(that.myModuleToRemove.keySet());
+    allKeys.addAll(this.modules());
+    allKeys.addAll(that.modules());
 
     for (Module key : allKeys) {
-      final LibOrModuleSet thisSet = this.myModuleToRemove.get(key);
-      final LibOrModuleSet thatSet = that.myModuleToRemove.get(key);
-
-      if ((thisSet == null || thisSet.isEmpty()) && (thatSet == null || thatSet.isEmpty())) continue;
-      if (thisSet == null || thatSet == null) return false;
-      if (!thisSet.equals(thatSet)) return false;
+      if (!equalSets(this.forModule(key), that.forModule(key))) return false;
     }
     return true;
   }
 
+  private static boolean equalSets(@Nullable final LibOrModuleSet thisSet, @Nullable final LibOrModuleSet thatSet) {
+    if ((thisSet == null || thisSet.isEmpty()) && (thatSet == null || thatSet.isEmpty())) return true;
+    if (thisSet == null || thatSet == null) return false;
+    return thisSet.equals(thatSet);
+  }
+
   @Override
   public int hashCode() {
-    return myModuleToRemove.hashCode();
+    //must not depend on the universe
+    int result = 0;
+    for (int id = myKeys.nextSetBit(0); id >= 0; id = myKeys.nextSetBit(id + 1)) {
+      final LibOrModuleSet set = myModuleToRemove[id];
+      if (set.isEmpty()) continue;
+      result += myUniverse.module(id).hashCode() ^ set.hashCode();
+    }
+    return result;
   }
 }
@@ -0,0 +1,708 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies.ui;
+
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
+import com.intellij.ide.DataManager;
+import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleType;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.roots.ui.configuration.libraries.LibraryPresentationManager;
+import com.intellij.ui.ColoredTreeCellRenderer;
+import com.intellij.ui.DocumentAdapter;
+import com.intellij.ui.SearchTextField;
+import com.intellij.ui.SimpleTextAttributes;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.treeStructure.Tree;
+import com.intellij.util.ui.UIUtil;
+import com.intellij.util.ui.tree.TreeUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+import static com.intellij.ui.SimpleTextAttributes.*;
+
+/**
+ * Tree of dependencies that could be removed, grouped by modules.
+ * The user may exclude dependencies from removal, the model of the tree is updated accordingly.
+ * Must be used from EDT
+ */
+public class DependenciesTreePanel extends JPanel {
+  private static final DataKey<DependencyNodeBase<?>> DEPENDENCY_NODE = DataKey.create("jdependency_node");
+  private static final DataKey<Collection<DependencyNodeBase<?>>> DEPENDENCY_NODE_ARRAY = DataKey.create("jdependency_nodes");
+
+  /**
+   * Modules are expanded on open only if there are not too many of them
+   */
+  private static final int EXPAND_LIMIT = 100;
+
+  @NotNull
+  private ModulesDependencies myModel;
+  @NotNull
+  private final Tree myTree;
+  @NotNull
+  private final DefaultTreeModel myTreeModel;
+  @NotNull
+  private RootNode myRoot;
+  @NotNull
+  private String myFilterText = "";
+
+  public DependenciesTreePanel(@NotNull final ModulesDependencies model) {
+    super(new BorderLayout());
+    myModel = model;
+
+    myRoot = new RootNode(myModel);
+    myTreeModel = new DefaultTreeModel(myRoot);
+    myTree = new Tree(myTreeModel);
+    myTree.setRootVisible(false);
+    myTree.setCellRenderer(new CellRenderer());
+    initComponents();
+
+    expandModules();
+    TreeUtil.selectFirstNode(myTree);
+  }
+
+  /**
+   * Replaces the shown dependencies, for example with the exact result of the analysis.
+   * Dependencies that the user has excluded from removal stay excluded
+   */
+  public void setModel(@NotNull final ModulesDependencies model) {
+    final Map<Module, List<Object>> excluded = new HashMap<>();
+    for (ModuleNode node : myRoot.getModuleNodes()) {
+      final List<Object> dependencies = node.getExcluded();
+      if (!dependencies.isEmpty()) excluded.put(node.getModule(), dependencies);
+    }
+
+    myModel = model;
+    myRoot = new RootNode(model);
+    for (ModuleNode node : myRoot.getModuleNodes()) {
+      final List<Object> dependencies = excluded.get(node.getModule());
+      if (dependencies != null) node.exclude(dependencies);
+    }
+    myRoot.setFilter(myFilterText);
+    myTreeModel.setRoot(myRoot);
+
+    expandModules();
+    TreeUtil.selectFirstNode(myTree);
+  }
+
+  /**
+   * Shows dependencies of one more module
+   * @param toRemove dependencies that could be removed from the module, the set is copied
+   */
+  public void addModule(@NotNull final Module module, @NotNull final LibOrModuleSet toRemove) {
+    if (toRemove.isEmpty() || module.isDisposed()) return;
+    if (myModel.forModule(module) != null) return;
+
+    //exclusions change the set of the model, while the given set belongs to the caller
+    final LibOrModuleSet copy = new LibOrModuleSet(myModel.getUniverse());
+    copy.addDependencies(toRemove);
+    myModel.addAll(module, copy);
+    final int index = myRoot.addModule(module, Objects.requireNonNull(myModel.forModule(module)));
+    if (index < 0) return;
+
+    myTreeModel.nodesWereInserted(myRoot, new int[]{index});
+    if (myRoot.getChildCount() <= EXPAND_LIMIT) {
+      myTree.expandPath(new TreePath(new Object[]{myRoot, myRoot.getChildAt(index)}));
+    }
+    if (myTree.getSelectionCount() == 0) TreeUtil.selectFirstNode(myTree);
+  }
+
+  @NotNull
+  public JTree getTree() {
+    return myTree;
+  }
+
+  private void setFilter(@NotNull final String text) {
+    myFilterText = text.trim().toLowerCase(Locale.ROOT);
+    myRoot.setFilter(myFilterText);
+    myTreeModel.reload();
+
+    expandModules();
+    TreeUtil.selectFirstNode(myTree);
+  }
+
+  private void expandModules() {
+    if (myRoot.getChildCount() > EXPAND_LIMIT) return;
+    for (int i = 0; i < myRoot.getChildCount(); i++) {
+      myTree.expandPath(new TreePath(new Object[]{myRoot, myRoot.getChildAt(i)}));
+    }
+  }
+
+  private void nodesChanged(@NotNull final Collection<DependencyNodeBase<?>> nodes) {
+    for (DependencyNodeBase<?> node : nodes) {
+      myTreeModel.nodeChanged(node);
+    }
+  }
+
+  @NotNull
+  public ModulesDependencies getModel() {
+    return myModel;
+  }
+
+  private void initComponents() {
+    add(new JBScrollPane(myTree), BorderLayout.CENTER);
+
+    final SearchTextField filter = new SearchTextField(false);
+    filter.addDocumentListener(new DocumentAdapter() {
+      @Override
+      protected void textChanged(@NotNull DocumentEvent e) {
+        setFilter(filter.getText());
+      }
+    });
+    add(filter, BorderLayout.NORTH);
+    add(new Label("Use Insert or Delete key to include/exclude or SPACE to toggle dependencies from remove"), BorderLayout.SOUTH);
+
+    DataManager.registerDataProvider(this, dataId -> {
+      final TreePath path = myTree.getSelectionPath();
+      if (path != null) {
+        Object component = path.getLastPathComponent();
+        if (component instanceof ModuleHoldingNode && LangDataKeys.MODULE.is(dataId)) {
+          return ((ModuleHoldingNode) component).getModule();
+        }
+        if (component instanceof LibraryHoldingNode && LangDataKeys.LIBRARY.is(dataId)) {
+          return ((LibraryHoldingNode) component).getLibrary();
+        }
+
+        if (component instanceof DependencyNodeBase && DEPENDENCY_NODE.is(dataId)) {
+          return component;
+        }
+      }
+
+      if (DEPENDENCY_NODE_ARRAY.is(dataId)) {
+        Collection<DependencyNodeBase<?>> result = new ArrayList<>();
+        for (TreePath treePath : myTree.getSelectionModel().getSelectionPaths()) {
+          Object obj = treePath.getLastPathComponent();
+          if (obj instanceof DependencyNodeBase) {
+            result.add((DependencyNodeBase<?>) obj);
+          }
+          if (obj instanceof ModuleNode) {
+            result.addAll(((ModuleNode) obj).getVisibleChildren());
+          }
+        }
+        if (!result.isEmpty()) return result;
+      }
+
+      return null;
+    });
+
+    new AnAction("Exclude") {
+      @Override
+      public void actionPerformed(@NotNull AnActionEvent e) {
+        Collection<DependencyNodeBase<?>> nodes = e.getData(DEPENDENCY_NODE_ARRAY);
+        if (nodes == null) return;
+
+        for (DependencyNodeBase<?> node : nodes) {
+          node.setRemoved(true);
+        }
+        nodesChanged(nodes);
+      }
+    }.registerCustomShortcutSet(CustomShortcutSet.fromString("DELETE"), myTree);
+    new AnAction("Include") {
+      @Override
+      public void actionPerformed(@NotNull AnActionEvent e) {
+        Collection<DependencyNodeBase<?>> nodes = e.getData(DEPENDENCY_NODE_ARRAY);
+        if (nodes == null) return;
+
+        for (DependencyNodeBase<?> node : nodes) {
+          node.setRemoved(false);
+        }
+        nodesChanged(nodes);
+      }
+    }.registerCustomShortcutSet(CustomShortcutSet.fromString("INSERT"), myTree);
+    new AnAction("Toggle") {
+      @Override
+      public void actionPerformed(@NotNull AnActionEvent e) {
+        Collection<DependencyNodeBase<?>> nodes = e.getData(DEPENDENCY_NODE_ARRAY);
+        if (nodes == null) return;
+
+        for (DependencyNodeBase<?> node : nodes) {
+          node.toggle();
+        }
+        nodesChanged(nodes);
+      }
+    }.registerCustomShortcutSet(CustomShortcutSet.fromString("SPACE"), myTree);
+  }
+
+  /**
+   * Shows modules that match the filter, module nodes are created eagerly
+   * but their dependency nodes are created on the first access
+   */
+  private static class RootNode extends DefaultMutableTreeNode {
+    private static final Comparator<ModuleNode> NODE_COMPARATOR = (a, b) -> Comparators.MODULE_COMPARATOR.compare(a.getModule(), b.getModule());
+
+    /**
+     * All module nodes sorted by name
+     */
+    private final List<ModuleNode> myModules = new ArrayList<>();
+    /**
+     * All module nodes in the order of creation, the index refers to the positions in the list
+     */
+    private final List<ModuleNode> myNodes = new ArrayList<>();
+    private final NameIndex myIndex = new NameIndex();
+    @NotNull
+    private String myFilterText = "";
+    private List<ModuleNode> myVisible;
+
+    private RootNode(@NotNull final ModulesDependencies model) {
+      final List<Module> modules = new ArrayList<>(model.modules());
+      modules.sort(Comparators.MODULE_COMPARATOR);
+      for (Module module : modules) {
+        if (module.isDisposed()) continue;
+        final LibOrModuleSet filter = model.forModule(module);
+        if (filter == null) continue;
+
+        myModules.add(createNode(module, filter));
+      }
+      myVisible = myModules;
+    }
+
+    @NotNull
+    private ModuleNode createNode(@NotNull final Module module, @NotNull final LibOrModuleSet filter) {
+      final int position = myNodes.size();
+      final ModuleNode node = new ModuleNode(module, filter);
+      node.setParent(this);
+      myNodes.add(node);
+
+      myIndex.add(module.getName(), position);
+      for (Module dependency : filter.getModules()) {
+        myIndex.add(dependency.getName(), position);
+      }
+      for (Library dependency : filter.getLibraries()) {
+        myIndex.add(getName(dependency), position);
+      }
+      return node;
+    }
+
+    /**
+     * @return index of the new node among visible nodes or -1 if the filter hides the node
+     */
+    public int addModule(@NotNull final Module module, @NotNull final LibOrModuleSet filter) {
+      final ModuleNode node = createNode(module, filter);
+      insert(myModules, node);
+      if (myVisible == myModules) return myModules.indexOf(node);
+
+      if (!node.matches(myFilterText)) return -1;
+      node.setFilter(myFilterText);
+      return insert(myVisible, node);
+    }
+
+    private static int insert(@NotNull final List<ModuleNode> nodes, @NotNull final ModuleNode node) {
+      final int found = Collections.binarySearch(nodes, node, NODE_COMPARATOR);
+      final int index = found < 0 ? -found - 1 : found;
+      nodes.add(index, node);
+      return index;
+    }
+
+    @NotNull
+    public List<ModuleNode> getModuleNodes() {
+      return myModules;
+    }
+
+    /**
+     * @param text lower-cased filter text
+     */
+    public void setFilter(@NotNull final String text) {
+      myFilterText = text;
+      if (text.isEmpty()) {
+        myVisible = myModules;
+      } else {
+        myVisible = new ArrayList<>();
+        final BitSet found = myIndex.find(text);
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+          myVisible.add(myNodes.get(i));
+        }
+        myVisible.sort(NODE_COMPARATOR);
+      }
+
+      for (ModuleNode node : myVisible) {
+        node.setFilter(text);
+      }
+    }
+
+    @Override
+    public int getChildCount() {
+      return myVisible.size();
+    }
+
+    @Override
+    public TreeNode getChildAt(int index) {
+      return myVisible.get(index);
+    }
+
+    @Override
+    public int getIndex(TreeNode node) {
+      //noinspection SuspiciousMethodCalls
+      return myVisible.indexOf(node);
+    }
+
+    @Override
+    public Enumeration<TreeNode> children() {
+      return Collections.enumeration(new ArrayList<>(myVisible));
+    }
+
+    @Override
+    public boolean isLeaf() {
+      return false;
+    }
+  }
+
+  private interface ModuleHoldingNode {
+    @NotNull
+    Module getModule();
+  }
+
+  private interface LibraryHoldingNode {
+    @NotNull
+    Library getLibrary();
+  }
+
+  private static class ModuleNode extends DefaultMutableTreeNode implements ModuleHoldingNode {
+    private final Module myModule;
+    private final LibOrModuleSet myFilter;
+    /**
+     * Dependencies to show, the filter looses dependencies excluded by the user
+     */
+    private final LibOrModuleSet myCandidates;
+    private List<DependencyNodeBase<?>> myChildren;
+    @NotNull
+    private String myFilterText = "";
+    private List<DependencyNodeBase<?>> myVisible;
+
+    private ModuleNode(@NotNull Module module, @NotNull final LibOrModuleSet libOrModuleSet) {
+      myModule = module;
+      myFilter = libOrModuleSet;
+      myCandidates = new LibOrModuleSet(libOrModuleSet.getUniverse());
+      myCandidates.addDependencies(libOrModuleSet);
+    }
+
+    @NotNull
+    public List<DependencyNodeBase<?>> getChildren() {
+      if (myChildren != null) return myChildren;
+
+      final List<DependencyNodeBase<?>> children = new ArrayList<>();
+      ModuleRootManager.getInstance(myModule).processOrder(new RootPolicy<Void>() {
+        @Override
+        public Void visitModuleOrderEntry(@NotNull ModuleOrderEntry moduleOrderEntry, Void value) {
+          final Module mod = moduleOrderEntry.getModule();
+          if (mod == null || !myCandidates.contains(mod)) return null;
+          addNode(new DependencyModuleNode(myFilter, moduleOrderEntry, mod));
+          return null;
+        }
+
+        @Override
+        public Void visitLibraryOrderEntry(@NotNull LibraryOrderEntry libraryOrderEntry, Void value) {
+          final Library lib = libraryOrderEntry.getLibrary();
+          if (lib == null || !myCandidates.contains(lib)) return null;
+          addNode(new DependencyLibNode(myFilter, libraryOrderEntry, lib));
+          return null;
+        }
+
+        private void addNode(@NotNull DependencyNodeBase<?> e) {
+          e.setParent(ModuleNode.this);
+          children.add(e);
+        }
+      }, null);
+
+      myChildren = children;
+      return myChildren;
+    }
+
+    @NotNull
+    public List<DependencyNodeBase<?>> getVisibleChildren() {
+      if (myVisible != null) return myVisible;
+
+      final List<DependencyNodeBase<?>> children = getChildren();
+      if (myFilterText.isEmpty() || myModule.getName().toLowerCase(Locale.ROOT).contains(myFilterText)) {
+        myVisible = children;
+      } else {
+        myVisible = new ArrayList<>();
+        for (DependencyNodeBase<?> child : children) {
+          if (child.getName().toLowerCase(Locale.ROOT).contains(myFilterText)) myVisible.add(child);
+        }
+      }
+      return myVisible;
+    }
+
+    /**
+     * @param text lower-cased filter text
+     */
+    public void setFilter(@NotNull final String text) {
+      if (text.equals(myFilterText)) return;
+      myFilterText = text;
+      myVisible = null;
+    }
+
+    /**
+     * @param text lower-cased filter text
+     * @return true if the module or one of its dependencies matches the filter
+     */
+    public boolean matches(@NotNull final String text) {
+      if (myModule.getName().toLowerCase(Locale.ROOT).contains(text)) return true;
+      for (Module dependency : myCandidates.getModules()) {
+        if (dependency.getName().toLowerCase(Locale.ROOT).contains(text)) return true;
+      }
+      for (Library dependency : myCandidates.getLibraries()) {
+        if (DependenciesTreePanel.getName(dependency).toLowerCase(Locale.ROOT).contains(text)) return true;
+      }
+      return false;
+    }
+
+    /**
+     * Nodes of a module may be not loaded, while its dependencies are excluded
+     * by a previous {@link DependenciesTreePanel#setModel}
+     * @return dependencies excluded from removal
+     */
+    @NotNull
+    public List<Object> getExcluded() {
+      final List<Object> result = new ArrayList<>();
+      for (Module module : myCandidates.getModules()) {
+        if (!myFilter.contains(module)) result.add(module);
+      }
+      for (Library library : myCandidates.getLibraries()) {
+        if (!myFilter.contains(library)) result.add(library);
+      }
+      return result;
+    }
+
+    /**
+     * Excludes dependencies from removal, must be called before children are loaded
+     */
+    public void exclude(@NotNull final Collection<Object> dependencies) {
+      for (Object dependency : dependencies) {
+        if (dependency instanceof Module) myFilter.removeDependency((Module) dependency);
+        if (dependency instanceof Library) myFilter.removeDependency((Library) dependency);
+      }
+    }
+
+    @NotNull
+    public Module getModule() {
+      return myModule;
+    }
+
+    @Override
+    public int getChildCount() {
+      return getVisibleChildren().size();
+    }
+
+    @Override
+    public TreeNode getChildAt(int index) {
+      return getVisibleChildren().get(index);
+    }
+
+    @Override
+    public int getIndex(TreeNode node) {
+      //noinspection SuspiciousMethodCalls
+      return getVisibleChildren().indexOf(node);
+    }
+
+    @Override
+    public Enumeration<TreeNode> children() {
+      return Collections.enumeration(new ArrayList<>(getVisibleChildren()));
+    }
+
+    @Override
+    public boolean isLeaf() {
+      return false;
+    }
+  }
+
+  private interface DependencyNode {
+    @NotNull
+    DependencyScope getDependencyScope();
+  }
+
+  private interface RemovableNode {
+    boolean isRemoved();
+  }
+
+  @SuppressWarnings("NonExtendableApiUsage")
+  private abstract static class DependencyNodeBase<T extends ExportableOrderEntry> extends DefaultMutableTreeNode implements RemovableNode, DependencyNode {
+    protected final LibOrModuleSet myFilter;
+    protected final T myEntry;
+
+    protected DependencyNodeBase(@NotNull final LibOrModuleSet filter, @NotNull final T entry) {
+      myFilter = filter;
+      myEntry = entry;
+    }
+
+    /**
+     * @return true if the dependency is excluded from removal
+     */
+    public boolean isRemoved() {
+      return !intersects();
+    }
+
+    public abstract void setRemoved(boolean isRemoved);
+
+    public void toggle() {
+      setRemoved(!isRemoved());
+    }
+
+    @NotNull
+    public DependencyScope getDependencyScope() {
+      return myEntry.getScope();
+    }
+
+    public abstract boolean intersects();
+
+    /**
+     * @return the module or the library of the entry
+     */
+    @NotNull
+    public abstract Object getDependency();
+
+    @NotNull
+    public abstract String getName();
+  }
+
+  private static class DependencyModuleNode extends DependencyNodeBase<ModuleOrderEntry> implements ModuleHoldingNode {
+    @NotNull
+    private final Module myModule;
+
+    public DependencyModuleNode(@NotNull LibOrModuleSet filter, @NotNull ModuleOrderEntry entry, @NotNull Module module) {
+      super(filter, entry);
+      myModule = module;
+    }
+
+    @NotNull
+    public Module getModule() {
+      return myModule;
+    }
+
+    @NotNull
+    @Override
+    public Object getDependency() {
+      return myModule;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+      return myModule.getName();
+    }
+
+    @Override
+    public void setRemoved(boolean isRemoved) {
+      if (isRemoved) {
+        myFilter.removeDependency(getModule());
+      } else {
+        myFilter.addDependency(getModule());
+      }
+    }
+
+    @Override
+    public boolean intersects() {
+      return myFilter.contains(getModule());
+    }
+  }
+
+  private static class DependencyLibNode extends DependencyNodeBase<LibraryOrderEntry> implements LibraryHoldingNode {
+    private final Library myLib;
+
+    private DependencyLibNode(@NotNull LibOrModuleSet filter, @NotNull LibraryOrderEntry entry, @NotNull Library library) {
+      super(filter, entry);
+      myLib = library;
+    }
+
+    @NotNull
+    public Library getLibrary() {
+      return myLib;
+    }
+
+    @NotNull
+    @Override
+    public Object getDependency() {
+      return myLib;
+    }
+
+    @Override
+    public boolean intersects() {
+      return myFilter.contains(getLibrary());
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+      return DependenciesTreePanel.getName(myLib);
+    }
+
+    @Override
+    public void setRemoved(boolean isRemoved) {
+      if (isRemoved) {
+        myFilter.removeDependency(getLibrary());
+      } else {
+        myFilter.addDependency(getLibrary());
+      }
+    }
+  }
+
+  @NotNull
+  private static String getName(@NotNull final Library library) {
+    final String name = library.getName();
+    return name != null ? name : "";
+  }
+
+  private static class CellRenderer extends ColoredTreeCellRenderer {
+    @Override
+    public void customizeCellRenderer(@NotNull JTree tree, Object value, boolean selected, boolean expanded, boolean leaf, int row, boolean hasFocus) {
+      @SimpleTextAttributes.StyleAttributeConstant int textType = STYLE_PLAIN;
+      if (value instanceof DependencyNodeBase) {
+        final DependencyNodeBase<?> node = (DependencyNodeBase<?>) value;
+        if (node.isRemoved()) {
+          textType |= STYLE_STRIKEOUT;
+        }
+      } else {
+        textType |= STYLE_BOLD;
+      }
+
+      if (value instanceof DependencyNode) {
+        DependencyScope scope = ((DependencyNode) value).getDependencyScope();
+        append("[");
+        append(scope.getDisplayName(), new SimpleTextAttributes(STYLE_BOLD, UIUtil.getTreeForeground()));
+        append("] ");
+      }
+
+      if (value instanceof ModuleHoldingNode) {
+        final ModuleHoldingNode node = (ModuleHoldingNode) value;
+        Module module = node.getModule();
+        setIcon(ModuleType.get(module).getIcon());
+        append(module.getName() + " ", new SimpleTextAttributes(textType, UIUtil.getTreeForeground()));
+      }
+
+      if (value instanceof LibraryHoldingNode) {
+        final LibraryHoldingNode node = (LibraryHoldingNode) value;
+        final Library lib = node.getLibrary();
+
+        setIcon(LibraryPresentationManager.getInstance().getNamedLibraryIcon(lib, null));
+        append(lib.getName() + " ", new SimpleTextAttributes(textType, UIUtil.getTreeForeground()));
+      }
+    }
+  }
+}
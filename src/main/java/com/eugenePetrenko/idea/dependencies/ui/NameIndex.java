@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies.ui;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Maps distinct lower-cased names to positions of items having the name,
+ * so that a substring filter scans distinct names, not all the items
+ */
+public class NameIndex {
+  private final Map<String, BitSet> myIndex = new HashMap<>();
+  private int mySize;
+
+  public void add(@NotNull final String name, final int position) {
+    myIndex.computeIfAbsent(name.toLowerCase(Locale.ROOT), n -> new BitSet()).set(position);
+    mySize = Math.max(mySize, position + 1);
+  }
+
+  /**
+   * @param text lower-cased text
+   * @return positions of items that have a name containing the text
+   */
+  @NotNull
+  public BitSet find(@NotNull final String text) {
+    final BitSet result = new BitSet(mySize);
+    if (text.isEmpty()) {
+      result.set(0, mySize);
+      return result;
+    }
+
+    for (Map.Entry<String, BitSet> e : myIndex.entrySet()) {
+      if (e.getKey().contains(text)) result.or(e.getValue());
+    }
+    return result;
+  }
+}
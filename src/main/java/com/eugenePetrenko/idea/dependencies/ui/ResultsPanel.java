@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies.ui;
+
+import com.eugenePetrenko.idea.dependencies.ModuleResultListener;
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.util.Pair;
+import com.intellij.ui.components.JBLabel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Content of the results tool window, that is filled in while the analysis runs.
+ * Results of finished modules are only shown while the analysis runs, they
+ * are not removed before the analysis completes. A removal changes project roots,
+ * which makes the IDE rescan files in dumb mode, and references of modules
+ * still being analyzed cannot be resolved then.
+ * The shown model uses the universe of the analysis run, which is taken
+ * from the first reported module
+ */
+public class ResultsPanel extends JPanel implements ModuleResultListener {
+  private final Queue<Pair<Module, LibOrModuleSet>> myQueue = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean myScheduled = new AtomicBoolean();
+  private final DependenciesTreePanel myTree = new DependenciesTreePanel(new ModulesDependencies(new DependencyUniverse()));
+  private final JBLabel myStatus = new JBLabel();
+  private final JButton myRemoveButton = new JButton("Remove Dependencies");
+  private int myFinishedModules;
+  private boolean myCompleted;
+
+  /**
+   * @param remove removes dependencies and returns true if they were removed, called from EDT
+   */
+  public ResultsPanel(@NotNull final Predicate<ModulesDependencies> remove) {
+    super(new BorderLayout());
+    add(myTree, BorderLayout.CENTER);
+
+    final JPanel south = new JPanel(new BorderLayout());
+    south.add(myStatus, BorderLayout.CENTER);
+    south.add(myRemoveButton, BorderLayout.EAST);
+    add(south, BorderLayout.SOUTH);
+
+    myRemoveButton.addActionListener(e -> {
+      final ModulesDependencies model = myTree.getModel();
+      if (model.isEmpty()) return;
+
+      if (!remove.test(model)) return;
+      //removed dependencies are not shown
+      final ModulesDependencies rest = new ModulesDependencies(model.getUniverse());
+      rest.setFromBytecode(model.isFromBytecode());
+      myTree.setModel(rest);
+    });
+    //enabled once the analysis completes
+    myRemoveButton.setEnabled(false);
+    updateStatus();
+  }
+
+  @Override
+  public void moduleFinished(@NotNull final Module module, @NotNull final LibOrModuleSet toRemove) {
+    myQueue.add(Pair.create(module, toRemove));
+    //results of many modules are shown at once
+    if (myScheduled.compareAndSet(false, true)) {
+      ApplicationManager.getApplication().invokeLater(this::showFinishedModules);
+    }
+  }
+
+  /**
+   * Called once the analysis is over, after all modules are reported
+   * @param result result of the analysis or null if the analysis has failed or was cancelled
+   */
+  public void analysisFinished(@Nullable final ModulesDependencies result) {
+    ApplicationManager.getApplication().invokeLater(() -> {
+      showFinishedModules();
+      myCompleted = true;
+      //the removal asks to confirm results read from class files
+      myTree.getModel().setFromBytecode(result != null && result.isFromBytecode());
+      //the approximate result may list dependencies that are used
+      myRemoveButton.setEnabled(result == null || !result.isApproximate());
+      if (result == null) {
+        myStatus.setText("Analysis was stopped, " + myFinishedModules + " module(s) analyzed");
+      } else if (result.isApproximate()) {
+        myStatus.setText("Completed, " + myFinishedModules + " module(s) analyzed. The result is approximate, the IDE was indexing");
+      } else {
+        updateStatus();
+      }
+    });
+  }
+
+  private void showFinishedModules() {
+    myScheduled.set(false);
+
+    Pair<Module, LibOrModuleSet> result;
+    while ((result = myQueue.poll()) != null) {
+      final ModulesDependencies model = myTree.getModel();
+      if (model.isEmpty() && model.getUniverse() != result.second.getUniverse()) {
+        //sets of the run are added without mapping them between universes
+        myTree.setModel(new ModulesDependencies(result.second.getUniverse()));
+      }
+      myFinishedModules++;
+      myTree.addModule(result.first, result.second);
+    }
+    if (!myCompleted) updateStatus();
+  }
+
+  private void updateStatus() {
+    myStatus.setText((myCompleted ? "Completed, " : "Analyzing, ") + myFinishedModules + " module(s) analyzed");
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013-2013 Eugene Petrenko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eugenePetrenko.idea.dependencies.ui;
+
+import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.openapi.wm.ToolWindowManager;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Predicate;
+
+/**
+ * Non-modal tool window with results of the analysis, one tab per analysis run.
+ * The tool window becomes available with the first run
+ */
+public class ResultsToolWindowFactory implements ToolWindowFactory, DumbAware {
+  public static final String ID = "Unused Dependencies";
+
+  @Override
+  public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+    //tabs are added by analysis runs
+  }
+
+  @Override
+  public boolean shouldBeAvailable(@NotNull Project project) {
+    return false;
+  }
+
+  /**
+   * Opens a new tab for the analysis run, must be called from EDT
+   *
+   * @param title  title of the tab
+   * @param remove removes dependencies selected in the tab, returns true if they were removed
+   */
+  @NotNull
+  public static ResultsPanel showResults(@NotNull final Project project,
+                                         @NotNull final String title,
+                                         @NotNull final Predicate<ModulesDependencies> remove) {
+    final ResultsPanel panel = new ResultsPanel(remove);
+    final ToolWindow toolWindow = ToolWindowManager.getInstance(project).getToolWindow(ID);
+    if (toolWindow == null) return panel;
+
+    toolWindow.setAvailable(true, null);
+    final Content content = ContentFactory.SERVICE.getInstance().createContent(panel, title, false);
+    toolWindow.getContentManager().addContent(content);
+    toolWindow.getContentManager().setSelectedContent(content);
+    toolWindow.activate(null);
+    return panel;
+  }
+}
@@ -1,7 +1,25 @@
 package com.eugenePetrenko.idea.depedencies;
 
+import com.eugenePetrenko.idea.dependencies.AnalyzeOptions;
+import com.eugenePetrenko.idea.dependencies.ApproximateDependenciesSearcher;
+import com.eugenePetrenko.idea.dependencies.ModuleDependenciesAnalyzer;
+import com.eugenePetrenko.idea.dependencies.ModuleDependenciesSearcher;
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.psi.*;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.eugenePetrenko.idea.dependencies.AnalyzeStrategies.SKIP_EXPORT_DEPENDENCIES;
 import static com.eugenePetrenko.idea.dependencies.AnalyzeStrategies.WITH_EXPORT_DEPENDENCIES;
@@ -199,4 +217,381 @@ public class AnalyzerTest extends AnalyzerTestCase {
       }
     });
   }
+
+  public void testSaturationGivesSameResult() throws Throwable {
+    doTest(new LibrariesTestAction() {
+      @NotNull
+      @Override
+      protected AnalyzeOptions[] options() {
+        final AnalyzeOptions exact = new AnalyzeOptions();
+        exact.setSaturation(false);
+        final AnalyzeOptions saturation = new AnalyzeOptions();
+        saturation.setSaturation(true);
+        return new AnalyzeOptions[]{exact, saturation};
+      }
+    });
+  }
+
+  public void testSaturationSkipsFilesOnceAllDependenciesAreUsed() throws Throwable {
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder mE = module("mE", "saturation", "e");
+        final ModuleBuilder mS = module("mS", "saturation", "s");
+        final ModuleBuilder mP = module("mP", "saturation", "p");
+        final ModuleBuilder mN = module("mN", "saturation", "n");
+        final ModuleBuilder mQ = module("mQ", "saturation", "q");
+
+        //the largest file of mP uses mS and mE, which mP sees only through the export of mS
+        dep(mS, mE, true);
+        dep(mP, mS);
+        dep(mQ, mN);
+
+        final ResultChecker expected = assertBuilder().removes(mQ, mN);
+        ModulesDependencies exact = null;
+        for (boolean saturation : new boolean[]{false, true}) {
+          //one thread analyzes files of a module largest first
+          final AnalyzeOptions options = new AnalyzeOptions();
+          options.setSaturation(saturation);
+          options.setThreads(1);
+          options.setResultCache(false);
+
+          final List<String> walked = new ArrayList<>();
+          final ModulesDependencies result = ModuleDependenciesAnalyzer.processAllDependencies(
+                  WITH_EXPORT_DEPENDENCIES,
+                  options,
+                  new EmptyProgressIndicator() {
+                    @Override
+                    public void setText2(final String text) {
+                      //the path of every analyzed file is shown
+                      if (text != null) walked.add(text);
+                    }
+                  },
+                  project());
+          System.out.println("result = " + result + ", walked = " + walked);
+
+          expected.assertActual(result);
+          Assert.assertTrue(walked.toString(), contains(walked, "PBig.java"));
+          Assert.assertEquals(walked.toString(), !saturation, contains(walked, "PSmall1.java"));
+          Assert.assertEquals(walked.toString(), !saturation, contains(walked, "PSmall2.java"));
+          if (exact == null) {
+            exact = result;
+          } else {
+            Assert.assertEquals(exact, result);
+          }
+        }
+      }
+    });
+  }
+
+  private static boolean contains(@NotNull final List<String> texts, @NotNull final String name) {
+    for (String text : texts) {
+      if (text.endsWith(name)) return true;
+    }
+    return false;
+  }
+
+  public void testReverseSearchGivesSameResult() throws Throwable {
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder m1 = module("m1", "transitiveClasses", "a");
+        final ModuleBuilder m2 = module("m2", "transitiveClasses", "b");
+        final ModuleBuilder m3 = module("m3", "transitiveClasses", "c");
+        final ModuleBuilder m4 = module("m4", "transitiveClasses", "d");
+
+        dep(m4, m3);
+        dep(m4, m2);
+        dep(m4, m1);
+        dep(m3, m2);
+        dep(m3, m1);
+        dep(m2, m1);
+
+        final AnalyzeOptions forward = new AnalyzeOptions();
+        forward.setResultCache(false);
+        final AnalyzeOptions reverse = new AnalyzeOptions();
+        reverse.setEngine(AnalyzeOptions.Engine.REVERSE);
+        reverse.setResultCache(false);
+
+        ModulesDependencies expected = analyzeProject(WITH_EXPORT_DEPENDENCIES, forward);
+        ModulesDependencies actual = analyzeProject(WITH_EXPORT_DEPENDENCIES, reverse);
+        System.out.println("result = " + actual);
+
+        Assert.assertEquals(expected, actual);
+      }
+    });
+  }
+
+  public void testReverseSearchOfLibrariesGivesSameResult() throws Throwable {
+    doTest(new LibrariesTestAction() {
+      @NotNull
+      @Override
+      protected AnalyzeOptions[] options() {
+        final AnalyzeOptions forward = new AnalyzeOptions();
+        forward.setResultCache(false);
+        final AnalyzeOptions reverse = new AnalyzeOptions();
+        reverse.setEngine(AnalyzeOptions.Engine.REVERSE);
+        reverse.setResultCache(false);
+        //one class per dependency, other usages are left to the forward scan
+        final AnalyzeOptions budget = new AnalyzeOptions();
+        budget.setEngine(AnalyzeOptions.Engine.REVERSE);
+        budget.setReverseClassBudget(1);
+        budget.setResultCache(false);
+        return new AnalyzeOptions[]{forward, reverse, budget};
+      }
+    });
+  }
+
+  public void testTwoPhaseGivesSameResult() throws Throwable {
+    doTest(new LibrariesTestAction() {
+      @NotNull
+      @Override
+      protected AnalyzeOptions[] options() {
+        final AnalyzeOptions resolve = new AnalyzeOptions();
+        resolve.setTwoPhase(false);
+        final AnalyzeOptions twoPhase = new AnalyzeOptions();
+        twoPhase.setTwoPhase(true);
+        return new AnalyzeOptions[]{resolve, twoPhase};
+      }
+    });
+  }
+
+  public void testTwoPhaseIgnoresOnDemandPackageImports() throws Throwable {
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder mP = module("mP", "approximate", "p");
+        final ModuleBuilder mQ = module("mQ", "approximate", "q");
+        final ModuleBuilder mW = module("mW", "onDemand", "w");
+
+        dep(mW, mP);
+        dep(mW, mQ);
+
+        //the package p is imported on demand, but none of its classes is used
+        final ResultChecker expected = assertBuilder().removes(mW, mP);
+        for (boolean twoPhase : new boolean[]{false, true}) {
+          final AnalyzeOptions options = new AnalyzeOptions();
+          options.setTwoPhase(twoPhase);
+          final ModulesDependencies result = analyzeProject(WITH_EXPORT_DEPENDENCIES, options);
+          System.out.println("result = " + result);
+
+          expected.assertActual(result);
+        }
+      }
+    });
+  }
+
+  public void testStreamingGivesSameResult() throws Throwable {
+    doTest(new LibrariesTestAction() {
+      @NotNull
+      @Override
+      protected AnalyzeOptions[] options() {
+        //streaming does not change usages, so the second run would reuse them
+        final AnalyzeOptions collected = new AnalyzeOptions();
+        collected.setStreaming(false);
+        collected.setResultCache(false);
+        final AnalyzeOptions streaming = new AnalyzeOptions();
+        streaming.setStreaming(true);
+        streaming.setResultCache(false);
+        return new AnalyzeOptions[]{collected, streaming};
+      }
+    });
+  }
+
+  public void testListenerReportsEveryModuleOnce() throws Throwable {
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder mE = module("mE", "exportClasses", "aExport");
+        final ModuleBuilder mR = module("mR", "exportClasses", "a");
+        final ModuleBuilder mB = module("mB", "exportClasses", "b");
+        final ModuleBuilder mQ = module("mQ", "exportClasses", "q");
+
+        dep(mR, mE, true);
+        dep(mB, mR);
+        dep(mQ, mR);
+
+        final AnalyzeOptions options = new AnalyzeOptions();
+        options.setStreaming(true);
+        options.setResultCache(false);
+
+        final Map<Module, LibOrModuleSet> reported = new ConcurrentHashMap<>();
+        final ModulesDependencies result = ModuleDependenciesAnalyzer.processAllDependencies(
+                WITH_EXPORT_DEPENDENCIES,
+                options,
+                new EmptyProgressIndicator(),
+                project(),
+                (module, toRemove) -> Assert.assertNull("reported twice: " + module, reported.put(module, toRemove)));
+        System.out.println("result = " + result);
+
+        for (ModuleBuilder m : new ModuleBuilder[]{mE, mR, mB, mQ}) {
+          Assert.assertTrue("not reported: " + m.module(), reported.containsKey(m.module()));
+        }
+        final ModulesDependencies actual = new ModulesDependencies(result.getUniverse());
+        for (Map.Entry<Module, LibOrModuleSet> e : reported.entrySet()) {
+          actual.addAll(e.getKey(), e.getValue());
+        }
+        Assert.assertEquals(result, actual);
+      }
+    });
+  }
+
+  public void testApproximateSearchSeesImportsAndQualifiedNames() throws Throwable {
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder mP = module("mP", "approximate", "p");
+        final ModuleBuilder mQ = module("mQ", "approximate", "q");
+        final ModuleBuilder mN = module("mN", "approximate", "n");
+        final ModuleBuilder mU = module("mU", "approximate", "u");
+
+        dep(mU, mP);
+        dep(mU, mQ);
+        dep(mU, mN);
+
+        final ModulesDependencies result = ApproximateDependenciesSearcher.collectionActualModulesDependencies(
+                new EmptyProgressIndicator(),
+                project(),
+                new Module[]{mU.module()},
+                new DependencyUniverse());
+        System.out.println("result = " + result);
+
+        Assert.assertTrue(result.isApproximate());
+        final LibOrModuleSet usages = result.forModule(mU.module());
+        Assert.assertNotNull(usages);
+        Assert.assertTrue("import is not seen", usages.contains(mP.module()));
+        Assert.assertTrue("qualified name is not seen", usages.contains(mQ.module()));
+        Assert.assertFalse("unused module is seen", usages.contains(mN.module()));
+      }
+    });
+  }
+
+  public void testAllocationPerFileIsBounded() throws Throwable {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) return;
+    final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+    if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) return;
+
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder m = module("m", "allocation", "a");
+        m.lib(lib("ia", "transitiveLibs", "lib", "a.i"),
+              lib("la", "transitiveLibs", "lib", "a"),
+              lib("lb", "transitiveLibs", "lib", "b"),
+              lib("lc", "transitiveLibs", "lib", "c"));
+
+        //one worker in this thread, every file is walked and resolve caches are kept
+        final AnalyzeOptions options = new AnalyzeOptions();
+        options.setThreads(1);
+        options.setSaturation(false);
+        options.setResultCache(false);
+        options.setCacheRetention(AnalyzeOptions.CacheRetention.ON_MEMORY_PRESSURE);
+        options.setHeapBudgetPercent(100);
+
+        final Module[] modules = {m.module()};
+        final List<PsiFile> files = javaFiles(m.module());
+        final Runnable setup = () -> ModuleDependenciesSearcher.collectionActualModulesDependencies(options, new EmptyProgressIndicator(), project(), new Module[0]);
+        final Runnable analysis = () -> ModuleDependenciesSearcher.collectionActualModulesDependencies(options, new EmptyProgressIndicator(), project(), modules);
+        final Runnable baseline = () -> ReadAction.run(() -> files.forEach(AnalyzerTest::walkAndResolve));
+
+        //the first runs load PSI, stubs and resolve caches of the fixture
+        setup.run();
+        analysis.run();
+        baseline.run();
+
+        final int runs = 5;
+        final long perFile = (allocatedBytes(bean, runs, analysis) - allocatedBytes(bean, runs, setup)) / files.size();
+        final long baselinePerFile = allocatedBytes(bean, runs, baseline) / files.size();
+        System.out.println("allocated bytes per file = " + perFile + ", by a plain resolving walk = " + baselinePerFile);
+
+        //the share of the module planning is included, it is small next to the walk of the files
+        Assert.assertTrue("allocated bytes per file: " + perFile + ", by a plain resolving walk: " + baselinePerFile,
+                perFile <= 2 * baselinePerFile);
+      }
+    });
+  }
+
+  /**
+   * @return bytes allocated by the current thread in the given number of runs
+   */
+  private static long allocatedBytes(@NotNull final com.sun.management.ThreadMXBean bean,
+                                     final int runs,
+                                     @NotNull final Runnable action) {
+    final long threadId = Thread.currentThread().getId();
+    final long before = bean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < runs; i++) {
+      action.run();
+    }
+    return (bean.getThreadAllocatedBytes(threadId) - before) / runs;
+  }
+
+  @NotNull
+  private static List<PsiFile> javaFiles(@NotNull final Module module) {
+    final List<PsiFile> result = new ArrayList<>();
+    ReadAction.run(() -> ModuleRootManager.getInstance(module).getFileIndex().iterateContent(file -> {
+      final PsiFile psi = "java".equals(file.getExtension()) ? PsiManager.getInstance(module.getProject()).findFile(file) : null;
+      if (psi != null) result.add(psi);
+      return true;
+    }));
+    Assert.assertFalse(result.isEmpty());
+    return result;
+  }
+
+  /**
+   * Resolves every reference of the file with a new visitor and a new set,
+   * the way files were walked before the walker state was reused
+   */
+  private static void walkAndResolve(@NotNull final PsiFile file) {
+    final Set<PsiElement> targets = new HashSet<>();
+    file.accept(new PsiRecursiveElementVisitor() {
+      @Override
+      public void visitElement(@NotNull final PsiElement element) {
+        super.visitElement(element);
+        for (PsiReference reference : element.getReferences()) {
+          final PsiElement resolved = reference.resolve();
+          if (resolved != null) targets.add(resolved);
+        }
+      }
+    });
+  }
+
+  /**
+   * Modules use libraries directly and through supertypes of library classes.
+   * The module m1 does not use ia, the module m2 does not use lc and m3
+   */
+  private abstract class LibrariesTestAction extends AnalyzerTestAction {
+    @Override
+    protected void testCode() throws Throwable {
+      final ModuleBuilder m1 = module("m1", "transitiveLibs", "a");
+      final ModuleBuilder m2 = module("m2", "transitiveLibs", "b");
+      final ModuleBuilder m3 = module("m3", "transitiveClasses", "a");
+
+      Library ia = lib("ia", "transitiveLibs", "lib", "a.i");
+      Library la = lib("la", "transitiveLibs", "lib", "a");
+      Library lb = lib("lb", "transitiveLibs", "lib", "b");
+      Library lc = lib("lc", "transitiveLibs", "lib", "c");
+
+      m1.lib(lc, ia);
+      m2.lib(ia, la, lb, lc);
+      dep(m2, m3);
+
+      final ResultChecker expected = assertBuilder()
+              .removes(m1, ia)
+              .removes(m2, lc)
+              .removes(m2, m3);
+      for (AnalyzeOptions options : options()) {
+        final ModulesDependencies result = analyzeProject(WITH_EXPORT_DEPENDENCIES, options);
+        System.out.println("result = " + result);
+
+        expected.assertActual(result);
+      }
+    }
+
+    /**
+     * @return options that differ only in the option under test
+     */
+    @NotNull
+    protected abstract AnalyzeOptions[] options();
+  }
 }
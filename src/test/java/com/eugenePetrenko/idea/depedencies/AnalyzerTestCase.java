@@ -1,7 +1,9 @@
 package com.eugenePetrenko.idea.depedencies;
 
+import com.eugenePetrenko.idea.dependencies.AnalyzeOptions;
 import com.eugenePetrenko.idea.dependencies.AnalyzeStrategy;
 import com.eugenePetrenko.idea.dependencies.ModuleDependenciesAnalyzer;
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
 import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
 import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
 import com.intellij.openapi.application.PathManager;
@@ -144,6 +146,16 @@ public abstract class AnalyzerTestCase extends TestCase {
       );
     }
 
+    @NotNull
+    public ModulesDependencies analyzeProject(@NotNull AnalyzeStrategy strategy, @NotNull AnalyzeOptions options) {
+      return ModuleDependenciesAnalyzer.processAllDependencies(
+              strategy,
+              options,
+              new EmptyProgressIndicator(),
+              project()
+      );
+    }
+
     @NotNull
     public Project project() {
       return myHost.getFixture().getProject();
@@ -170,11 +182,11 @@ public abstract class AnalyzerTestCase extends TestCase {
 
 
     public class ResultChecker {
-      private final ModulesDependencies myExpected = new ModulesDependencies();
+      private final ModulesDependencies myExpected = new ModulesDependencies(new DependencyUniverse());
 
       @NotNull
       public ResultChecker removes(@NotNull ModuleBuilder from, @NotNull ModuleBuilder to) {
-        LibOrModuleSet set = new LibOrModuleSet();
+        LibOrModuleSet set = new LibOrModuleSet(myExpected.getUniverse());
         set.addDependency(to.module());
         myExpected.addAll(from.module(), set);
         return this;
@@ -182,7 +194,7 @@ public abstract class AnalyzerTestCase extends TestCase {
 
       @NotNull
       public ResultChecker removes(@NotNull ModuleBuilder from, @NotNull Library to) {
-        LibOrModuleSet set = new LibOrModuleSet();
+        LibOrModuleSet set = new LibOrModuleSet(myExpected.getUniverse());
         set.addDependency(to);
         myExpected.addAll(from.module(), set);
         return this;
@@ -0,0 +1,63 @@
+package com.eugenePetrenko.idea.depedencies;
+
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
+import com.eugenePetrenko.idea.dependencies.ui.DependenciesTreePanel;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.roots.libraries.Library;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+
+@TestFor(testForClass = DependenciesTreePanel.class)
+public class DependenciesTreePanelTest extends AnalyzerTestCase {
+
+  public void testExclusionsSurviveSetModel() throws Throwable {
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder m1 = module("m1", "transitiveLibs", "a");
+        final ModuleBuilder m2 = module("m2", "transitiveLibs", "b");
+
+        final Library la = lib("la", "transitiveLibs", "lib", "a");
+        final Library lc = lib("lc", "transitiveLibs", "lib", "c");
+
+        m2.lib(la, lc);
+        dep(m2, m1);
+
+        final DependenciesTreePanel panel = new DependenciesTreePanel(model(m2.module(), m1.module(), la, lc));
+        //the user excludes the library from removal
+        final LibOrModuleSet shown = panel.getModel().forModule(m2.module());
+        Assert.assertNotNull(shown);
+        shown.removeDependency(lc);
+
+        for (int i = 0; i < 2; i++) {
+          //for example, the exact result replaces the approximate one
+          final ModulesDependencies upgraded = model(m2.module(), m1.module(), la, lc);
+          panel.setModel(upgraded);
+          Assert.assertSame(upgraded, panel.getModel());
+
+          final LibOrModuleSet toRemove = upgraded.forModule(m2.module());
+          Assert.assertNotNull(toRemove);
+          Assert.assertTrue(toRemove.contains(m1.module()));
+          Assert.assertTrue(toRemove.contains(la));
+          Assert.assertFalse("excluded dependency is back after setModel #" + i, toRemove.contains(lc));
+        }
+      }
+    });
+  }
+
+  @NotNull
+  private static ModulesDependencies model(@NotNull final Module module,
+                                           @NotNull final Module dependency,
+                                           @NotNull final Library... libraries) {
+    final ModulesDependencies model = new ModulesDependencies(new DependencyUniverse());
+    final LibOrModuleSet toRemove = new LibOrModuleSet(model.getUniverse());
+    toRemove.addDependency(dependency);
+    for (Library library : libraries) {
+      toRemove.addDependency(library);
+    }
+    model.addAll(module, toRemove);
+    return model;
+  }
+}
@@ -0,0 +1,84 @@
+package com.eugenePetrenko.idea.depedencies;
+
+import com.eugenePetrenko.idea.dependencies.ExportPropagation;
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Plain tests for export usages propagation, no IDE fixture is needed
+ */
+@TestFor(testForClass = ExportPropagation.class)
+public class ExportPropagationTest extends TestCase {
+
+  public void testChainIsPropagatedToTheEnd() {
+    final int[][] exports = {{1}, {2}, {3}, {}};
+    final LibOrModuleSet[] demand = demand(4);
+    demand[0].addLibraryId(7);
+
+    ExportPropagation.propagate(exports, demand);
+
+    for (LibOrModuleSet set : demand) {
+      assertTrue(set.containsLibraryId(7));
+    }
+  }
+
+  public void testReverseOrderChain() {
+    final int[][] exports = {{}, {0}, {1}, {2}};
+    final LibOrModuleSet[] demand = demand(4);
+    demand[3].addLibraryId(7);
+    demand[1].addLibraryId(5);
+
+    ExportPropagation.propagate(exports, demand);
+
+    assertTrue(demand[0].containsLibraryId(7));
+    assertTrue(demand[0].containsLibraryId(5));
+    assertFalse(demand[2].containsLibraryId(5));
+  }
+
+  public void testCycleSharesDemand() {
+    final int[][] exports = {{1}, {0, 2}, {}, {}};
+    final LibOrModuleSet[] demand = demand(4);
+    demand[1].addModuleId(3);
+    demand[3].addModuleId(4);
+
+    ExportPropagation.propagate(exports, demand);
+
+    assertTrue(demand[0].containsModuleId(3));
+    assertTrue(demand[2].containsModuleId(3));
+    assertFalse(demand[0].containsModuleId(4));
+    assertSame(demand[0], demand[1]);
+  }
+
+  public void testDeepChainBenchmark() {
+    //the demand is bounded by the number of libraries, so every edge costs the same
+    final int libraries = 64;
+    for (int n : new int[]{1000, 10000, 50000}) {
+      final int[][] exports = new int[n][];
+      final LibOrModuleSet[] demand = demand(n);
+      for (int i = 0; i < n; i++) {
+        //every module uses one of the libraries and exports the next module
+        exports[i] = i + 1 < n ? new int[]{i + 1} : new int[0];
+        demand[i].addLibraryId(i % libraries);
+      }
+
+      final long start = System.nanoTime();
+      ExportPropagation.propagate(exports, demand);
+      final long time = System.nanoTime() - start;
+
+      System.out.println("chain of " + n + " modules: " + time / 1000000 + " ms, " + time / n + " ns per edge");
+      assertEquals(libraries, demand[n - 1].getLibraryIds().length);
+    }
+  }
+
+  @NotNull
+  private static LibOrModuleSet[] demand(final int n) {
+    final DependencyUniverse universe = new DependencyUniverse();
+    final LibOrModuleSet[] demand = new LibOrModuleSet[n];
+    for (int i = 0; i < n; i++) {
+      demand[i] = new LibOrModuleSet(universe);
+    }
+    return demand;
+  }
+}
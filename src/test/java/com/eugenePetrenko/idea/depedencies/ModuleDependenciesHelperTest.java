@@ -0,0 +1,79 @@
+package com.eugenePetrenko.idea.depedencies;
+
+import com.eugenePetrenko.idea.dependencies.ModuleDependenciesHelper;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.roots.OrderEntry;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+
+import java.util.*;
+
+@TestFor(testForClass = ModuleDependenciesHelper.class)
+public class ModuleDependenciesHelperTest extends AnalyzerTestCase {
+
+  public void testExportClosureIsTheSameAsRecursive() throws Throwable {
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder mA = module("mA", "transitiveClasses", "a");
+        final ModuleBuilder mB = module("mB", "transitiveClasses", "b");
+        final ModuleBuilder mC = module("mC", "transitiveClasses", "c");
+        final ModuleBuilder mD = module("mD", "transitiveClasses", "d");
+        final ModuleBuilder mE = module("mE", "exportClasses", "aExport");
+        final ModuleBuilder mF = module("mF", "exportClasses", "q");
+
+        //exported chain mC -> mB -> mA
+        dep(mB, mA, true);
+        dep(mC, mB, true);
+        dep(mD, mC);
+        dep(mE, mB);
+        dep(mF, mD);
+        //the cycle is visited once
+        dep(mA, mF);
+
+        final Module[] all = ModuleManager.getInstance(project()).getModules();
+        for (Module module : all) {
+          assertClosure(project(), module);
+          Assert.assertEquals(module.getName(), hasExports(module), ModuleDependenciesHelper.hasExportDependencies(project(), module));
+        }
+        assertClosure(project(), mA.module(), mD.module());
+        assertClosure(project(), all);
+
+        final Set<Module> closure = new HashSet<>(Arrays.asList(ModuleDependenciesHelper.includeExportDependencies(project(), new Module[]{mB.module()})));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(mB.module(), mC.module(), mD.module(), mE.module())), closure);
+      }
+    });
+  }
+
+  private static void assertClosure(@NotNull final Project project, @NotNull final Module... modules) {
+    final Set<Module> expected = new HashSet<>();
+    includeRecursively(project, Arrays.asList(modules), expected);
+
+    final Set<Module> actual = new HashSet<>(Arrays.asList(ModuleDependenciesHelper.includeExportDependencies(project, modules)));
+    Assert.assertEquals(Arrays.toString(modules), expected, actual);
+  }
+
+  /**
+   * The recursive closure that was used before the module graph snapshot
+   */
+  private static void includeRecursively(@NotNull final Project project,
+                                         @NotNull final Collection<Module> modules,
+                                         @NotNull final Set<Module> result) {
+    for (Module module : modules) {
+      if (!result.add(module)) continue;
+      if (!hasExports(module)) continue;
+
+      includeRecursively(project, ModuleManager.getInstance(project).getModuleDependentModules(module), result);
+    }
+  }
+
+  private static boolean hasExports(@NotNull final Module module) {
+    for (OrderEntry e : ModuleRootManager.getInstance(module).getOrderEntries()) {
+      if (ModuleDependenciesHelper.isExportDependency(e)) return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,160 @@
+package com.eugenePetrenko.idea.depedencies;
+
+import com.eugenePetrenko.idea.dependencies.ModuleDependenciesUpdater;
+import com.eugenePetrenko.idea.dependencies.data.DependencyUniverse;
+import com.eugenePetrenko.idea.dependencies.data.LibOrModuleSet;
+import com.eugenePetrenko.idea.dependencies.data.ModulesDependencies;
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.command.undo.UndoManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.impl.libraries.LibraryEx;
+import com.intellij.openapi.roots.libraries.Library;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@TestFor(testForClass = ModuleDependenciesUpdater.class)
+public class ModuleDependenciesUpdaterTest extends AnalyzerTestCase {
+
+  public void testRemoveUndoRedo() throws Throwable {
+    doTest(new AnalyzerTestAction() {
+      @Override
+      protected void testCode() throws Throwable {
+        final ModuleBuilder m1 = module("m1", "transitiveClasses", "a");
+        final ModuleBuilder m2 = module("m2", "transitiveClasses", "b");
+
+        final Library la = lib("la", "transitiveLibs", "lib", "a");
+        final Library lc = lib("lc", "transitiveLibs", "lib", "c");
+
+        ModuleRootModificationUtil.addDependency(m2.module(), m1.module(), DependencyScope.PROVIDED, true);
+        m1.lib(la);
+        m2.lib(lc, la);
+        ModuleRootModificationUtil.addModuleLibrary(m2.module(), "local",
+                Collections.singletonList(url("transitiveLibs", "lib", "b")),
+                Collections.emptyList(),
+                Collections.singletonList(url("transitiveLibs", "lib", "b") + "/excluded"),
+                DependencyScope.TEST,
+                true);
+        //the same name as the module library, but another position
+        ModuleRootModificationUtil.addModuleLibrary(m2.module(), "local",
+                Collections.singletonList(url("transitiveLibs", "lib", "b")),
+                Collections.emptyList(),
+                Collections.emptyList(),
+                DependencyScope.COMPILE,
+                false);
+        ModuleRootModificationUtil.updateModel(m2.module(), model -> {
+          final Library jars = model.getModuleLibraryTable().createLibrary("jars");
+          final Library.ModifiableModel jarsModel = jars.getModifiableModel();
+          jarsModel.addJarDirectory(url("transitiveLibs", "lib"), true);
+          jarsModel.commit();
+          model.findLibraryOrderEntry(jars).setScope(DependencyScope.RUNTIME);
+        });
+
+        final List<String> before = describe(m2.module());
+        final List<String> before1 = describe(m1.module());
+        final List<OrderEntry> entries = Arrays.asList(ModuleRootManager.getInstance(m2.module()).getOrderEntries());
+
+        final ModulesDependencies model = new ModulesDependencies(new DependencyUniverse());
+        final LibOrModuleSet toRemove = new LibOrModuleSet(model.getUniverse());
+        toRemove.addDependency(m1.module());
+        toRemove.addDependency(lc);
+        toRemove.addDependency(moduleLibrary(m2.module(), DependencyScope.TEST));
+        toRemove.addDependency(moduleLibrary(m2.module(), DependencyScope.RUNTIME));
+        model.addAll(m2.module(), toRemove);
+        final LibOrModuleSet toRemove1 = new LibOrModuleSet(model.getUniverse());
+        toRemove1.addDependency(la);
+        model.addAll(m1.module(), toRemove1);
+
+        final int[] rootsChanged = {0};
+        project().getMessageBus().connect(project()).subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootListener() {
+          @Override
+          public void rootsChanged(@NotNull final ModuleRootEvent event) {
+            rootsChanged[0]++;
+          }
+        });
+
+        CommandProcessor.getInstance().executeCommand(project(), () -> WriteAction.run(
+                () -> ModuleDependenciesUpdater.updateModuleDependencies(project(), model)), "Remove Unused Dependencies", null);
+        Assert.assertEquals("roots changes on removal", 1, rootsChanged[0]);
+
+        final List<String> removed = new ArrayList<>(before);
+        for (OrderEntry e : entries) {
+          if (toRemove.contains(e)) removed.remove(describe(e));
+        }
+        Assert.assertEquals(before.size() - 4, removed.size());
+        Assert.assertEquals(removed, describe(m2.module()));
+        final List<String> removed1 = new ArrayList<>(before1);
+        removed1.remove(before1.size() - 1);
+        Assert.assertEquals(removed1, describe(m1.module()));
+
+        final UndoManager undoManager = UndoManager.getInstance(project());
+        rootsChanged[0] = 0;
+        undoManager.undo(null);
+        Assert.assertEquals("roots changes on undo", 1, rootsChanged[0]);
+        Assert.assertEquals(before, describe(m2.module()));
+        Assert.assertEquals(before1, describe(m1.module()));
+
+        rootsChanged[0] = 0;
+        undoManager.redo(null);
+        Assert.assertEquals("roots changes on redo", 1, rootsChanged[0]);
+        Assert.assertEquals(removed, describe(m2.module()));
+        Assert.assertEquals(removed1, describe(m1.module()));
+      }
+    });
+  }
+
+  @NotNull
+  private String url(@NotNull final String... path) {
+    return "file://" + testDataPath(path).replace("\\", "/");
+  }
+
+  @NotNull
+  private static Library moduleLibrary(@NotNull final Module module, @NotNull final DependencyScope scope) {
+    for (OrderEntry e : ModuleRootManager.getInstance(module).getOrderEntries()) {
+      if (!(e instanceof LibraryOrderEntry)) continue;
+      final LibraryOrderEntry entry = (LibraryOrderEntry) e;
+      if (entry.isModuleLevel() && entry.getScope() == scope && entry.getLibrary() != null) return entry.getLibrary();
+    }
+    throw new AssertionError("No module library with scope " + scope + " in " + module);
+  }
+
+  @NotNull
+  private static List<String> describe(@NotNull final Module module) {
+    final List<String> result = new ArrayList<>();
+    for (OrderEntry e : ModuleRootManager.getInstance(module).getOrderEntries()) {
+      result.add(describe(e));
+    }
+    return result;
+  }
+
+  @NotNull
+  private static String describe(@NotNull final OrderEntry e) {
+    final StringBuilder sb = new StringBuilder(e.getPresentableName());
+    if (e instanceof ExportableOrderEntry) {
+      sb.append(':').append(((ExportableOrderEntry) e).getScope());
+      sb.append(':').append(((ExportableOrderEntry) e).isExported());
+    }
+    if (e instanceof LibraryOrderEntry && ((LibraryOrderEntry) e).isModuleLevel()) {
+      final Library library = ((LibraryOrderEntry) e).getLibrary();
+      if (library != null) {
+        sb.append(':').append(Arrays.toString(library.getUrls(OrderRootType.CLASSES)));
+        if (library instanceof LibraryEx) sb.append(':').append(Arrays.toString(((LibraryEx) library).getExcludedRootUrls()));
+        //jar directories with their recursive flags
+        final Element state = new Element("library");
+        library.writeExternal(state);
+        for (Element jarDirectory : state.getChildren("jarDirectory")) {
+          sb.append(':').append(jarDirectory.getAttributeValue("url")).append('=').append(jarDirectory.getAttributeValue("recursive"));
+        }
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,55 @@
+package com.eugenePetrenko.idea.depedencies;
+
+import com.eugenePetrenko.idea.dependencies.ui.NameIndex;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.BitSet;
+
+/**
+ * Plain tests for the filter index of the dependencies tree, no IDE fixture is needed
+ */
+@TestFor(testForClass = NameIndex.class)
+public class NameIndexTest extends TestCase {
+
+  public void testEmptyTextMatchesAll() {
+    final NameIndex index = new NameIndex();
+    index.add("core", 0);
+    index.add("guava", 2);
+
+    assertEquals(bits(0, 1, 2), index.find(""));
+  }
+
+  public void testSubstringIsMatchedIgnoringCase() {
+    final NameIndex index = new NameIndex();
+    index.add("Core", 0);
+    index.add("Guava", 1);
+    index.add("guava-testlib", 2);
+
+    assertEquals(bits(1, 2), index.find("guav"));
+    assertEquals(bits(0), index.find("or"));
+    assertEquals(bits(2), index.find("-test"));
+    assertEquals(bits(), index.find("junit"));
+  }
+
+  public void testPositionWithSeveralNames() {
+    final NameIndex index = new NameIndex();
+    //a module node is found by its own name and by names of its dependencies
+    index.add("app", 0);
+    index.add("guava", 0);
+    index.add("core", 1);
+    index.add("guava", 1);
+
+    assertEquals(bits(0, 1), index.find("guava"));
+    assertEquals(bits(0), index.find("app"));
+  }
+
+  @NotNull
+  private static BitSet bits(final int... positions) {
+    final BitSet result = new BitSet();
+    for (int position : positions) {
+      result.set(position);
+    }
+    return result;
+  }
+}
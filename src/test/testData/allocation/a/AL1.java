@@ -0,0 +1,10 @@
+@SuppressWarnings("UnusedDeclaration")
+public class AL1 {
+  LC c;
+  LB b;
+  java.util.List<LA> list;
+
+  IA make() {
+    return new LB();
+  }
+}
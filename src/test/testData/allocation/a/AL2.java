@@ -0,0 +1,10 @@
+@SuppressWarnings("UnusedDeclaration")
+public class AL2 {
+  LC c;
+  LB b;
+  java.util.List<LA> list;
+
+  IA make() {
+    return new LB();
+  }
+}
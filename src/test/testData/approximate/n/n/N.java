@@ -0,0 +1,5 @@
+package n;
+
+@SuppressWarnings("UnusedDeclaration")
+public class N {
+}
@@ -0,0 +1,5 @@
+package p;
+
+@SuppressWarnings("UnusedDeclaration")
+public class P {
+}
@@ -0,0 +1,5 @@
+package q;
+
+@SuppressWarnings("UnusedDeclaration")
+public class Q {
+}
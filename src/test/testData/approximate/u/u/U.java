@@ -0,0 +1,9 @@
+package u;
+
+import p.P;
+
+@SuppressWarnings("UnusedDeclaration")
+public class U {
+  P p;
+  q.Q q;
+}
@@ -0,0 +1,9 @@
+package w;
+
+import p.*;
+import q.Q;
+
+@SuppressWarnings("UnusedDeclaration")
+public class W {
+  Q q;
+}
@@ -0,0 +1,3 @@
+@SuppressWarnings("UnusedDeclaration")
+public class N1 {
+}
@@ -0,0 +1,19 @@
+/**
+ * The largest file of the module, so it is analyzed first.
+ * It uses both dependencies of the module: S1 of the direct dependency
+ * and SE of the dependency that is exported by it, so once this file
+ * is analyzed, other files of the module are not needed.
+ */
+@SuppressWarnings("UnusedDeclaration")
+public class PBig {
+  S1 s;
+  SE e;
+
+  S1 first() {
+    return s;
+  }
+
+  SE second() {
+    return e;
+  }
+}
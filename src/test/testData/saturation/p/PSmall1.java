@@ -0,0 +1,4 @@
+@SuppressWarnings("UnusedDeclaration")
+public class PSmall1 {
+  S1 s;
+}
@@ -0,0 +1,4 @@
+@SuppressWarnings("UnusedDeclaration")
+public class PSmall2 {
+  S1 s;
+}
@@ -0,0 +1,3 @@
+@SuppressWarnings("UnusedDeclaration")
+public class S1 extends SE {
+}